@@ -43,10 +43,22 @@
  */
 package org.jahia.dm;
 
+import java.io.File;
+import java.io.IOException;
+
+import javax.jcr.RepositoryException;
+
 import org.eclipse.gemini.blueprint.context.BundleContextAware;
+import org.jahia.dm.cache.FailureCache;
+import org.jahia.dm.cache.PDFCache;
+import org.jahia.dm.metrics.DocumentMetrics;
 import org.jahia.dm.thumbnails.DocumentThumbnailService;
 import org.jahia.dm.thumbnails.VideoThumbnailService;
+import org.jahia.dm.utils.BinaryUtils;
+import org.jahia.dm.utils.LocalBinary;
+import org.jahia.dm.utils.ProcessSupervisor;
 import org.jahia.dm.viewer.DocumentViewerService;
+import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.transform.DocumentConverterService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -64,12 +76,20 @@ public class DocumentManagement implements BundleContextAware {
     private static final Logger logger = LoggerFactory.getLogger(DocumentManagement.class);
 
     private BundleContext bundleContext;
+    private File dataStorePath;
     private DocumentConverterService documentConverterService;
     private DocumentThumbnailService documentThumbnailService;
     private DocumentViewerService documentViewerService;
+    private FailureCache failureCache;
+    private DocumentMetrics metrics = new DocumentMetrics();
+    private DocumentOperationExecutor operationExecutor;
+    private PDFCache pdfCache;
+    private ProcessSupervisor processSupervisor;
     private VideoThumbnailService videoThumbnailService;
 
     private DocumentManagement() {
+        processSupervisor = new ProcessSupervisor();
+        processSupervisor.setMetrics(metrics);
     }
 
     public static DocumentManagement getInstance() {
@@ -104,6 +124,16 @@ public class DocumentManagement implements BundleContextAware {
                 videoThumbnailService.isEnabled() ? "enabled" : "disabled");
     }
 
+    /**
+     * Returns the root directory of the Jackrabbit <code>FileDataStore</code>, used to read the document binaries in place, or
+     * <code>null</code> if it is not configured.
+     *
+     * @return the root directory of the Jackrabbit <code>FileDataStore</code> or <code>null</code>
+     */
+    public File getDataStorePath() {
+        return dataStorePath;
+    }
+
     public DocumentConverterService getDocumentConverterService() {
         return documentConverterService;
     }
@@ -116,6 +146,67 @@ public class DocumentManagement implements BundleContextAware {
         return documentViewerService;
     }
 
+    /**
+     * Returns the negative cache of the failed document operations.
+     *
+     * @return the negative cache of the failed document operations
+     */
+    public FailureCache getFailureCache() {
+        return failureCache;
+    }
+
+    /**
+     * Returns a local file with the binary of the file node, which can be read with random access: the file of the data store, read in
+     * place, or a temporary copy. The returned handle has to be closed once the file is no longer needed.
+     *
+     * @param fileNode
+     *            the file node to get the binary file for
+     * @return the handle to the local file with the binary of the file node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws IOException
+     *             in case the binary cannot be copied into a temporary file
+     */
+    public LocalBinary getLocalBinary(JCRNodeWrapper fileNode) throws RepositoryException, IOException {
+        return BinaryUtils.getLocalBinary(fileNode, dataStorePath);
+    }
+
+    /**
+     * Returns the collector of the document operation metrics. Never <code>null</code>.
+     *
+     * @return the collector of the document operation metrics
+     */
+    public DocumentMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the executor for the asynchronous document operations.
+     *
+     * @return the executor for the asynchronous document operations
+     */
+    public DocumentOperationExecutor getOperationExecutor() {
+        return operationExecutor;
+    }
+
+    /**
+     * Returns the cache of the PDF representation of documents, shared by the document operations.
+     *
+     * @return the cache of the PDF representation of documents
+     */
+    public PDFCache getPDFCache() {
+        return pdfCache;
+    }
+
+    /**
+     * Returns the supervisor for executing external tools. Never <code>null</code>.
+     *
+     * @return the supervisor for executing external tools
+     */
+    public ProcessSupervisor getProcessSupervisor() {
+        return processSupervisor;
+    }
+
     public VideoThumbnailService getVideoThumbnailService() {
         return videoThumbnailService;
     }
@@ -128,6 +219,19 @@ public class DocumentManagement implements BundleContextAware {
         return documentThumbnailService != null && documentThumbnailService.isEnabled();
     }
 
+    /**
+     * Returns <code>true</code> if the specified operation previously failed for the current content of the node and should not be
+     * attempted (yet).
+     *
+     * @param node      the document node
+     * @param operation the operation, e.g. {@link FailureCache#SWF_VIEW}
+     * @return <code>true</code> if the specified operation should not be attempted (yet)
+     * @throws RepositoryException in case of a JCR error
+     */
+    public boolean isOperationBlocked(JCRNodeWrapper node, String operation) throws RepositoryException {
+        return failureCache != null && failureCache.isBlocked(node, operation);
+    }
+
     public boolean isDocumentViewerServiceEnabled() {
         return documentViewerService != null && documentViewerService.isEnabled();
     }
@@ -136,15 +240,78 @@ public class DocumentManagement implements BundleContextAware {
         return videoThumbnailService != null && videoThumbnailService.isEnabled();
     }
 
+    /**
+     * Records the failure of the operation for the current content of the node, if the failure cache is available. If the operation is
+     * executed by a {@link DocumentOperationBatch}, its changes are discarded instead of being saved with the batch.
+     *
+     * @param node      the document node
+     * @param operation the operation, e.g. {@link FailureCache#SWF_VIEW}
+     * @param cause     the failure cause; can be <code>null</code>
+     */
+    public void recordOperationFailure(JCRNodeWrapper node, String operation, Throwable cause) {
+        try {
+            DocumentOperationBatch.markFailed(node);
+        } catch (RepositoryException e) {
+            logger.warn("Unable to discard changes of " + operation + " for node " + node.getPath(), e);
+        }
+        if (failureCache != null) {
+            try {
+                failureCache.recordFailure(node, operation, cause);
+            } catch (RepositoryException e) {
+                logger.warn("Unable to record failure of " + operation + " for node " + node.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Removes the failure record of the operation for the node, if any.
+     *
+     * @param node      the document node
+     * @param operation the operation, e.g. {@link FailureCache#SWF_VIEW}
+     */
+    public void recordOperationSuccess(JCRNodeWrapper node, String operation) {
+        if (failureCache != null) {
+            try {
+                failureCache.recordSuccess(node, operation);
+            } catch (RepositoryException e) {
+                logger.warn("Unable to clear failure of " + operation + " for node " + node.getPath(), e);
+            }
+        }
+    }
+
     @Override
     public void setBundleContext(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
     }
 
+    public void setDataStorePath(File dataStorePath) {
+        this.dataStorePath = dataStorePath;
+    }
+
     public void setDocumentConverterService(DocumentConverterService service) {
         documentConverterService = service;
     }
 
+    public void setFailureCache(FailureCache failureCache) {
+        this.failureCache = failureCache;
+    }
+
+    public void setMetrics(DocumentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setOperationExecutor(DocumentOperationExecutor operationExecutor) {
+        this.operationExecutor = operationExecutor;
+    }
+
+    public void setPDFCache(PDFCache pdfCache) {
+        this.pdfCache = pdfCache;
+    }
+
+    public void setProcessSupervisor(ProcessSupervisor processSupervisor) {
+        this.processSupervisor = processSupervisor;
+    }
+
     public void unbindDocumentThumbnailService(ServiceReference ref) {
         documentThumbnailService = null;
         logger.info("Instance of the service {} is now unbound", DocumentThumbnailService.class.getName());
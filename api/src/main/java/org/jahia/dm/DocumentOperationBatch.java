@@ -0,0 +1,382 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes document operations on several nodes of a workspace in a single system session, saving the changes every N nodes or every T
+ * milliseconds. Failures are isolated per node: the changes of a failed operation are discarded and, if a batch save fails, the changes of
+ * the nodes of the batch are saved one by one, without executing the operations again.
+ * <p>
+ * The operations save their changes through {@link #save(JCRNodeWrapper)}, which leaves the save to the batch when the operation is
+ * executed by one. An operation, which handles its errors itself instead of throwing them, reports the failure through
+ * {@link #markFailed(JCRNodeWrapper)}, as {@link DocumentManagement#recordOperationFailure} does, so that its partial changes are not
+ * saved with the batch. An operation, which has to make partial results visible before it completes, saves them through
+ * {@link #flush(JCRNodeWrapper)}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentOperationBatch {
+
+    private static class Item {
+        private final List<DocumentOperation> afterSave = new ArrayList<DocumentOperation>(1);
+        private boolean failed;
+        private final DocumentOperation operation;
+        private final String uuid;
+
+        Item(String uuid, DocumentOperation operation) {
+            this.uuid = uuid;
+            this.operation = operation;
+        }
+    }
+
+    public static final long DEFAULT_BATCH_INTERVAL = 2000;
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    private static final ThreadLocal<DocumentOperationBatch> current = new ThreadLocal<DocumentOperationBatch>();
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentOperationBatch.class);
+
+    private final long batchInterval;
+
+    private final int batchSize;
+
+    private Item executing;
+
+    private final List<Item> items = new ArrayList<Item>();
+
+    private JCRSessionWrapper session;
+
+    private final String workspace;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param workspace
+     *            the workspace of the nodes
+     * @param batchSize
+     *            the number of nodes after which the changes are saved
+     * @param batchInterval
+     *            the time in milliseconds after which the changes are saved
+     */
+    public DocumentOperationBatch(String workspace, int batchSize, long batchInterval) {
+        super();
+        this.workspace = workspace;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchInterval = batchInterval;
+    }
+
+    /**
+     * Adds the operation on the specified node to this batch.
+     * 
+     * @param uuid
+     *            the identifier of the document node
+     * @param operation
+     *            the operation to execute
+     */
+    public void add(String uuid, DocumentOperation operation) {
+        items.add(new Item(uuid, operation));
+    }
+
+    /**
+     * Executes the operations of this batch.
+     * 
+     * @return the set of identifiers of nodes, which were not found
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public Set<String> execute() throws RepositoryException {
+        final Set<String> notFound = new LinkedHashSet<String>();
+        if (items.isEmpty()) {
+            return notFound;
+        }
+
+        JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace, new JCRCallback<Boolean>() {
+            public Boolean doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                DocumentOperationBatch.this.session = session;
+                current.set(DocumentOperationBatch.this);
+                try {
+                    process(session, notFound);
+                } finally {
+                    current.remove();
+                    DocumentOperationBatch.this.session = null;
+                }
+
+                return Boolean.TRUE;
+            }
+        });
+
+        return notFound;
+    }
+
+    private static void discard(Item item, JCRNodeWrapper node) {
+        item.afterSave.clear();
+        try {
+            // discard the changes of the failed operation only
+            node.refresh(false);
+        } catch (RepositoryException re) {
+            logger.warn("Unable to discard changes of the node " + node.getPath(), re);
+        }
+    }
+
+    private boolean execute(Item item, JCRNodeWrapper node) {
+        item.afterSave.clear();
+        item.failed = false;
+        executing = item;
+        try {
+            item.operation.execute(node);
+            if (item.failed) {
+                discard(item, node);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Error executing operation on the document node " + node.getPath(), e);
+            discard(item, node);
+            return false;
+        } finally {
+            executing = null;
+        }
+    }
+
+    private void executeAfterSave(JCRSessionWrapper session, Item item) {
+        if (item.afterSave.isEmpty()) {
+            return;
+        }
+        JCRNodeWrapper node = null;
+        try {
+            node = session.getNodeByIdentifier(item.uuid);
+            for (DocumentOperation operation : item.afterSave) {
+                operation.execute(node);
+            }
+        } catch (Exception e) {
+            logger.error("Error executing post-save operation on the document node "
+                    + (node != null ? node.getPath() : item.uuid), e);
+        } finally {
+            item.afterSave.clear();
+        }
+    }
+
+    /**
+     * Saves the changes of the specified node right away, so that they become visible before the operation on the node completes. If the
+     * operation is executed by a batch in the session of the node, only the changes in the subtree of the node are saved and the changes
+     * of the other nodes of the batch are left to the batch; otherwise the session is saved.
+     * 
+     * @param node
+     *            the node, whose changes are saved
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void flush(JCRNodeWrapper node) throws RepositoryException {
+        DocumentOperationBatch batch = current.get();
+        if (batch != null && batch.executing != null && batch.session == node.getSession()) {
+            saveSubtree(node);
+        } else {
+            node.getSession().save();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this batch contains no operations.
+     * 
+     * @return <code>true</code> if this batch contains no operations
+     */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Reports the failure of the operation on the specified node, which is handled by the operation itself. If the operation is executed
+     * by a batch, its changes are discarded instead of being saved with the batch; otherwise nothing is done.
+     * 
+     * @param node
+     *            the node, the operation failed for
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void markFailed(JCRNodeWrapper node) throws RepositoryException {
+        DocumentOperationBatch batch = current.get();
+        if (batch != null && batch.executing != null && batch.session == node.getSession()) {
+            batch.executing.failed = true;
+        }
+    }
+
+    private void process(JCRSessionWrapper session, Set<String> notFound) throws RepositoryException {
+        List<Item> unsaved = new ArrayList<Item>(Math.min(batchSize, items.size()));
+        long lastSave = System.currentTimeMillis();
+        for (Item item : items) {
+            JCRNodeWrapper node = null;
+            try {
+                node = session.getNodeByIdentifier(item.uuid);
+            } catch (ItemNotFoundException e) {
+                notFound.add(item.uuid);
+                continue;
+            }
+            if (execute(item, node)) {
+                unsaved.add(item);
+            }
+            if (unsaved.size() >= batchSize || System.currentTimeMillis() - lastSave >= batchInterval) {
+                save(session, unsaved);
+                lastSave = System.currentTimeMillis();
+            }
+        }
+        save(session, unsaved);
+    }
+
+    /**
+     * Saves the changes of the session of the specified node, unless an operation on the node is being executed by a batch in that session,
+     * in which case the changes are saved by the batch.
+     * 
+     * @param node
+     *            the node, whose changes are saved
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void save(JCRNodeWrapper node) throws RepositoryException {
+        save(node, null);
+    }
+
+    /**
+     * Saves the changes of the session of the specified node and then executes the provided operation on it, which requires the changes to
+     * be persisted (e.g. versioning). If an operation on the node is being executed by a batch in that session, both are deferred until the
+     * batch saves the changes.
+     * 
+     * @param node
+     *            the node, whose changes are saved
+     * @param afterSave
+     *            the operation to execute on the node once the changes are saved; can be <code>null</code>
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void save(JCRNodeWrapper node, DocumentOperation afterSave) throws RepositoryException {
+        DocumentOperationBatch batch = current.get();
+        if (batch != null && batch.executing != null && batch.session == node.getSession()) {
+            if (afterSave != null) {
+                batch.executing.afterSave.add(afterSave);
+            }
+            return;
+        }
+        node.getSession().save();
+        if (afterSave != null) {
+            try {
+                afterSave.execute(node);
+            } catch (RepositoryException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DocumentOperationException(e);
+            }
+        }
+    }
+
+    private void save(JCRSessionWrapper session, List<Item> unsaved) throws RepositoryException {
+        if (unsaved.isEmpty() && !session.hasPendingChanges()) {
+            return;
+        }
+        long timer = System.currentTimeMillis();
+        try {
+            session.save();
+            DocumentManagement.getInstance().getMetrics().recordStage(DocumentMetrics.STAGE_SAVE, null, timer);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Saved changes of {} document node(s) in workspace {} in {} ms", new Object[] {
+                        unsaved.size(), workspace, (System.currentTimeMillis() - timer) });
+            }
+            for (Item item : unsaved) {
+                executeAfterSave(session, item);
+            }
+        } catch (RepositoryException e) {
+            logger.warn("Unable to save changes of " + unsaved.size()
+                    + " document node(s) at once. Saving them one by one.", e);
+            for (Item item : unsaved) {
+                JCRNodeWrapper node = null;
+                try {
+                    node = session.getNodeByIdentifier(item.uuid);
+                    saveSubtree(node);
+                    executeAfterSave(session, item);
+                } catch (RepositoryException re) {
+                    logger.error("Error saving changes of the document node "
+                            + (node != null ? node.getPath() : item.uuid), re);
+                    item.afterSave.clear();
+                }
+            }
+        }
+        unsaved.clear();
+        // drop the cached node state to keep the session footprint low for large batches; this also discards the changes, which could
+        // not be saved
+        session.refresh(false);
+    }
+
+    /**
+     * Saves only the changes in the subtree of the specified node, leaving the changes of the other nodes of the session pending.
+     */
+    @SuppressWarnings("deprecation")
+    private static void saveSubtree(JCRNodeWrapper node) throws RepositoryException {
+        // Item.save() is deprecated by JCR 2.0, but it is the only way to persist the changes of a single node
+        node.getRealNode().save();
+    }
+
+    /**
+     * Returns the number of operations in this batch.
+     * 
+     * @return the number of operations in this batch
+     */
+    public int size() {
+        return items.size();
+    }
+}
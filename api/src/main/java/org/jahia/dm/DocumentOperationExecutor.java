@@ -0,0 +1,621 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.jahia.dm.metrics.Gauge;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Dedicated executor for the asynchronous document operations, which replaces the scheduling of a separate background job per document
+ * node. Each operation type has its own bounded queue and pool of worker threads. Operations, submitted by a thread in a burst (e.g. during
+ * a bulk import), are given a lower priority than the interactive ones. Duplicate submissions of the same operation for the same node,
+ * which are still waiting in the queue, are coalesced. If the queue of an operation type is full, the submitting thread waits for a free
+ * slot up to the configured timeout; if there is still no free slot, the submission is rejected and the caller is expected to fall back to
+ * a background job. Collapsing submissions (see {@link #submitIfAbsent}), made while serving a request, do not wait for a free slot. Under load, a worker processes several queued operations of the same workspace in one session, saving the changes
+ * in batches (see {@link DocumentOperationBatch}).
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentOperationExecutor implements InitializingBean, DisposableBean {
+
+    /**
+     * Priority of a document operation.
+     */
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    private static class Lane {
+
+        private final ThreadPoolExecutor executor;
+
+        private final Semaphore permits;
+
+        private final PriorityBlockingQueue<Runnable> queue;
+
+        private final String type;
+
+        Lane(final String type, int workers, int capacity) {
+            this.type = type;
+            this.permits = new Semaphore(capacity);
+            this.queue = new PriorityBlockingQueue<Runnable>();
+            this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "dm-" + type + "-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            // tasks are re-prioritized directly in the queue, so the workers must be running
+            executor.prestartAllCoreThreads();
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+
+        private int attempts;
+
+        private final String key;
+
+        private final Lane lane;
+
+        private final DocumentOperation operation;
+
+        private volatile Priority priority;
+
+        private final long sequence = SEQUENCE.incrementAndGet();
+
+        private final String uuid;
+
+        private final String workspace;
+
+        Task(Lane lane, String key, String uuid, String workspace, Priority priority,
+                DocumentOperation operation) {
+            this.lane = lane;
+            this.key = key;
+            this.uuid = uuid;
+            this.workspace = workspace;
+            this.priority = priority;
+            this.operation = operation;
+        }
+
+        public int compareTo(Task o) {
+            int result = priority.compareTo(o.priority);
+            return result != 0 ? result : (sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1));
+        }
+
+        public void run() {
+            List<Task> batch = new ArrayList<Task>();
+            claim(this, batch);
+            // under load, drain further queued operations of the same workspace to process them in one session
+            int drain = Math.min(batchSize - 1, lane.queue.size() / lane.executor.getCorePoolSize());
+            while (drain-- > 0) {
+                Runnable next = lane.queue.poll();
+                if (next == null) {
+                    break;
+                }
+                Task task = (Task) next;
+                if (!task.workspace.equals(workspace)) {
+                    lane.queue.add(task);
+                    break;
+                }
+                claim(task, batch);
+            }
+            try {
+                execute(batch);
+            } catch (Exception e) {
+                logger.error("Error executing " + batch.size() + " " + lane.type
+                        + " operation(s) in workspace " + workspace, e);
+            } finally {
+                for (Task task : batch) {
+                    markRunning(task.key, false);
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentOperationExecutor.class);
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    public static final String DOCUMENT_THUMBNAIL = "documentThumbnail";
+
+    public static final String VIDEO_THUMBNAIL = "videoThumbnail";
+
+    public static final String VIEWER = "viewer";
+
+    private long batchInterval = DocumentOperationBatch.DEFAULT_BATCH_INTERVAL;
+
+    private int batchSize = DocumentOperationBatch.DEFAULT_BATCH_SIZE;
+
+    private int bulkThreshold = 20;
+
+    private long bulkWindow = 2000;
+
+    private final ThreadLocal<long[]> burst = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private int defaultWorkers = 1;
+
+    private boolean enabled = true;
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    private int maxNotFoundRetries = 3;
+
+    private DocumentMetrics metrics;
+
+    private long offerTimeout = 5000;
+
+    private final ConcurrentMap<String, Task> pending = new ConcurrentHashMap<String, Task>();
+
+    private final Map<String, Integer> running = new HashMap<String, Integer>();
+
+    private int queueCapacity = 10000;
+
+    private volatile ScheduledExecutorService retryScheduler;
+
+    private long retryDelay = 1000;
+
+    private Map<String, Integer> workers = Collections.emptyMap();
+
+    public void afterPropertiesSet() throws Exception {
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dm-operation-retry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (String type : workers.keySet()) {
+            getLane(type);
+        }
+    }
+
+    public void destroy() throws Exception {
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
+        }
+        for (Lane lane : lanes.values()) {
+            lane.executor.shutdownNow();
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Discarded {} pending document operations on shutdown", pending.size());
+        }
+        lanes.clear();
+        pending.clear();
+        synchronized (running) {
+            running.clear();
+        }
+    }
+
+    private void claim(Task task, List<Task> batch) {
+        synchronized (task.lane) {
+            // from now on a new submission for the same node is not coalesced with this one
+            pending.remove(task.key, task);
+            markRunning(task.key, true);
+        }
+        task.lane.permits.release();
+        task.attempts++;
+        batch.add(task);
+    }
+
+    private void execute(List<Task> tasks) throws RepositoryException {
+        long timer = System.currentTimeMillis();
+        Task first = tasks.get(0);
+        DocumentOperationBatch batch = new DocumentOperationBatch(first.workspace, batchSize,
+                batchInterval);
+        for (Task task : tasks) {
+            batch.add(task.uuid, task.operation);
+        }
+        Set<String> notFound = batch.execute();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Executed {} {} operation(s) in {} ms", new Object[] { tasks.size(),
+                    first.lane.type, (System.currentTimeMillis() - timer) });
+        }
+
+        for (Task task : tasks) {
+            if (!notFound.contains(task.uuid)) {
+                continue;
+            }
+            if (task.attempts <= maxNotFoundRetries) {
+                // the node could be not yet visible if the operation was submitted before the save has completed
+                retry(task);
+            } else {
+                logger.warn(
+                        "Unable to find node with ID {} in {} workspace. Skip executing a document operation.",
+                        task.uuid, task.workspace);
+            }
+        }
+    }
+
+    private Lane getLane(String type) {
+        Lane lane = lanes.get(type);
+        if (lane == null) {
+            synchronized (lanes) {
+                lane = lanes.get(type);
+                if (lane == null) {
+                    Integer count = workers.get(type);
+                    lane = new Lane(type, count != null && count > 0 ? count : defaultWorkers,
+                            queueCapacity);
+                    lanes.put(type, lane);
+                    registerGauges(lane);
+                    logger.info("Started {} worker(s) for {} document operations",
+                            lane.executor.getCorePoolSize(), type);
+                }
+            }
+        }
+        return lane;
+    }
+
+    private void registerGauges(final Lane lane) {
+        if (metrics == null) {
+            return;
+        }
+        metrics.registerGauge(DocumentMetrics.EXECUTOR_QUEUED, new Gauge() {
+            public double getValue() {
+                return lane.queue.size();
+            }
+        }, "type", lane.type);
+        metrics.registerGauge(DocumentMetrics.EXECUTOR_ACTIVE, new Gauge() {
+            public double getValue() {
+                return lane.executor.getActiveCount();
+            }
+        }, "type", lane.type);
+    }
+
+    /**
+     * Returns the number of operations of the specified type, waiting in the queue.
+     * 
+     * @param type
+     *            the operation type
+     * @return the number of operations of the specified type, waiting in the queue
+     */
+    public int getQueueSize(String type) {
+        Lane lane = lanes.get(type);
+        return lane != null ? lane.queue.size() : 0;
+    }
+
+    /**
+     * Returns the number of operations of the specified type, currently being executed.
+     * 
+     * @param type
+     *            the operation type
+     * @return the number of operations of the specified type, currently being executed
+     */
+    public int getActiveCount(String type) {
+        Lane lane = lanes.get(type);
+        return lane != null ? lane.executor.getActiveCount() : 0;
+    }
+
+    private Priority guessPriority() {
+        long[] state = burst.get();
+        long now = System.currentTimeMillis();
+        if (now - state[0] > bulkWindow) {
+            state[1] = 0;
+        }
+        state[0] = now;
+        state[1]++;
+
+        return state[1] > bulkThreshold ? Priority.BULK : Priority.INTERACTIVE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void retry(final Task task) {
+        if (!task.lane.permits.tryAcquire()) {
+            logger.warn("The queue for {} operations is full. Skip retrying the operation on node {}",
+                    task.lane.type, task.uuid);
+            return;
+        }
+        retryScheduler.schedule(new Runnable() {
+            public void run() {
+                synchronized (task.lane) {
+                    if (pending.putIfAbsent(task.key, task) != null) {
+                        // the same operation has been submitted meanwhile
+                        task.lane.permits.release();
+                        return;
+                    }
+                }
+                task.lane.executor.execute(task);
+            }
+        }, retryDelay * task.attempts, TimeUnit.MILLISECONDS);
+    }
+
+    public void setBatchInterval(long batchInterval) {
+        this.batchInterval = batchInterval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBulkThreshold(int bulkThreshold) {
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    public void setBulkWindow(long bulkWindow) {
+        this.bulkWindow = bulkWindow;
+    }
+
+    public void setDefaultWorkers(int defaultWorkers) {
+        this.defaultWorkers = defaultWorkers;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxNotFoundRetries(int maxNotFoundRetries) {
+        this.maxNotFoundRetries = maxNotFoundRetries;
+    }
+
+    public void setMetrics(DocumentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setWorkers(Map<String, Integer> workers) {
+        this.workers = workers != null ? new HashMap<String, Integer>(workers) : Collections
+                .<String, Integer> emptyMap();
+    }
+
+    /**
+     * Submits the operation for the specified node for an asynchronous execution. The priority is determined automatically: a thread,
+     * submitting many operations in a short period of time, gets a bulk priority.
+     * 
+     * @param type
+     *            the operation type, e.g. {@link #DOCUMENT_THUMBNAIL}
+     * @param node
+     *            the document node to execute the operation on
+     * @param discriminator
+     *            the additional key (e.g. the operation parameters) to distinguish operations of the same type for the same node; can be
+     *            <code>null</code>
+     * @param operation
+     *            the operation to be executed
+     * @return <code>true</code> if the operation was accepted; <code>false</code> if the executor is disabled or the queue is full
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean submit(String type, JCRNodeWrapper node, String discriminator,
+            DocumentOperation operation) throws RepositoryException {
+        return submit(type, node, discriminator, operation, guessPriority());
+    }
+
+    /**
+     * Submits the operation for the specified node for an asynchronous execution.
+     * 
+     * @param type
+     *            the operation type, e.g. {@link #DOCUMENT_THUMBNAIL}
+     * @param node
+     *            the document node to execute the operation on
+     * @param discriminator
+     *            the additional key (e.g. the operation parameters) to distinguish operations of the same type for the same node; can be
+     *            <code>null</code>
+     * @param operation
+     *            the operation to be executed
+     * @param priority
+     *            the priority of the operation
+     * @return <code>true</code> if the operation was accepted; <code>false</code> if the executor is disabled or the queue is full
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean submit(String type, JCRNodeWrapper node, String discriminator,
+            DocumentOperation operation, Priority priority) throws RepositoryException {
+        return submit(type, node, discriminator, operation, priority, offerTimeout);
+    }
+
+    private boolean submit(String type, JCRNodeWrapper node, String discriminator,
+            DocumentOperation operation, Priority priority, long timeout) throws RepositoryException {
+        if (!enabled || retryScheduler == null) {
+            return false;
+        }
+
+        Lane lane = getLane(type);
+        String uuid = node.getIdentifier();
+        String workspace = node.getSession().getWorkspace().getName();
+        String key = getKey(type, workspace, uuid, discriminator);
+
+        if (coalesce(lane, key, priority)) {
+            return true;
+        }
+
+        try {
+            if (!(timeout > 0 ? lane.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) : lane.permits
+                    .tryAcquire())) {
+                logger.warn("The queue for {} operations is full. Rejecting operation for node {}",
+                        type, node.getPath());
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        Task task = new Task(lane, key, uuid, workspace, priority, operation);
+        synchronized (lane) {
+            if (coalesce(lane, key, priority)) {
+                lane.permits.release();
+                return true;
+            }
+            pending.put(key, task);
+        }
+        lane.executor.execute(task);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Queued {} operation with {} priority for node {}", new Object[] { type,
+                    priority, node.getPath() });
+        }
+
+        return true;
+    }
+
+    /**
+     * Submits the operation for the specified node for an asynchronous execution unless the same operation is already queued or being
+     * executed for that node. This allows collapsing concurrent requests for the same node into a single execution. The method does not
+     * wait for a free slot if the queue is full.
+     * 
+     * @param type
+     *            the operation type, e.g. {@link #VIEWER}
+     * @param node
+     *            the document node to execute the operation on
+     * @param discriminator
+     *            the additional key to distinguish operations of the same type for the same node; can be <code>null</code>
+     * @param operation
+     *            the operation to be executed
+     * @param priority
+     *            the priority of the operation
+     * @return <code>true</code> if the operation is queued or being executed; <code>false</code> if the executor is disabled or the
+     *         queue is full
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean submitIfAbsent(String type, JCRNodeWrapper node, String discriminator,
+            DocumentOperation operation, Priority priority) throws RepositoryException {
+        return isPending(type, node, discriminator)
+                || submit(type, node, discriminator, operation, priority, 0);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified operation for the node is queued or being executed.
+     * 
+     * @param type
+     *            the operation type, e.g. {@link #VIEWER}
+     * @param node
+     *            the document node
+     * @param discriminator
+     *            the additional key to distinguish operations of the same type for the same node; can be <code>null</code>
+     * @return <code>true</code> if the specified operation for the node is queued or being executed
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean isPending(String type, JCRNodeWrapper node, String discriminator)
+            throws RepositoryException {
+        String key = getKey(type, node.getSession().getWorkspace().getName(), node.getIdentifier(),
+                discriminator);
+        if (pending.containsKey(key)) {
+            return true;
+        }
+        synchronized (running) {
+            return running.containsKey(key);
+        }
+    }
+
+    private void markRunning(String key, boolean started) {
+        synchronized (running) {
+            Integer count = running.get(key);
+            int value = (count != null ? count : 0) + (started ? 1 : -1);
+            if (value > 0) {
+                running.put(key, value);
+            } else {
+                running.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(String type, String workspace, String uuid, String discriminator) {
+        return type + "/" + workspace + "/" + uuid + (discriminator != null ? "/" + discriminator : "");
+    }
+
+    private boolean coalesce(Lane lane, String key, Priority priority) {
+        synchronized (lane) {
+            Task existing = pending.get(key);
+            if (existing == null) {
+                return false;
+            }
+            if (priority.compareTo(existing.priority) < 0 && lane.queue.remove(existing)) {
+                existing.priority = priority;
+                lane.queue.add(existing);
+            }
+            return true;
+        }
+    }
+}
@@ -43,15 +43,9 @@
  */
 package org.jahia.dm;
 
-import javax.jcr.ItemNotFoundException;
-import javax.jcr.RepositoryException;
-
 import org.apache.commons.lang.StringUtils;
 import org.jahia.api.Constants;
-import org.jahia.services.content.JCRCallback;
 import org.jahia.services.content.JCRNodeWrapper;
-import org.jahia.services.content.JCRSessionWrapper;
-import org.jahia.services.content.JCRTemplate;
 import org.jahia.services.scheduler.BackgroundJob;
 import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
@@ -59,7 +53,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Abstract background task for document operations.
+ * Abstract background task for document operations. The operation is executed through a {@link DocumentOperationBatch}, which saves its
+ * changes.
  * 
  * @author Sergiy Shyrkov
  */
@@ -72,7 +67,7 @@ public abstract class DocumentOperationJob extends BackgroundJob {
     private static final Logger logger = LoggerFactory.getLogger(DocumentOperationJob.class);
 
     /**
-     * Does the execution of the operation on the provided document node
+     * Does the execution of the operation on the provided document node. The changes are saved by this class.
      * 
      * @param documentNode
      *            the document node to execute the operation on
@@ -87,30 +82,21 @@ public abstract class DocumentOperationJob extends BackgroundJob {
     @Override
     public void executeJahiaJob(final JobExecutionContext jobExecutionContext) throws Exception {
         JobDataMap data = jobExecutionContext.getJobDetail().getJobDataMap();
-        final String uuid = (String) data.get(JOB_UUID);
-        final String workspace = StringUtils.defaultIfEmpty((String) data.get(JOB_WORKSPACE),
+        String uuid = (String) data.get(JOB_UUID);
+        String workspace = StringUtils.defaultIfEmpty((String) data.get(JOB_WORKSPACE),
                 Constants.EDIT_WORKSPACE);
-        JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
-                new JCRCallback<Boolean>() {
-                    public Boolean doInJCR(JCRSessionWrapper session) throws RepositoryException {
-
-                        JCRNodeWrapper node = null;
-                        try {
-                            node = session.getNodeByIdentifier(uuid);
-                            doOperation(node, jobExecutionContext);
-                        } catch (ItemNotFoundException e) {
-                            logger.warn(
-                                    "Unable to find node with ID {} in {} workspace. Skip executing a document operation.",
-                                    uuid, workspace);
-                        } catch (Exception e) {
-                            logger.error(
-                                    "Error executing operation on the document node "
-                                            + (node != null ? node.getPath() : uuid), e);
-                        }
-
-                        return Boolean.TRUE;
-                    }
-                });
+        DocumentOperationBatch batch = new DocumentOperationBatch(workspace, 1,
+                DocumentOperationBatch.DEFAULT_BATCH_INTERVAL);
+        batch.add(uuid, new DocumentOperation() {
+            public void execute(JCRNodeWrapper documentNode) throws Exception {
+                doOperation(documentNode, jobExecutionContext);
+            }
+        });
+        if (!batch.execute().isEmpty()) {
+            logger.warn(
+                    "Unable to find node with ID {} in {} workspace. Skip executing a document operation.",
+                    uuid, workspace);
+        }
     }
 
 }
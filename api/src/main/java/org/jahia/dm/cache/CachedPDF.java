@@ -0,0 +1,92 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.cache;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A handle to a PDF document, obtained from the {@link PDFCache}. The file must not be modified or deleted by the caller and the handle
+ * has to be closed once the file is no longer needed, so that the cache is able to evict it.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class CachedPDF implements Closeable {
+
+    private boolean closed;
+
+    private final PDFCache.Entry entry;
+
+    private final PDFCache cache;
+
+    private final File file;
+
+    CachedPDF(PDFCache cache, PDFCache.Entry entry, File file) {
+        super();
+        this.cache = cache;
+        this.entry = entry;
+        this.file = file;
+    }
+
+    /**
+     * Releases the PDF document. If the document is not backed by the cache the underlying file is deleted.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cache.release(entry, file);
+    }
+
+    /**
+     * Returns the PDF file.
+     * 
+     * @return the PDF file
+     */
+    public File getFile() {
+        return file;
+    }
+}
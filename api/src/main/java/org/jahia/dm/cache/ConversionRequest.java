@@ -0,0 +1,174 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Describes which part of a document has to be converted into a PDF and at which image resolution: the full document for viewing or
+ * e.g. only the first page for a thumbnail. The request maps to the options of the LibreOffice PDF export filter (<code>PageRange</code>,
+ * <code>ReduceImageResolution</code> and <code>MaxImageResolution</code>). Instances are immutable.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class ConversionRequest {
+
+    /**
+     * Converts the full document at the default resolution.
+     */
+    public static final ConversionRequest FULL = new ConversionRequest(1, -1, 0);
+
+    private final int firstPage;
+
+    private final int lastPage;
+
+    private final int resolution;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param firstPage
+     *            the 1-based number of the first page to convert
+     * @param lastPage
+     *            the 1-based number of the last page to convert (inclusive); a negative value means the last page of the document
+     * @param resolution
+     *            the maximum resolution of the images in the PDF in DPI; <code>0</code> to keep the resolution of the exporter defaults
+     */
+    public ConversionRequest(int firstPage, int lastPage, int resolution) {
+        super();
+        this.firstPage = Math.max(1, firstPage);
+        this.lastPage = lastPage < 0 ? -1 : Math.max(this.firstPage, lastPage);
+        this.resolution = Math.max(0, resolution);
+    }
+
+    /**
+     * Returns the options of the LibreOffice PDF export filter (<code>FilterData</code>), which correspond to this request.
+     * 
+     * @return the options of the LibreOffice PDF export filter, which correspond to this request
+     */
+    public Map<String, Object> getFilterData() {
+        Map<String, Object> filterData = new LinkedHashMap<String, Object>();
+        String pageRange = getPageRange();
+        if (pageRange != null) {
+            filterData.put("PageRange", pageRange);
+        }
+        if (resolution > 0) {
+            filterData.put("ReduceImageResolution", Boolean.TRUE);
+            filterData.put("MaxImageResolution", Integer.valueOf(resolution));
+        }
+        return filterData;
+    }
+
+    public int getFirstPage() {
+        return firstPage;
+    }
+
+    /**
+     * Returns a suffix, identifying this request in the cache keys, or an empty string for the full document at the default resolution.
+     * 
+     * @return a suffix, identifying this request in the cache keys
+     */
+    public String getKeySuffix() {
+        if (isFull()) {
+            return "";
+        }
+        StringBuilder suffix = new StringBuilder();
+        String pageRange = getPageRange();
+        if (pageRange != null) {
+            suffix.append("-p").append(pageRange);
+        }
+        if (resolution > 0) {
+            suffix.append("-r").append(resolution);
+        }
+        return suffix.toString();
+    }
+
+    public int getLastPage() {
+        return lastPage;
+    }
+
+    /**
+     * Returns the page range in the syntax of the LibreOffice PDF export filter, e.g. <code>1</code> or <code>1-3</code>, or
+     * <code>null</code> if all pages are requested.
+     * 
+     * @return the page range in the syntax of the LibreOffice PDF export filter or <code>null</code> if all pages are requested
+     */
+    public String getPageRange() {
+        if (isAllPages()) {
+            return null;
+        }
+        if (lastPage < 0) {
+            return firstPage + "-";
+        }
+        return firstPage == lastPage ? String.valueOf(firstPage) : firstPage + "-" + lastPage;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns <code>true</code> if all pages of the document are requested.
+     * 
+     * @return <code>true</code> if all pages of the document are requested
+     */
+    public boolean isAllPages() {
+        return firstPage == 1 && lastPage < 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the full document is requested at the default resolution, i.e. the exporter defaults apply.
+     * 
+     * @return <code>true</code> if the full document is requested at the default resolution
+     */
+    public boolean isFull() {
+        return isAllPages() && resolution == 0;
+    }
+
+    @Override
+    public String toString() {
+        return isFull() ? "full" : getKeySuffix().substring(1);
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jahia.dm.utils.BinaryUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Negative cache of document operations, which failed for a particular version of the document content. Further attempts for the same
+ * content are blocked with an exponential backoff and, after the configured number of attempts, until the content changes or the record
+ * is cleared by an administrator (see {@link FailureCacheMBean}). The records are persisted into a file, so that they survive restarts.
+ * Records for a previous content of a node are dropped once a failure is recorded for its new content; records older than the configured
+ * maximum age expire and the number of records is capped, evicting the oldest ones. The recorded changes are written into the file
+ * periodically and on shutdown, not on each failure.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class FailureCache implements FailureCacheMBean, InitializingBean, DisposableBean {
+
+    private static class Failure implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int attempts;
+
+        private final String contentKey;
+
+        private long lastFailure;
+
+        private String message;
+
+        private long nextAttempt;
+
+        private final String operation;
+
+        private final String path;
+
+        private final String uuid;
+
+        Failure(String operation, String uuid, String path, String contentKey) {
+            this.operation = operation;
+            this.uuid = uuid;
+            this.path = path;
+            this.contentKey = contentKey;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + path + " [" + uuid + "] attempts: " + attempts + ", last failure: "
+                    + new Date(lastFailure) + ", next attempt: "
+                    + (nextAttempt > 0 ? new Date(nextAttempt) : "never") + ", cause: " + message;
+        }
+    }
+
+    /**
+     * Conversion of a document into a PDF.
+     */
+    public static final String PDF = "pdf";
+
+    /**
+     * Creation of the page images view of a document.
+     */
+    public static final String PAGES_VIEW = "pagesView";
+
+    /**
+     * Creation of the PDF view of a document.
+     */
+    public static final String PDF_VIEW = "pdfView";
+
+    /**
+     * Creation of the SWF view of a document.
+     */
+    public static final String SWF_VIEW = "swfView";
+
+    /**
+     * Creation of document thumbnails.
+     */
+    public static final String THUMBNAIL = "thumbnail";
+
+    /**
+     * Creation of video thumbnails.
+     */
+    public static final String VIDEO_THUMBNAIL = "videoThumbnail";
+
+    private static final Comparator<Failure> LAST_FAILURE_ORDER = new Comparator<Failure>() {
+        public int compare(Failure f1, Failure f2) {
+            return f1.lastFailure < f2.lastFailure ? -1 : (f1.lastFailure == f2.lastFailure ? 0 : 1);
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(FailureCache.class);
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private boolean enabled = true;
+
+    private File file;
+
+    private final Map<String, Failure> failures = new HashMap<String, Failure>();
+
+    private volatile ScheduledExecutorService flushScheduler;
+
+    private long flushInterval = 10000;
+
+    private long initialBackoff = 10 * 60 * 1000L;
+
+    private long maxAge = 30L * 24 * 60 * 60 * 1000L;
+
+    private int maxAttempts = 5;
+
+    private long maxBackoff = 24 * 60 * 60 * 1000L;
+
+    private int maxRecords = 10000;
+
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled || file == null) {
+            return;
+        }
+        if (flushInterval > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "dm-failure-cache-flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flushScheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        if (!file.isFile()) {
+            return;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            @SuppressWarnings("unchecked")
+            List<Failure> stored = (List<Failure>) in.readObject();
+            synchronized (this) {
+                for (Failure failure : stored) {
+                    failures.put(getKey(failure.operation, failure.uuid), failure);
+                }
+                prune();
+            }
+            logger.info("Loaded {} document operation failure records from {}", failures.size(), file);
+        } catch (Exception e) {
+            logger.warn("Unable to read document operation failure records from " + file
+                    + ". Starting with an empty cache.", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void clear() {
+        synchronized (this) {
+            failures.clear();
+        }
+        store();
+        logger.info("Cleared document operation failure records");
+    }
+
+    public int clear(String uuid) {
+        int count = 0;
+        synchronized (this) {
+            for (Iterator<Failure> iterator = failures.values().iterator(); iterator.hasNext();) {
+                if (iterator.next().uuid.equals(uuid)) {
+                    iterator.remove();
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            store();
+        }
+        return count;
+    }
+
+    public void destroy() throws Exception {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+            flushScheduler = null;
+        }
+        flush();
+    }
+
+    /**
+     * Writes the records into the file if they changed since the last write.
+     */
+    private void flush() {
+        if (dirty.compareAndSet(true, false)) {
+            store();
+        }
+    }
+
+    private static String getKey(String operation, String uuid) {
+        return operation + "/" + uuid;
+    }
+
+    public synchronized int getFailureCount() {
+        return failures.size();
+    }
+
+    public synchronized String[] getFailures() {
+        List<String> result = new ArrayList<String>(failures.size());
+        for (Failure failure : failures.values()) {
+            result.add(failure.toString());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified operation failed for the current content of the node and should not be attempted
+     * (yet).
+     * 
+     * @param node
+     *            the document node
+     * @param operation
+     *            the operation, e.g. {@link #SWF_VIEW}
+     * @return <code>true</code> if the specified operation failed for the current content of the node and should not be attempted
+     *         (yet)
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean isBlocked(JCRNodeWrapper node, String operation) throws RepositoryException {
+        if (!enabled) {
+            return false;
+        }
+        Failure failure = null;
+        synchronized (this) {
+            if (failures.isEmpty()) {
+                return false;
+            }
+            failure = failures.get(getKey(operation, node.getIdentifier()));
+        }
+        if (failure == null || !failure.contentKey.equals(BinaryUtils.getContentKey(node))) {
+            return false;
+        }
+        boolean blocked = failure.nextAttempt == 0 || System.currentTimeMillis() < failure.nextAttempt;
+        if (blocked && logger.isDebugEnabled()) {
+            logger.debug("Skipping {} for node {} as it previously failed: {}", new Object[] {
+                    operation, node.getPath(), failure });
+        }
+
+        return blocked;
+    }
+
+    /**
+     * Records the failure of the operation for the current content of the node.
+     * 
+     * @param node
+     *            the document node
+     * @param operation
+     *            the operation, e.g. {@link #SWF_VIEW}
+     * @param cause
+     *            the failure cause; can be <code>null</code>
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public void recordFailure(JCRNodeWrapper node, String operation, Throwable cause)
+            throws RepositoryException {
+        if (!enabled) {
+            return;
+        }
+        String contentKey = BinaryUtils.getContentKey(node);
+        String key = getKey(operation, node.getIdentifier());
+        Failure failure = null;
+        synchronized (this) {
+            failure = failures.get(key);
+            if (failure == null || !failure.contentKey.equals(contentKey)) {
+                // the records of the other operations for a previous content of the node are stale now
+                for (Iterator<Failure> iterator = failures.values().iterator(); iterator.hasNext();) {
+                    Failure other = iterator.next();
+                    if (other.uuid.equals(node.getIdentifier()) && !other.contentKey.equals(contentKey)) {
+                        iterator.remove();
+                    }
+                }
+                failure = new Failure(operation, node.getIdentifier(), node.getPath(), contentKey);
+                failures.put(key, failure);
+            }
+            failure.attempts++;
+            failure.lastFailure = System.currentTimeMillis();
+            failure.message = cause != null ? StringUtils.abbreviate(
+                    StringUtils.defaultString(cause.getMessage(), cause.getClass().getName()), 1024)
+                    : null;
+            if (failure.attempts >= maxAttempts) {
+                // give up until the content changes or the record is cleared
+                failure.nextAttempt = 0;
+            } else {
+                long backoff = initialBackoff << Math.min(failure.attempts - 1, 30);
+                failure.nextAttempt = failure.lastFailure
+                        + (backoff > 0 ? Math.min(backoff, maxBackoff) : maxBackoff);
+            }
+            prune();
+        }
+        logger.info("Recorded failure of {}", failure);
+        markDirty();
+    }
+
+    /**
+     * Marks the records as changed. They are written into the file by the next flush or immediately if no flush interval is set.
+     */
+    private void markDirty() {
+        if (flushScheduler != null) {
+            dirty.set(true);
+        } else {
+            store();
+        }
+    }
+
+    /**
+     * Removes the records older than the maximum age and, if the number of records exceeds the maximum, the records with the oldest last
+     * failure. Has to be called while holding the lock of this cache.
+     */
+    private void prune() {
+        int expired = 0;
+        if (maxAge > 0) {
+            long threshold = System.currentTimeMillis() - maxAge;
+            for (Iterator<Failure> iterator = failures.values().iterator(); iterator.hasNext();) {
+                if (iterator.next().lastFailure < threshold) {
+                    iterator.remove();
+                    expired++;
+                }
+            }
+        }
+        int evicted = 0;
+        if (maxRecords > 0 && failures.size() > maxRecords) {
+            List<Failure> oldest = new ArrayList<Failure>(failures.values());
+            Collections.sort(oldest, LAST_FAILURE_ORDER);
+            for (Failure failure : oldest.subList(0, failures.size() - maxRecords)) {
+                failures.remove(getKey(failure.operation, failure.uuid));
+                evicted++;
+            }
+        }
+        if ((expired > 0 || evicted > 0) && logger.isDebugEnabled()) {
+            logger.debug("Removed {} expired and {} excess document operation failure records", expired,
+                    evicted);
+        }
+    }
+
+    /**
+     * Removes the failure record of the operation for the node, if any.
+     * 
+     * @param node
+     *            the document node
+     * @param operation
+     *            the operation, e.g. {@link #SWF_VIEW}
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public void recordSuccess(JCRNodeWrapper node, String operation) throws RepositoryException {
+        boolean removed = false;
+        synchronized (this) {
+            removed = !failures.isEmpty()
+                    && failures.remove(getKey(operation, node.getIdentifier())) != null;
+        }
+        if (removed) {
+            markDirty();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the interval in milliseconds, in which the changed records are written into the file.
+     * 
+     * @param flushInterval
+     *            the interval in milliseconds, in which the changed records are written into the file; <code>0</code> to write them on
+     *            each change
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry. The delay is doubled for each further attempt.
+     * 
+     * @param initialBackoff
+     *            the delay in milliseconds before the first retry
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Sets the time in milliseconds after the last failure, after which a record expires, so that the operation is attempted again.
+     * 
+     * @param maxAge
+     *            the time in milliseconds after the last failure, after which a record expires; <code>0</code> to keep the records
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Sets the maximum number of records kept; the records with the oldest last failure are evicted first.
+     * 
+     * @param maxRecords
+     *            the maximum number of records kept; <code>0</code> for no limit
+     */
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    private void store() {
+        if (file == null) {
+            return;
+        }
+        List<Failure> snapshot = null;
+        synchronized (this) {
+            snapshot = new ArrayList<Failure>(failures.values());
+        }
+        synchronized (file) {
+            File tmp = new File(file.getPath() + ".tmp");
+            ObjectOutputStream out = null;
+            try {
+                File dir = file.getParentFile();
+                if (dir != null && !dir.isDirectory()) {
+                    dir.mkdirs();
+                }
+                out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeObject(snapshot);
+                out.close();
+                out = null;
+                FileUtils.deleteQuietly(file);
+                FileUtils.moveFile(tmp, file);
+            } catch (IOException e) {
+                logger.warn("Unable to store document operation failure records into " + file, e);
+            } finally {
+                IOUtils.closeQuietly(out);
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.FileUtils;
+import org.artofsolving.jodconverter.document.DocumentFamily;
+import org.artofsolving.jodconverter.document.DocumentFormat;
+import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.jahia.dm.utils.BinaryUtils;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.transform.DocumentConverterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Disk-backed cache of the PDF representation of documents, shared by the thumbnail and viewer services, so that a document is converted
+ * into a PDF only once. Entries are keyed by the content identity (hash) of the document binary or, if it is not available, by the node
+ * identifier and the last modification date of its content. The cache is bounded by its total size on disk and evicts the least recently
+ * used entries that are not in use. Concurrent requests for the same document share a single conversion. A {@link ConversionRequest} allows
+ * converting only a range of pages of a document, e.g. the first one for a thumbnail, which is cached separately from the full PDF.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class PDFCache implements InitializingBean {
+
+    static final class Entry {
+
+        private boolean evicted;
+
+        private final File file;
+
+        private final String key;
+
+        private final long length;
+
+        private int references;
+
+        Entry(String key, File file) {
+            super();
+            this.key = key;
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+
+    private static final String EXTENSION = ".pdf";
+
+    private static final String FILTER_DATA = "FilterData";
+
+    private static final String PDF_MIME_TYPE = "application/pdf";
+
+    private static final Logger logger = LoggerFactory.getLogger(PDFCache.class);
+
+    private File directory;
+
+    private DocumentConverterService documentConverter;
+
+    private boolean enabled = true;
+
+    private FailureCache failureCache;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final ConcurrentMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private long maxSize = 512L * 1024L * 1024L;
+
+    private DocumentMetrics metrics;
+
+    private long size;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled || directory == null) {
+            enabled = false;
+            logger.info("PDF cache is disabled. Documents will be converted on each request.");
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            enabled = false;
+            logger.warn("Unable to create PDF cache directory {}. PDF cache is disabled.",
+                    directory);
+            return;
+        }
+
+        // register the files, left from a previous run, in the order of their last usage
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+                }
+            });
+            synchronized (this) {
+                for (File file : files) {
+                    if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+                        String key = file.getName().substring(0,
+                                file.getName().length() - EXTENSION.length());
+                        Entry entry = new Entry(key, file);
+                        entries.put(key, entry);
+                        size += entry.length;
+                    } else {
+                        FileUtils.deleteQuietly(file);
+                    }
+                }
+                evict();
+            }
+        }
+
+        logger.info("PDF cache initialized in {} with {} entries ({} bytes of max. {})",
+                new Object[] { directory, entries.size(), size, maxSize });
+    }
+
+    private synchronized CachedPDF acquire(Entry entry) {
+        if (entry.evicted) {
+            return null;
+        }
+        entry.references++;
+        return new CachedPDF(this, entry, entry.file);
+    }
+
+    /**
+     * Removes all the entries, which are currently not in use, from the cache.
+     */
+    public synchronized void clear() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (entry.references == 0) {
+                iterator.remove();
+                remove(entry);
+            }
+        }
+    }
+
+    private File convert(File inFile, String contentType, ConversionRequest request)
+            throws IOException {
+        if (!request.isFull()) {
+            DocumentFormat inputFormat = documentConverter.getFormatByMimeType(contentType);
+            DocumentFormat pdfFormat = documentConverter.getFormatByMimeType(PDF_MIME_TYPE);
+            if (inputFormat != null && pdfFormat != null) {
+                File pdf = File.createTempFile("doc-pdf", EXTENSION);
+                try {
+                    documentConverter.convert(inFile, inputFormat, pdf,
+                            getExportFormat(pdfFormat, request));
+                } catch (RuntimeException e) {
+                    FileUtils.deleteQuietly(pdf);
+                    throw e;
+                }
+                return pdf;
+            }
+            logger.debug("No document format is registered for {}. Converting the full document.",
+                    contentType);
+        }
+
+        return documentConverter.convert(inFile, contentType, PDF_MIME_TYPE);
+    }
+
+    private File convert(JCRNodeWrapper fileNode, ConversionRequest request)
+            throws RepositoryException, DocumentOperationException {
+        if (documentConverter == null || !documentConverter.isEnabled()) {
+            logger.info("Document converter service is not enabled."
+                    + " Cannot convert document {} into a PDF.", fileNode.getPath());
+            return null;
+        }
+
+        if (failureCache != null && failureCache.isBlocked(fileNode, FailureCache.PDF)) {
+            return null;
+        }
+
+        File pdf = null;
+        long timer = System.currentTimeMillis();
+        File inFile = null;
+        String mimeGroup = null;
+        try {
+            String contentType = fileNode.getFileContent().getContentType();
+            mimeGroup = DocumentMetrics.getMimeGroup(contentType);
+            inFile = File.createTempFile("doc-pdf-source", null);
+            JCRContentUtils.downloadFileContent(fileNode, inFile);
+            if (metrics != null) {
+                metrics.recordStage(DocumentMetrics.STAGE_DOWNLOAD, mimeGroup, timer);
+                metrics.recordBytes(DocumentMetrics.STAGE_DOWNLOAD, DocumentMetrics.DIRECTION_IN,
+                        inFile.length());
+            }
+            long conversionTimer = System.currentTimeMillis();
+            pdf = convert(inFile, contentType, request);
+            if (pdf != null && pdf.length() == 0) {
+                FileUtils.deleteQuietly(pdf);
+                pdf = null;
+            }
+            if (metrics != null) {
+                metrics.recordStage(DocumentMetrics.STAGE_OFFICE_TO_PDF, mimeGroup, conversionTimer);
+                if (pdf != null) {
+                    metrics.recordBytes(DocumentMetrics.STAGE_OFFICE_TO_PDF,
+                            DocumentMetrics.DIRECTION_IN, inFile.length());
+                    metrics.recordBytes(DocumentMetrics.STAGE_OFFICE_TO_PDF,
+                            DocumentMetrics.DIRECTION_OUT, pdf.length());
+                }
+                metrics.recordOutcome(FailureCache.PDF, mimeGroup,
+                        pdf != null ? DocumentMetrics.OUTCOME_SUCCESS : DocumentMetrics.OUTCOME_FAILURE);
+            }
+            if (failureCache != null) {
+                if (pdf != null) {
+                    failureCache.recordSuccess(fileNode, FailureCache.PDF);
+                } else {
+                    failureCache.recordFailure(fileNode, FailureCache.PDF, null);
+                }
+            }
+        } catch (IOException e) {
+            throw new DocumentOperationException("Error occurred downloading the source document "
+                    + fileNode.getPath() + " into a temporary file " + inFile
+                    + " for converting it into a PDF", e);
+        } catch (RuntimeException e) {
+            if (failureCache != null) {
+                failureCache.recordFailure(fileNode, FailureCache.PDF, e);
+            }
+            if (metrics != null) {
+                metrics.recordOutcome(FailureCache.PDF, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+            }
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(inFile);
+
+            if (pdf != null && logger.isDebugEnabled()) {
+                logger.debug("Converted document {} ({}) into a PDF file in {} ms", new Object[] {
+                        fileNode.getPath(), request, System.currentTimeMillis() - timer });
+            }
+        }
+
+        return pdf;
+    }
+
+    private synchronized void evict() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); size > maxSize
+                && iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (entry.references == 0) {
+                iterator.remove();
+                remove(entry);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Evicted PDF {} from the cache", entry.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the specified PDF output format with the LibreOffice PDF export filter options of the conversion request merged into
+     * its <code>FilterData</code> for every document family.
+     */
+    @SuppressWarnings("unchecked")
+    private static DocumentFormat getExportFormat(DocumentFormat pdfFormat,
+            ConversionRequest request) {
+        DocumentFormat format = new DocumentFormat(pdfFormat.getName(), pdfFormat.getExtension(),
+                pdfFormat.getMediaType());
+        for (DocumentFamily family : DocumentFamily.values()) {
+            Map<String, ?> storeProperties = pdfFormat.getStoreProperties(family);
+            if (storeProperties == null) {
+                continue;
+            }
+            Map<String, Object> properties = new HashMap<String, Object>(storeProperties);
+            Map<String, Object> filterData = new HashMap<String, Object>();
+            Object existing = properties.get(FILTER_DATA);
+            if (existing instanceof Map) {
+                filterData.putAll((Map<String, Object>) existing);
+            }
+            filterData.putAll(request.getFilterData());
+            properties.put(FILTER_DATA, filterData);
+            format.setStoreProperties(family, properties);
+        }
+        return format;
+    }
+
+    protected String getKey(JCRNodeWrapper fileNode) throws RepositoryException {
+        return BinaryUtils.getContentKey(fileNode);
+    }
+
+    /**
+     * Returns the PDF representation of the specified document node, converting the document if it is not present in the cache yet. The
+     * returned handle has to be closed once the PDF file is no longer needed.
+     * 
+     * @param fileNode
+     *            the document node to get the PDF for
+     * @return the handle to the PDF representation of the document or <code>null</code> if the document cannot be converted, e.g. the
+     *         document converter service is disabled
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws DocumentOperationException
+     *             in case of a document conversion error
+     */
+    public CachedPDF getPDF(JCRNodeWrapper fileNode) throws RepositoryException,
+            DocumentOperationException {
+        return getPDF(fileNode, ConversionRequest.FULL);
+    }
+
+    /**
+     * Returns the PDF representation of the requested pages of the specified document node, converting the document if it is not present
+     * in the cache yet. If the full PDF of the document is already cached and the requested range starts with the first page, the full PDF
+     * is returned instead, so the caller can only rely on the requested pages being present, starting with the first PDF page. The
+     * returned handle has to be closed once the PDF file is no longer needed.
+     * 
+     * @param fileNode
+     *            the document node to get the PDF for
+     * @param request
+     *            the pages and the image resolution to convert the document with
+     * @return the handle to the PDF representation of the document or <code>null</code> if the document cannot be converted, e.g. the
+     *         document converter service is disabled
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws DocumentOperationException
+     *             in case of a document conversion error
+     */
+    public CachedPDF getPDF(final JCRNodeWrapper fileNode, final ConversionRequest request)
+            throws RepositoryException, DocumentOperationException {
+        if (!enabled) {
+            File pdf = convert(fileNode, request);
+            return pdf != null ? new CachedPDF(this, null, pdf) : null;
+        }
+
+        String contentKey = getKey(fileNode);
+        if (!request.isFull() && request.getFirstPage() == 1) {
+            // the full PDF, if already there, serves any range, starting with the first page
+            Entry full;
+            synchronized (this) {
+                full = entries.get(contentKey);
+            }
+            CachedPDF pdf = full != null && full.file.isFile() ? acquire(full) : null;
+            if (pdf != null) {
+                return pdf;
+            }
+        }
+
+        final String key = contentKey + request.getKeySuffix();
+
+        CachedPDF pdf = null;
+        while (pdf == null) {
+            Entry entry = null;
+            boolean pinned = false;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null && entry.references == 0 && !entry.file.isFile()) {
+                    // the file was removed from outside
+                    entries.remove(key);
+                    remove(entry);
+                    entry = null;
+                }
+            }
+            if (entry == null) {
+                FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+                    public Entry call() throws Exception {
+                        return load(key, fileNode, request);
+                    }
+                });
+                FutureTask<Entry> existing = inFlight.putIfAbsent(key, task);
+                if (existing == null) {
+                    existing = task;
+                    // the loaded entry is already pinned for this caller
+                    pinned = true;
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.remove(key, task);
+                    }
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("Waiting for the PDF conversion of the document {}",
+                            fileNode.getPath());
+                }
+                entry = waitFor(existing, fileNode);
+                if (entry == null) {
+                    return null;
+                }
+            }
+            pdf = pinned ? new CachedPDF(this, entry, entry.file) : acquire(entry);
+        }
+
+        return pdf;
+    }
+
+    /**
+     * Converts the document and registers the PDF in the cache. The returned entry is pinned (referenced) for the caller, so that it
+     * cannot be evicted before it is used, even if it alone exceeds the maximum cache size; it is evicted once released then.
+     */
+    private Entry load(String key, JCRNodeWrapper fileNode, ConversionRequest request)
+            throws RepositoryException, DocumentOperationException, IOException {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.references++;
+                return entry;
+            }
+        }
+
+        File pdf = convert(fileNode, request);
+        if (pdf == null) {
+            return null;
+        }
+
+        File target = new File(directory, key + EXTENSION);
+        FileUtils.deleteQuietly(target);
+        try {
+            FileUtils.moveFile(pdf, target);
+        } finally {
+            FileUtils.deleteQuietly(pdf);
+        }
+
+        Entry entry = new Entry(key, target);
+        synchronized (this) {
+            entries.put(key, entry);
+            size += entry.length;
+            entry.references++;
+            evict();
+        }
+
+        return entry;
+    }
+
+    synchronized void release(Entry entry, File file) {
+        if (entry == null) {
+            // not backed by the cache
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+        entry.references--;
+        if (entry.references == 0) {
+            entry.file.setLastModified(System.currentTimeMillis());
+            evict();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entry.evicted = true;
+        size -= entry.length;
+        FileUtils.deleteQuietly(entry.file);
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setDocumentConverter(DocumentConverterService documentConverter) {
+        this.documentConverter = documentConverter;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setFailureCache(FailureCache failureCache) {
+        this.failureCache = failureCache;
+    }
+
+    /**
+     * Sets the maximum total size of the cached PDF files in bytes.
+     * 
+     * @param maxSize
+     *            the maximum total size of the cached PDF files in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setMetrics(DocumentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private Entry waitFor(FutureTask<Entry> task, JCRNodeWrapper fileNode)
+            throws RepositoryException, DocumentOperationException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while waiting for the conversion of "
+                    + fileNode.getPath() + " into a PDF", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentOperationException) {
+                throw (DocumentOperationException) cause;
+            } else if (cause instanceof RepositoryException) {
+                throw (RepositoryException) cause;
+            }
+            throw new DocumentOperationException("Error converting document " + fileNode.getPath()
+                    + " into a PDF", cause);
+        }
+    }
+}
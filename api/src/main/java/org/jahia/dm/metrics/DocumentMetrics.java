@@ -0,0 +1,430 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jahia.services.content.JCRContentUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects metrics of the document operations: per-stage timers, operation counters by MIME type group and outcome, processed bytes and
+ * gauges for queued and in-flight operations. The values are kept in memory and exposed over JMX; additional {@link MetricsRegistry}
+ * implementations can be plugged in to forward them into a monitoring system.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentMetrics implements DocumentMetricsMBean {
+
+    private static class GaugeEntry {
+        final Gauge gauge;
+        final String name;
+        final String[] tags;
+
+        GaugeEntry(String name, Gauge gauge, String[] tags) {
+            super();
+            this.name = name;
+            this.gauge = gauge;
+            this.tags = tags;
+        }
+    }
+
+    private static class TimerStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+
+        void record(long duration) {
+            count.incrementAndGet();
+            total.addAndGet(duration);
+            long current;
+            while (duration > (current = max.get()) && !max.compareAndSet(current, duration)) {
+                // retry
+            }
+        }
+
+        @Override
+        public String toString() {
+            long c = count.get();
+            long t = total.get();
+            return "count=" + c + ", total=" + t + " ms, mean=" + (c > 0 ? t / c : 0) + " ms, max=" + max.get() + " ms";
+        }
+    }
+
+    public static final String BYTES = "dm.bytes";
+
+    public static final String DIRECTION_IN = "in";
+
+    public static final String DIRECTION_OUT = "out";
+
+    public static final String EXECUTOR_ACTIVE = "dm.executor.active";
+
+    public static final String EXECUTOR_QUEUED = "dm.executor.queued";
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentMetrics.class);
+
+    private static final String[] MIME_GROUPS = { "pdf", "word", "rtf", "excel", "powerpoint", "openoffice", "image",
+            "video", "text" };
+
+    public static final String OPERATIONS = "dm.operations";
+
+    public static final String OUTCOME_BLOCKED = "blocked";
+
+    public static final String OUTCOME_FAILURE = "failure";
+
+    public static final String OUTCOME_PASS_THROUGH = "passThrough";
+
+    public static final String OUTCOME_SUCCESS = "success";
+
+    public static final String STAGE = "dm.stage";
+
+    public static final String STAGE_DOWNLOAD = "download";
+
+    public static final String STAGE_EMBEDDED_PREVIEW = "embeddedPreview";
+
+    public static final String STAGE_ENCODE = "encode";
+
+    public static final String STAGE_OFFICE_TO_PDF = "officeToPdf";
+
+    public static final String STAGE_PROCESS = "process";
+
+    public static final String STAGE_RASTERIZE = "rasterize";
+
+    public static final String STAGE_RESIZE = "resize";
+
+    public static final String STAGE_SAVE = "save";
+
+    public static final String STAGE_STORE = "store";
+
+    /**
+     * Returns the MIME type group of the specified content type, used as a tag value for the metrics.
+     * 
+     * @param contentType
+     *            the content type to be checked
+     * @return the MIME type group of the specified content type or <code>other</code> if it does not belong to a known group
+     */
+    public static String getMimeGroup(String contentType) {
+        if (contentType != null) {
+            for (String group : MIME_GROUPS) {
+                if (JCRContentUtils.isMimeTypeGroup(contentType, group)) {
+                    return group;
+                }
+            }
+        }
+        return "other";
+    }
+
+    private static String key(String name, String[] tags) {
+        if (tags == null || tags.length == 0) {
+            return name;
+        }
+        StringBuilder key = new StringBuilder(64).append(name).append('{');
+        for (int i = 0; i + 1 < tags.length; i += 2) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(tags[i]).append('=').append(tags[i + 1]);
+        }
+        return key.append('}').toString();
+    }
+
+    private ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private boolean enabled = true;
+
+    private List<GaugeEntry> gauges = new CopyOnWriteArrayList<GaugeEntry>();
+
+    private List<MetricsRegistry> registries = new CopyOnWriteArrayList<MetricsRegistry>();
+
+    private ConcurrentMap<String, TimerStats> timers = new ConcurrentHashMap<String, TimerStats>();
+
+    /**
+     * Plugs in an additional metrics registry. Already registered gauges are propagated to it.
+     * 
+     * @param registry
+     *            the registry to be added
+     * @param properties
+     *            the service properties
+     */
+    public void bindRegistry(MetricsRegistry registry, Map<?, ?> properties) {
+        if (registry == null || registries.contains(registry)) {
+            return;
+        }
+        registries.add(registry);
+        for (GaugeEntry entry : gauges) {
+            registry.registerGauge(entry.name, entry.gauge, entry.tags);
+        }
+        logger.info("Metrics registry {} bound", registry);
+    }
+
+    public String[] getCounters() {
+        SortedMap<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), String.valueOf(counter.getValue().get()));
+        }
+        return describe(values);
+    }
+
+    public String[] getGauges() {
+        SortedMap<String, String> values = new TreeMap<String, String>();
+        for (GaugeEntry entry : gauges) {
+            values.put(key(entry.name, entry.tags), String.valueOf(entry.gauge.getValue()));
+        }
+        return describe(values);
+    }
+
+    public String[] getTimers() {
+        SortedMap<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, TimerStats> timer : timers.entrySet()) {
+            values.put(timer.getKey(), timer.getValue().toString());
+        }
+        return describe(values);
+    }
+
+    private String[] describe(SortedMap<String, String> values) {
+        List<String> result = new ArrayList<String>(values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            result.add(value.getKey() + ": " + value.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Increments the counter with the specified name and tags.
+     * 
+     * @param name
+     *            the metric name
+     * @param amount
+     *            the amount to increment by
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    public void increment(String name, long amount, String... tags) {
+        if (!enabled) {
+            return;
+        }
+        String key = key(name, tags);
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong existing = counters.putIfAbsent(key, counter = new AtomicLong());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.addAndGet(amount);
+        for (MetricsRegistry registry : registries) {
+            try {
+                registry.increment(name, amount, tags);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to forward counter " + name + " to registry " + registry, e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the number of bytes read or written by the specified stage.
+     * 
+     * @param stage
+     *            the processing stage
+     * @param direction
+     *            {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+     * @param bytes
+     *            the number of bytes
+     */
+    public void recordBytes(String stage, String direction, long bytes) {
+        if (bytes > 0) {
+            increment(BYTES, bytes, "stage", stage, "direction", direction);
+        }
+    }
+
+    /**
+     * Counts the outcome of a document operation.
+     * 
+     * @param operation
+     *            the operation type, e.g. <code>thumbnail</code>
+     * @param mimeGroup
+     *            the MIME type group of the document (see {@link #getMimeGroup(String)})
+     * @param outcome
+     *            the outcome of the operation, e.g. {@link #OUTCOME_SUCCESS}
+     */
+    public void recordOutcome(String operation, String mimeGroup, String outcome) {
+        increment(OPERATIONS, 1, "operation", operation, "mime", mimeGroup, "outcome", outcome);
+    }
+
+    /**
+     * Records the duration of an external process, which started at the specified time.
+     * 
+     * @param tool
+     *            the name of the external tool, e.g. <code>ffmpeg</code>
+     * @param startTime
+     *            the start timestamp of the process in milliseconds
+     */
+    public void recordProcess(String tool, long startTime) {
+        recordTime(STAGE, System.currentTimeMillis() - startTime, "stage", STAGE_PROCESS, "tool", tool);
+    }
+
+    /**
+     * Records the duration of a processing stage, which started at the specified time.
+     * 
+     * @param stage
+     *            the processing stage, e.g. {@link #STAGE_RASTERIZE}
+     * @param mimeGroup
+     *            the MIME type group of the document (see {@link #getMimeGroup(String)}) or <code>null</code> if the stage is not
+     *            related to a single document
+     * @param startTime
+     *            the start timestamp of the stage in milliseconds
+     */
+    public void recordStage(String stage, String mimeGroup, long startTime) {
+        long duration = System.currentTimeMillis() - startTime;
+        if (mimeGroup != null) {
+            recordTime(STAGE, duration, "stage", stage, "mime", mimeGroup);
+        } else {
+            recordTime(STAGE, duration, "stage", stage);
+        }
+    }
+
+    /**
+     * Records the duration of an operation into the timer with the specified name and tags.
+     * 
+     * @param name
+     *            the metric name
+     * @param durationMillis
+     *            the duration in milliseconds
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    public void recordTime(String name, long durationMillis, String... tags) {
+        if (!enabled) {
+            return;
+        }
+        String key = key(name, tags);
+        TimerStats stats = timers.get(key);
+        if (stats == null) {
+            TimerStats existing = timers.putIfAbsent(key, stats = new TimerStats());
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(durationMillis);
+        for (MetricsRegistry registry : registries) {
+            try {
+                registry.recordTime(name, durationMillis, tags);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to forward timer " + name + " to registry " + registry, e);
+            }
+        }
+    }
+
+    /**
+     * Registers a gauge with the specified name and tags. An already registered gauge with the same name and tags is replaced.
+     * 
+     * @param name
+     *            the metric name
+     * @param gauge
+     *            the gauge to sample
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    public void registerGauge(String name, Gauge gauge, String... tags) {
+        String key = key(name, tags);
+        for (GaugeEntry entry : gauges) {
+            if (key.equals(key(entry.name, entry.tags))) {
+                gauges.remove(entry);
+            }
+        }
+        gauges.add(new GaugeEntry(name, gauge, tags));
+        for (MetricsRegistry registry : registries) {
+            registry.registerGauge(name, gauge, tags);
+        }
+    }
+
+    public void reset() {
+        counters.clear();
+        timers.clear();
+        logger.info("Document operation metrics reset");
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Sets the metrics registries to be plugged in.
+     * 
+     * @param registries
+     *            the metrics registries to be plugged in
+     */
+    public void setRegistries(List<MetricsRegistry> registries) {
+        for (MetricsRegistry registry : registries) {
+            bindRegistry(registry, null);
+        }
+    }
+
+    /**
+     * Unplugs the specified metrics registry.
+     * 
+     * @param registry
+     *            the registry to be removed
+     * @param properties
+     *            the service properties
+     */
+    public void unbindRegistry(MetricsRegistry registry, Map<?, ?> properties) {
+        if (registry != null && registries.remove(registry)) {
+            logger.info("Metrics registry {} unbound", registry);
+        }
+    }
+}
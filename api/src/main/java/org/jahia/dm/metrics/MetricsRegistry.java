@@ -0,0 +1,89 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.metrics;
+
+/**
+ * Pluggable registry, which receives the document operation metrics. Implementations can be published as OSGi services to bridge the
+ * metrics into a monitoring system. Tags are passed as key/value pairs.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Increments the counter with the specified name and tags.
+     * 
+     * @param name
+     *            the metric name
+     * @param amount
+     *            the amount to increment by
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    void increment(String name, long amount, String... tags);
+
+    /**
+     * Records the duration of an operation into the timer with the specified name and tags.
+     * 
+     * @param name
+     *            the metric name
+     * @param durationMillis
+     *            the duration in milliseconds
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    void recordTime(String name, long durationMillis, String... tags);
+
+    /**
+     * Registers a gauge with the specified name and tags.
+     * 
+     * @param name
+     *            the metric name
+     * @param gauge
+     *            the gauge to sample
+     * @param tags
+     *            the tags as key/value pairs
+     */
+    void registerGauge(String name, Gauge gauge, String... tags);
+}
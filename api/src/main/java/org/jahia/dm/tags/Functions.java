@@ -50,6 +50,9 @@ import javax.jcr.RepositoryException;
 import javax.jcr.security.Privilege;
 
 import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperation;
+import org.jahia.dm.DocumentOperationExecutor;
+import org.jahia.dm.cache.FailureCache;
 import org.jahia.dm.viewer.DocumentViewerService;
 import org.jahia.services.content.JCRCallback;
 import org.jahia.services.content.JCRContentUtils;
@@ -64,7 +67,126 @@ import org.jahia.services.content.JCRTemplate;
  */
 public final class Functions {
 
+    private static final String PAGES_VIEW = "pagesView";
+
+    private static final String PDF_VIEW = "pdfView";
+
+    /**
+     * Queues the creation of the SWF, PDF or page images view for the document, collapsing concurrent requests for the same node.
+     * 
+     * @param documentNode
+     *            the document node
+     * @param view
+     *            {@link #PDF_VIEW} to create the PDF view, {@link #PAGES_VIEW} for the page images view or <code>null</code> for the SWF
+     *            view
+     * @return <code>true</code> if the creation of the view is queued or already running; <code>false</code> if the executor is not
+     *         available or its queue is full, so that the view has to be created synchronously
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    private static boolean enqueueView(JCRNodeWrapper documentNode, final String view)
+            throws RepositoryException {
+        DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+        if (executor == null || !executor.isEnabled()) {
+            return false;
+        }
+        // the views use the same keys as the view creation queued by the viewer rules
+        return executor.submitIfAbsent(DocumentOperationExecutor.VIEWER, documentNode, view,
+                new DocumentOperation() {
+                    public void execute(JCRNodeWrapper node) throws Exception {
+                        DocumentViewerService viewerService = getViewerService();
+                        if (viewerService == null || !viewerService.isEnabled()) {
+                            return;
+                        }
+                        if (PDF_VIEW.equals(view)) {
+                            viewerService.createPdfViewForNode(node);
+                        } else if (PAGES_VIEW.equals(view)) {
+                            viewerService.createPagesViewForNode(node);
+                        } else {
+                            viewerService.createViewForNode(node);
+                        }
+                    }
+                }, DocumentOperationExecutor.Priority.INTERACTIVE);
+    }
+
+    private static String getPageImageUrl(JCRNodeWrapper documentNode, String name)
+            throws RepositoryException {
+        if (documentNode.isNodeType("jmix:pagesDocumentView")
+                && documentNode.hasNode(PAGES_VIEW + "/" + name)) {
+            String docUrl = documentNode.getUrl();
+            return docUrl + (docUrl.contains("?") ? "&amp;t=" : "?t=") + PAGES_VIEW + "/" + name;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the URL of the image of the specified page in the page images view of the document or <code>null</code> if the page is not
+     * available (yet).
+     * 
+     * @param documentNode
+     *            the document node to be viewed
+     * @param pageNumber
+     *            the page number, starting with <code>1</code>
+     * @return the URL of the image of the specified page or <code>null</code> if the page is not available (yet)
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getPageImageUrl(JCRNodeWrapper documentNode, int pageNumber)
+            throws RepositoryException {
+        return getPageImageUrl(documentNode, "page-" + pageNumber);
+    }
+
+    /**
+     * Returns the URL of the JSON manifest of the page images view for the document or <code>null</code> if the view is not available yet.
+     * The manifest contains the total number of pages, the number of pages rendered so far and their dimensions; the page images can be
+     * requested as soon as they are listed there. If the view does not exist, is obsolete or was not completed, its creation is queued
+     * and the method returns immediately. If the document operation executor is not available or its queue is full, the view is created
+     * synchronously.
+     * 
+     * @param documentNode
+     *            the document node to be viewed
+     * @return the URL of the JSON manifest of the page images view for the document or <code>null</code> if the view is not available yet
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getPagesViewUrlAsync(final JCRNodeWrapper documentNode)
+            throws RepositoryException {
+        String url = getPageImageUrl(documentNode, "manifest");
+
+        DocumentViewerService viewerService = getViewerService();
+        if (viewerService != null && viewerService.isPagesViewEnabled()
+                && viewerService.canHandle(documentNode)
+                && (url == null || isPagesViewObsolete(documentNode))
+                && !isBlocked(documentNode, FailureCache.PAGES_VIEW)
+                && !enqueueView(documentNode, PAGES_VIEW)) {
+            if (!documentNode.hasPermission(Privilege.JCR_MODIFY_PROPERTIES)) {
+                JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                        documentNode.getSession().getWorkspace().getName(),
+                        documentNode.getSession().getLocale(), new JCRCallback<Object>() {
+                            public Object doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                JCRNodeWrapper systemDocumentNode = session
+                                        .getNodeByIdentifier(documentNode.getIdentifier());
+                                getViewerService().createPagesViewForNode(systemDocumentNode);
+                                session.save();
+                                return null;
+                            }
+                        });
+            } else {
+                viewerService.createPagesViewForNode(documentNode);
+            }
+            url = getPageImageUrl(documentNode, "manifest");
+        }
+
+        return url;
+    }
+
     private static String getPdfViewUrl(JCRNodeWrapper documentNode) throws RepositoryException {
+        if (isPdf(documentNode)) {
+            // pass-through: the document itself is served as its PDF view
+            return documentNode.getUrl();
+        }
         if (documentNode.isNodeType("jmix:pdfDocumentView") && documentNode.hasNode("pdfView")) {
             String docUrl = documentNode.getUrl();
             return docUrl + (docUrl.contains("?") ? "&amp;t=pdfView" : "?t=pdfView");
@@ -75,7 +197,8 @@ public final class Functions {
 
     /**
      * Returns the URL of the PDF view for the document or <code>null</code> is the view is not available. If the
-     * <code>createViewIfNotExists</code> is set to true also forces the creation of the PDF view
+     * <code>createViewIfNotExists</code> is set to true also forces the creation of the PDF view. For a document, which is already a PDF,
+     * the URL of the document itself is returned.
      * 
      * @param documentNode
      *            the document node to be viewed
@@ -90,7 +213,8 @@ public final class Functions {
         String url = getPdfViewUrl(documentNode);
 
         if (createViewIfNotExists && isViewerEnabled()
-                && (url == null || isPdfViewObsolete(documentNode))) {
+                && (url == null || isPdfViewObsolete(documentNode))
+                && !isBlocked(documentNode, FailureCache.PDF_VIEW)) {
             final DocumentViewerService viewerService = getViewerService();
             if (!documentNode.hasPermission(Privilege.JCR_MODIFY_PROPERTIES)) {
                 JCRTemplate.getInstance().doExecuteWithSystemSession(null,
@@ -115,6 +239,29 @@ public final class Functions {
         return url;
     }
 
+    /**
+     * Returns the URL of the PDF view for the document or <code>null</code> if the view is not available yet. If the view does not exist or
+     * is obsolete, its creation is queued and the method returns immediately with the current URL (<code>null</code> if there is no view
+     * yet). Use {@link #isViewPending(JCRNodeWrapper)} to check if the view is being created. If the document operation executor is not
+     * available or its queue is full, the view is created synchronously.
+     * 
+     * @param documentNode
+     *            the document node to be viewed
+     * @return the URL of the PDF view for the document or <code>null</code> if the view is not available yet
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getPdfViewUrlAsync(JCRNodeWrapper documentNode) throws RepositoryException {
+        String url = getPdfViewUrl(documentNode);
+
+        if (isViewerEnabled() && (url == null || isPdfViewObsolete(documentNode))
+                && !isBlocked(documentNode, FailureCache.PDF_VIEW) && !enqueueView(documentNode, PDF_VIEW)) {
+            url = getPdfViewUrl(documentNode, true);
+        }
+
+        return url;
+    }
+
     private static DocumentViewerService getViewerService() {
         return DocumentManagement.getInstance().getDocumentViewerService();
     }
@@ -145,7 +292,8 @@ public final class Functions {
         String url = getViewUrl(documentNode);
 
         if (createViewIfNotExists && isViewable(documentNode)
-                && (url == null || isViewObsolete(documentNode))) {
+                && (url == null || isViewObsolete(documentNode))
+                && !isBlocked(documentNode, FailureCache.SWF_VIEW)) {
             final DocumentViewerService documentViewService = getViewerService();
             if (!documentNode.hasPermission(Privilege.JCR_MODIFY_PROPERTIES)) {
                 JCRTemplate.getInstance().doExecuteWithSystemSession(null,
@@ -170,6 +318,34 @@ public final class Functions {
         return url;
     }
 
+    /**
+     * Returns the URL of the SWF view for the document or <code>null</code> if the view is not available yet. If the view does not exist or
+     * is obsolete, its creation is queued and the method returns immediately with the current URL (<code>null</code> if there is no view
+     * yet). Use {@link #isViewPending(JCRNodeWrapper)} to check if the view is being created. If the document operation executor is not
+     * available or its queue is full, the view is created synchronously.
+     * 
+     * @param documentNode
+     *            the document node to be viewed
+     * @return the URL of the SWF view for the document or <code>null</code> if the view is not available yet
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static String getViewUrlAsync(JCRNodeWrapper documentNode) throws RepositoryException {
+        String url = getViewUrl(documentNode);
+
+        if (isViewable(documentNode) && (url == null || isViewObsolete(documentNode))
+                && !isBlocked(documentNode, FailureCache.SWF_VIEW) && !enqueueView(documentNode, null)) {
+            url = getViewUrl(documentNode, true);
+        }
+
+        return url;
+    }
+
+    private static boolean isBlocked(JCRNodeWrapper documentNode, String operation)
+            throws RepositoryException {
+        return DocumentManagement.getInstance().isOperationBlocked(documentNode, operation);
+    }
+
     /**
      * Checks if the document converter service is running.
      * 
@@ -189,6 +365,25 @@ public final class Functions {
                 && JCRContentUtils.isMimeTypeGroup(node.getFileContent().getContentType(), "pdf");
     }
 
+    /**
+     * Checks if the page images view is older than the document or was left incomplete by an interrupted rendering.
+     */
+    private static boolean isPagesViewObsolete(JCRNodeWrapper documentNode)
+            throws PathNotFoundException, RepositoryException {
+        if (!documentNode.hasNode(PAGES_VIEW)) {
+            return false;
+        }
+        JCRNodeWrapper viewNode = documentNode.getNode(PAGES_VIEW);
+        if (viewNode.hasProperty("j:complete") && !viewNode.getProperty("j:complete").getBoolean()
+                && !isViewPending(documentNode)) {
+            return true;
+        }
+        Date docDate = documentNode.getNode("jcr:content").getLastModifiedAsDate();
+        Date viewDate = docDate != null ? viewNode.getLastModifiedAsDate() : null;
+
+        return docDate != null && viewDate != null && docDate.after(viewDate);
+    }
+
     private static boolean isPdfViewObsolete(JCRNodeWrapper documentNode)
             throws PathNotFoundException, RepositoryException {
         Date docDate = documentNode.getNode("jcr:content").getLastModifiedAsDate();
@@ -235,6 +430,24 @@ public final class Functions {
         return DocumentManagement.getInstance().isDocumentViewerServiceEnabled();
     }
 
+    /**
+     * Checks if the creation of the SWF, PDF or page images view for the document is queued or in progress.
+     * 
+     * @param documentNode
+     *            the document node
+     * @return <code>true</code> if the creation of the SWF, PDF or page images view for the document is queued or in progress
+     * @throws RepositoryException
+     *             in case of a JCR exception
+     */
+    public static boolean isViewPending(JCRNodeWrapper documentNode) throws RepositoryException {
+        DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+
+        return executor != null
+                && (executor.isPending(DocumentOperationExecutor.VIEWER, documentNode, null)
+                        || executor.isPending(DocumentOperationExecutor.VIEWER, documentNode, PDF_VIEW) || executor
+                            .isPending(DocumentOperationExecutor.VIEWER, documentNode, PAGES_VIEW));
+    }
+
     private static boolean isViewObsolete(JCRNodeWrapper documentNode)
             throws PathNotFoundException, RepositoryException {
         Date docDate = documentNode.getNode("jcr:content").getLastModifiedAsDate();
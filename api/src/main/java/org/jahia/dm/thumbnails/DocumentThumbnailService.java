@@ -46,6 +46,7 @@ package org.jahia.dm.thumbnails;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.InputStream;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 
@@ -91,6 +92,25 @@ public interface DocumentThumbnailService extends Serviceable {
     boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName, int thumbnailSize)
             throws RepositoryException, DocumentOperationException;
 
+    /**
+     * Generates several thumbnails for the specified document node at once. The first page of the document is rendered only once and
+     * each of the requested sizes is produced from that single image.
+     * 
+     * @param fileNode
+     *            the node to generate thumbnails for
+     * @param thumbnails
+     *            the thumbnails to generate with the name of the thumbnail node as a key and the size of the generated thumbnail as a
+     *            value
+     * @return <code>true</code> if all the thumbnails were successfully created; returns <code>false</code> if e.g. the service is
+     *         disabled or the document cannot be converted to the required format
+     * @throws RepositoryException
+     *             in case of repository operation error
+     * @throws DocumentOperationException
+     *             in case of a document transformation error
+     */
+    boolean createThumbnailsForNode(JCRNodeWrapper fileNode, Map<String, Integer> thumbnails)
+            throws RepositoryException, DocumentOperationException;
+
     /**
      * Generates an image for the first page of the specified document.
      * 
@@ -105,6 +125,25 @@ public interface DocumentThumbnailService extends Serviceable {
     BufferedImage getImageOfFirstPageForNode(JCRNodeWrapper fileNode) throws RepositoryException,
             DocumentOperationException;
 
+    /**
+     * Generates an image for the first page of the specified document, rendered directly at a size that fits into the provided target
+     * box.
+     * 
+     * @param fileNode
+     *            the JCR file node to generate image for
+     * @param maxWidth
+     *            the maximum width of the generated image in pixels
+     * @param maxHeight
+     *            the maximum height of the generated image in pixels
+     * @return the generated image for the first page
+     * @throws RepositoryException
+     *             in case of a JCR operation error
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs
+     */
+    BufferedImage getImageOfFirstPageForNode(JCRNodeWrapper fileNode, int maxWidth, int maxHeight)
+            throws RepositoryException, DocumentOperationException;
+
     /**
      * Generates an image for the first page of the specified document.
      * 
@@ -118,6 +157,24 @@ public interface DocumentThumbnailService extends Serviceable {
      */
     BufferedImage getImageOfPage(File pdfFile, int pageNumber) throws DocumentOperationException;
 
+    /**
+     * Generates an image for the specified page of the document, rendered directly at a size that fits into the provided target box.
+     * 
+     * @param pdfFile
+     *            the PDF file to generate image for
+     * @param pageNumber
+     *            the page number to generate the image for
+     * @param maxWidth
+     *            the maximum width of the generated image in pixels
+     * @param maxHeight
+     *            the maximum height of the generated image in pixels
+     * @return the generated image for the specified page
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs
+     */
+    BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException;
+
     /**
      * Generates an image for the first page of the specified document.
      * 
@@ -131,4 +188,38 @@ public interface DocumentThumbnailService extends Serviceable {
      */
     BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws DocumentOperationException;
+
+    /**
+     * Renders the pages of the specified range of the document, each fitting into the provided target box, and passes them to the
+     * consumer as soon as they are rendered. The document is parsed once and the pages are rendered in parallel.
+     * 
+     * @param pdfFile
+     *            the PDF file to generate images for
+     * @param firstPage
+     *            the 0-based number of the first page to render
+     * @param lastPage
+     *            the 0-based number of the last page to render (inclusive); a negative value means the last page of the document
+     * @param maxWidth
+     *            the maximum width of the generated images in pixels
+     * @param maxHeight
+     *            the maximum height of the generated images in pixels
+     * @param consumer
+     *            the consumer of the rendered page images
+     * @return the number of rendered pages
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs or the consumer fails
+     */
+    int getImagesOfPages(File pdfFile, int firstPage, int lastPage, int maxWidth, int maxHeight,
+            PageImageConsumer consumer) throws DocumentOperationException;
+
+    /**
+     * Returns the number of pages in the specified PDF document.
+     * 
+     * @param pdfFile
+     *            the PDF file to get the number of pages for
+     * @return the number of pages in the specified PDF document
+     * @throws DocumentOperationException
+     *             if the document cannot be read
+     */
+    int getNumberOfPages(File pdfFile) throws DocumentOperationException;
 }
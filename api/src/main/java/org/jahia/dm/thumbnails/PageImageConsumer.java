@@ -0,0 +1,69 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.thumbnails;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the page images of a document as soon as they are rendered by a batch rendering call.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public interface PageImageConsumer {
+
+    /**
+     * Called for each rendered page. The method is called from the render threads, possibly concurrently and not in the page order, so
+     * implementations have to be thread-safe. The image is released after the method returns, and its pixel buffer may be reused for
+     * another page, so implementations must not keep a reference to it. An exception, thrown by this method, aborts the rendering of the
+     * remaining pages.
+     * 
+     * @param pageNumber
+     *            the 0-based number of the rendered page
+     * @param image
+     *            the rendered page image
+     * @throws Exception
+     *             in case of a processing error
+     */
+    void pageRendered(int pageNumber, BufferedImage image) throws Exception;
+}
@@ -94,6 +94,28 @@ public interface VideoThumbnailService extends Serviceable {
             int offsetSeconds, String thumbnailSize) throws RepositoryException,
             DocumentOperationException;
 
+    /**
+     * Generates thumbnails for the specified video file node, taking the frame at the specified position.
+     * 
+     * @param fileNode
+     *            the node to generate thumbnails for
+     * @param thumbnailName
+     *            the name of the thumbnail node
+     * @param position
+     *            the position of the frame either in seconds (e.g. <code>12.5</code>) or as a percentage of the video duration (e.g.
+     *            <code>10%</code>). Positions past the end of the video are clamped.
+     * @param thumbnailSize
+     *            the size of the generated thumbnail (e.g. 640x480)
+     * @return <code>true</code> if the thumbnail was successfully created; returns <code>false</code> if e.g. the service is disabled or
+     *         the document cannot be converted to the required format
+     * @throws RepositoryException
+     *             in case of repository operation error
+     * @throws DocumentOperationException
+     *             in case of a video transformation error
+     */
+    boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName, String position,
+            String thumbnailSize) throws RepositoryException, DocumentOperationException;
+
     /**
      * Generates a JPG thumbnail image for the specified video file.
      * 
@@ -113,6 +135,25 @@ public interface VideoThumbnailService extends Serviceable {
     boolean generateThumbnail(File videoFile, File outputFile, int offsetSeconds, String size)
             throws DocumentOperationException;
 
+    /**
+     * Generates a JPG thumbnail image for the specified video file, taking the frame at the specified position.
+     * 
+     * @param videoFile
+     *            the video file to generate thumbnail for
+     * @param outputFile
+     *            the target thumbnail file descriptor
+     * @param position
+     *            the position of the frame either in seconds (e.g. <code>12.5</code>) or as a percentage of the video duration (e.g.
+     *            <code>10%</code>). Positions past the end of the video are clamped.
+     * @param size
+     *            the target thumbnail size (e.g. 640x480)
+     * @return <code>true</code> if the thumbnail was successfully generated
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs
+     */
+    boolean generateThumbnail(File videoFile, File outputFile, String position, String size)
+            throws DocumentOperationException;
+
     /**
      * Generates a JPG thumbnail image for the specified video file.
      * 
@@ -0,0 +1,200 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+
+/**
+ * Utilities for accessing the binary content of file nodes.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class BinaryUtils {
+
+    /**
+     * Returns the content identity of the file node's binary, i.e. the content hash the data store uses as the record identifier, or
+     * <code>null</code> if the binary is not stored in a data store (e.g. small binaries that are inlined).
+     * 
+     * @param fileNode
+     *            the file node to get the content identity for
+     * @return the content identity of the file node's binary or <code>null</code> if it is not available
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static String getContentIdentity(JCRNodeWrapper fileNode) throws RepositoryException {
+        Value value = getDataValue(fileNode);
+
+        return value instanceof JackrabbitValue ? ((JackrabbitValue) value).getContentIdentity()
+                : null;
+    }
+
+    /**
+     * Returns a key, which identifies the current content of the file node: the content identity of its binary or, if it is not
+     * available, the node identifier combined with the last modification date of its content.
+     * 
+     * @param fileNode
+     *            the file node to get the content key for
+     * @return a key, which identifies the current content of the file node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static String getContentKey(JCRNodeWrapper fileNode) throws RepositoryException {
+        String key = getContentIdentity(fileNode);
+        if (key == null) {
+            Date lastModified = fileNode.getNode(Constants.JCR_CONTENT).getLastModifiedAsDate();
+            key = fileNode.getIdentifier() + "-" + (lastModified != null ? lastModified.getTime() : 0);
+        }
+
+        return key;
+    }
+
+    /**
+     * Returns the file of the file node's binary in the <code>FileDataStore</code> located in the specified directory, so that it can be
+     * read directly without copying it. Returns <code>null</code> if the binary is not stored in that data store or the file does not
+     * match the binary size.
+     * 
+     * @param fileNode
+     *            the file node to get the data store file for
+     * @param dataStoreDir
+     *            the root directory of the <code>FileDataStore</code>
+     * @return the file of the file node's binary in the data store or <code>null</code> if it cannot be resolved
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static File getDataStoreFile(JCRNodeWrapper fileNode, File dataStoreDir)
+            throws RepositoryException {
+        if (dataStoreDir == null || !dataStoreDir.isDirectory()) {
+            return null;
+        }
+        Value value = getDataValue(fileNode);
+        String id = value instanceof JackrabbitValue ? ((JackrabbitValue) value).getContentIdentity()
+                : null;
+        if (id == null || id.length() < 6 || !id.matches("[0-9a-fA-F]+")) {
+            return null;
+        }
+
+        // FileDataStore layout: <path>/12/34/56/123456...
+        File file = new File(dataStoreDir, id.substring(0, 2) + File.separatorChar + id.substring(2, 4)
+                + File.separatorChar + id.substring(4, 6) + File.separatorChar + id);
+        if (!file.isFile()) {
+            return null;
+        }
+        Binary binary = value.getBinary();
+        try {
+            return file.length() == binary.getSize() ? file : null;
+        } finally {
+            binary.dispose();
+        }
+    }
+
+    private static Value getDataValue(JCRNodeWrapper fileNode) throws RepositoryException {
+        Node content = null;
+        try {
+            content = fileNode.getNode(Constants.JCR_CONTENT).getRealNode();
+        } catch (PathNotFoundException e) {
+            return null;
+        }
+        if (!content.hasProperty(Constants.JCR_DATA)) {
+            return null;
+        }
+        Property data = content.getProperty(Constants.JCR_DATA);
+
+        return data.isMultiple() ? null : data.getValue();
+    }
+
+    /**
+     * Returns a local file with the binary of the file node, which can be read with random access: the file of the
+     * <code>FileDataStore</code> in the specified directory if the binary is stored there, otherwise a temporary copy of the binary. The
+     * returned handle has to be closed once the file is no longer needed.
+     * 
+     * @param fileNode
+     *            the file node to get the binary file for
+     * @param dataStoreDir
+     *            the root directory of the <code>FileDataStore</code>; if <code>null</code> a temporary copy is always created
+     * @return the handle to the local file with the binary of the file node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     * @throws IOException
+     *             in case the binary cannot be copied into a temporary file
+     */
+    public static LocalBinary getLocalBinary(JCRNodeWrapper fileNode, File dataStoreDir)
+            throws RepositoryException, IOException {
+        File file = getDataStoreFile(fileNode, dataStoreDir);
+        if (file != null) {
+            return new LocalBinary(file, false);
+        }
+
+        file = File.createTempFile("doc-binary", null);
+        try {
+            JCRContentUtils.downloadFileContent(fileNode, file);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            throw e;
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(file);
+            throw e;
+        }
+
+        return new LocalBinary(file, true);
+    }
+
+    private BinaryUtils() {
+        super();
+    }
+}
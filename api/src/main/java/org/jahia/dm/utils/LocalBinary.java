@@ -0,0 +1,98 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.io.Closeable;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A handle to a local file with the binary of a file node: either the file of the <code>FileDataStore</code>, which is read in place, or
+ * a temporary copy of the binary. The file must not be modified by the caller and the handle has to be closed once the file is no longer
+ * needed, so that a temporary copy is deleted.
+ * 
+ * @author Sergiy Shyrkov
+ * @see BinaryUtils#getLocalBinary(org.jahia.services.content.JCRNodeWrapper, File)
+ */
+public final class LocalBinary implements Closeable {
+
+    private final File file;
+
+    private final boolean temporary;
+
+    LocalBinary(File file, boolean temporary) {
+        super();
+        this.file = file;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Deletes the file if it is a temporary copy of the binary.
+     */
+    @Override
+    public void close() {
+        if (temporary) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Returns the file with the binary content.
+     * 
+     * @return the file with the binary content
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns <code>true</code> if the file is a temporary copy of the binary and <code>false</code> if it is the file of the data store.
+     * 
+     * @return <code>true</code> if the file is a temporary copy of the binary
+     */
+    public boolean isTemporary() {
+        return temporary;
+    }
+}
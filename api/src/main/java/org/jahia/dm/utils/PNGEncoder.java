@@ -0,0 +1,273 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes 8-bit RGB (or RGBA for translucent images) PNG images with an explicit deflate compression level, which the PNG writer of the
+ * JDK does not support. The scanlines are filtered adaptively, picking for each row the filter with the lowest sum of absolute
+ * differences, as libpng does.
+ * 
+ * @author Sergiy Shyrkov
+ */
+final class PNGEncoder {
+
+    /**
+     * Buffers the compressed image data and writes it as <code>IDAT</code> chunks.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        private int count;
+
+        private final OutputStream out;
+
+        ChunkOutputStream(OutputStream out) {
+            super();
+            this.out = out;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk(out, IDAT, buffer, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                flush();
+            }
+        }
+    }
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final int FILTER_AVERAGE = 3;
+
+    private static final int FILTER_NONE = 0;
+
+    private static final int FILTER_PAETH = 4;
+
+    private static final int FILTER_SUB = 1;
+
+    private static final int FILTER_UP = 2;
+
+    private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+
+    private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+    private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    /**
+     * Writes the specified image as PNG into the provided output stream. The stream is not closed.
+     * 
+     * @param image
+     *            the image to be encoded
+     * @param out
+     *            the target output stream
+     * @param compressionLevel
+     *            the deflate compression level in the range [0, 9]; <code>0</code> stores the scanlines unfiltered and uncompressed
+     * @throws IOException
+     *             in case of a write error
+     */
+    static void encode(BufferedImage image, OutputStream out, int compressionLevel) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        int bpp = alpha ? 4 : 3;
+        int level = Math.max(0, Math.min(9, compressionLevel));
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (alpha ? 6 : 2);
+        writeChunk(out, IHDR, header, header.length);
+
+        Deflater deflater = new Deflater(level);
+        deflater.setStrategy(level > 0 ? Deflater.FILTERED : Deflater.DEFAULT_STRATEGY);
+        try {
+            ChunkOutputStream chunks = new ChunkOutputStream(out);
+            DeflaterOutputStream zip = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+            int rowLength = width * bpp;
+            int[] pixels = new int[width];
+            byte[] previous = new byte[rowLength];
+            byte[] current = new byte[rowLength];
+            byte[][] filtered = new byte[5][rowLength + 1];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, pixels, 0, width);
+                for (int x = 0, i = 0; x < width; x++) {
+                    int argb = pixels[x];
+                    current[i++] = (byte) (argb >> 16);
+                    current[i++] = (byte) (argb >> 8);
+                    current[i++] = (byte) argb;
+                    if (alpha) {
+                        current[i++] = (byte) (argb >>> 24);
+                    }
+                }
+                byte[] row = level > 0 ? filter(current, previous, bpp, filtered) : unfiltered(
+                        current, filtered[FILTER_NONE]);
+                zip.write(row, 0, row.length);
+
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            zip.finish();
+            chunks.flush();
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(out, IEND, new byte[0], 0);
+    }
+
+    /**
+     * Applies all filters to the row and returns the one with the lowest sum of absolute differences, prefixed with the filter type.
+     */
+    private static byte[] filter(byte[] row, byte[] previous, int bpp, byte[][] filtered) {
+        int length = row.length;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            filtered[type][0] = (byte) type;
+        }
+        for (int i = 0; i < length; i++) {
+            int raw = row[i] & 0xff;
+            int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int up = previous[i] & 0xff;
+            int upLeft = i >= bpp ? previous[i - bpp] & 0xff : 0;
+            filtered[FILTER_NONE][i + 1] = (byte) raw;
+            filtered[FILTER_SUB][i + 1] = (byte) (raw - left);
+            filtered[FILTER_UP][i + 1] = (byte) (raw - up);
+            filtered[FILTER_AVERAGE][i + 1] = (byte) (raw - ((left + up) >> 1));
+            filtered[FILTER_PAETH][i + 1] = (byte) (raw - paeth(left, up, upLeft));
+        }
+
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        for (byte[] candidate : filtered) {
+            long sum = 0;
+            for (int i = 1; i <= length && sum < bestSum; i++) {
+                // the bytes are summed as signed values, so that small negative differences count as small
+                sum += Math.abs(candidate[i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int p = left + up - upLeft;
+        int pLeft = Math.abs(p - left);
+        int pUp = Math.abs(p - up);
+        int pUpLeft = Math.abs(p - upLeft);
+        if (pLeft <= pUp && pLeft <= pUpLeft) {
+            return left;
+        }
+        return pUp <= pUpLeft ? up : upLeft;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static byte[] unfiltered(byte[] row, byte[] target) {
+        target[0] = FILTER_NONE;
+        System.arraycopy(row, 0, target, 1, row.length);
+        return target;
+    }
+
+    private static void writeChunk(OutputStream out, byte[] type, byte[] data, int length)
+            throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        System.arraycopy(type, 0, header, 4, 4);
+        out.write(header);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+        out.write(trailer);
+    }
+
+    private PNGEncoder() {
+        super();
+    }
+}
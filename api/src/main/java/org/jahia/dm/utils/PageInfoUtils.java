@@ -0,0 +1,143 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.services.content.JCRNodeWrapper;
+
+/**
+ * Utilities for the page information of documents (number of pages and dimensions of the first page), which is recorded on the file
+ * node when its thumbnail is created, so that later operations do not need to parse the document again. The information is bound to the
+ * content it was read from and is ignored once the content changes.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class PageInfoUtils {
+
+    /**
+     * The key of the content the page information was read from.
+     */
+    public static final String CONTENT_KEY = "j:pageInfoKey";
+
+    /**
+     * The mixin type, which carries the page information.
+     */
+    public static final String MIXIN = "jmix:documentPageInfo";
+
+    /**
+     * The number of pages in the document.
+     */
+    public static final String PAGE_COUNT = "j:pageCount";
+
+    /**
+     * The height of the first page in points.
+     */
+    public static final String PAGE_HEIGHT = "j:pageHeight";
+
+    /**
+     * The width of the first page in points.
+     */
+    public static final String PAGE_WIDTH = "j:pageWidth";
+
+    /**
+     * Returns the recorded number of pages of the specified document or <code>-1</code> if it is not known for the current content.
+     * 
+     * @param fileNode
+     *            the document node
+     * @return the recorded number of pages of the specified document or <code>-1</code> if it is not known for the current content
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static int getPageCount(JCRNodeWrapper fileNode) throws RepositoryException {
+        return isCurrent(fileNode) ? (int) fileNode.getProperty(PAGE_COUNT).getLong() : -1;
+    }
+
+    private static boolean isCurrent(JCRNodeWrapper fileNode) throws RepositoryException {
+        return fileNode.isNodeType(MIXIN) && fileNode.hasProperty(PAGE_COUNT)
+                && fileNode.hasProperty(CONTENT_KEY)
+                && BinaryUtils.getContentKey(fileNode).equals(fileNode.getProperty(CONTENT_KEY).getString());
+    }
+
+    /**
+     * Records the page information of the specified document for its current content. The dimensions are recorded only if they are known,
+     * i.e. greater than <code>0</code>. The session is not saved.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param pageCount
+     *            the number of pages in the document
+     * @param pageWidth
+     *            the width of the first page in points or <code>0</code> if it is not known
+     * @param pageHeight
+     *            the height of the first page in points or <code>0</code> if it is not known
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void store(JCRNodeWrapper fileNode, int pageCount, float pageWidth, float pageHeight)
+            throws RepositoryException {
+        fileNode.getSession().checkout(fileNode);
+        if (!fileNode.isNodeType(MIXIN)) {
+            fileNode.addMixin(MIXIN);
+        }
+        fileNode.setProperty(PAGE_COUNT, pageCount);
+        if (pageWidth > 0 && pageHeight > 0) {
+            fileNode.setProperty(PAGE_WIDTH, pageWidth);
+            fileNode.setProperty(PAGE_HEIGHT, pageHeight);
+        } else {
+            // do not keep the dimensions of a previous content
+            if (fileNode.hasProperty(PAGE_WIDTH)) {
+                fileNode.getProperty(PAGE_WIDTH).remove();
+            }
+            if (fileNode.hasProperty(PAGE_HEIGHT)) {
+                fileNode.getProperty(PAGE_HEIGHT).remove();
+            }
+        }
+        fileNode.setProperty(CONTENT_KEY, BinaryUtils.getContentKey(fileNode));
+    }
+
+    private PageInfoUtils() {
+        super();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+/**
+ * Result of an external process execution, performed by the {@link ProcessSupervisor}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class ProcessResult {
+
+    private final long duration;
+
+    private final String error;
+
+    private final int exitValue;
+
+    private final String output;
+
+    private final boolean timedOut;
+
+    ProcessResult(int exitValue, boolean timedOut, String output, String error, long duration) {
+        super();
+        this.exitValue = exitValue;
+        this.timedOut = timedOut;
+        this.output = output;
+        this.error = error;
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the execution time of the process in milliseconds, excluding the time spent waiting for a free slot.
+     * 
+     * @return the execution time of the process in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the captured tail of the standard error of the process.
+     * 
+     * @return the captured tail of the standard error of the process
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns the exit value of the process or <code>-1</code> if it was killed on timeout.
+     * 
+     * @return the exit value of the process
+     */
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Returns the captured tail of the standard output of the process.
+     * 
+     * @return the captured tail of the standard output of the process
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Returns <code>true</code> if the process completed in time with a zero exit value.
+     * 
+     * @return <code>true</code> if the process completed in time with a zero exit value
+     */
+    public boolean isSuccessful() {
+        return !timedOut && exitValue == 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the process was killed as it exceeded its timeout.
+     * 
+     * @return <code>true</code> if the process was killed as it exceeded its timeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Executes external tools (pdf2swf, ffmpeg etc.), limiting the number of concurrently running processes per tool, killing the process
+ * tree if it exceeds its timeout and capturing only the tail of its output. Execution statistics are collected per tool.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class ProcessSupervisor implements ProcessSupervisorMBean, DisposableBean {
+
+    private static class Tool {
+        final AtomicLong executions = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong maxTime = new AtomicLong();
+        final AtomicInteger running = new AtomicInteger();
+        final Semaphore semaphore;
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong totalTime = new AtomicLong();
+        final AtomicInteger waiting = new AtomicInteger();
+
+        Tool(int concurrency) {
+            super();
+            semaphore = new Semaphore(Math.max(1, concurrency), true);
+        }
+
+        void record(ProcessResult result) {
+            executions.incrementAndGet();
+            if (result.isTimedOut()) {
+                timeouts.incrementAndGet();
+            } else if (!result.isSuccessful()) {
+                failures.incrementAndGet();
+            }
+            totalTime.addAndGet(result.getDuration());
+            long current;
+            while (result.getDuration() > (current = maxTime.get())
+                    && !maxTime.compareAndSet(current, result.getDuration())) {
+                // retry
+            }
+        }
+
+        void reset() {
+            executions.set(0);
+            failures.set(0);
+            timeouts.set(0);
+            totalTime.set(0);
+            maxTime.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long count = executions.get();
+            return "executions=" + count + ", failures=" + failures.get() + ", timeouts="
+                    + timeouts.get() + ", running=" + running.get() + ", waiting=" + waiting.get()
+                    + ", total=" + totalTime.get() + " ms, mean="
+                    + (count > 0 ? totalTime.get() / count : 0) + " ms, max=" + maxTime.get()
+                    + " ms";
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+
+    public static final String PROCESSES = "dm.processes";
+
+    private Map<String, Integer> concurrency = Collections.emptyMap();
+
+    private int defaultConcurrency = Runtime.getRuntime().availableProcessors();
+
+    private long defaultTimeout = 5 * 60 * 1000L;
+
+    private int errorLimit = 8 * 1024;
+
+    private int ioniceClass;
+
+    private volatile ExecutorService ioPool;
+
+    private DocumentMetrics metrics;
+
+    private int niceness;
+
+    private int outputLimit = 64 * 1024;
+
+    private Map<String, Long> timeouts = Collections.emptyMap();
+
+    private final ConcurrentMap<String, Tool> tools = new ConcurrentHashMap<String, Tool>();
+
+    private void awaitPump(Future<?> pump) {
+        try {
+            // a leftover child process can keep the stream open, so do not wait for it forever
+            pump.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            pump.cancel(true);
+        }
+    }
+
+    private List<String> buildCommand(String[] command) {
+        List<String> cmd = new ArrayList<String>(command.length + 6);
+        if (!SystemUtils.IS_OS_WINDOWS) {
+            if (niceness != 0) {
+                cmd.addAll(Arrays.asList("nice", "-n", String.valueOf(niceness)));
+            }
+            if (ioniceClass > 0) {
+                cmd.addAll(Arrays.asList("ionice", "-c", String.valueOf(ioniceClass)));
+            }
+        }
+        cmd.addAll(Arrays.asList(command));
+        return cmd;
+    }
+
+    public void destroy() throws Exception {
+        ExecutorService pool = ioPool;
+        ioPool = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Executes the specified command, waiting for a free slot of the tool if its concurrency limit is reached. The process is killed
+     * together with its children if it does not complete within the configured timeout of the tool.
+     * 
+     * @param tool
+     *            the name of the tool, used for the concurrency limit, timeout and statistics, e.g. <code>ffmpeg</code>
+     * @param command
+     *            the executable and its arguments
+     * @param workingDir
+     *            the working directory of the process; <code>null</code> to use the current one
+     * @param input
+     *            the stream to feed into the standard input of the process; <code>null</code> if no input is needed
+     * @param timeout
+     *            the timeout in milliseconds; if not positive, the configured timeout of the tool is used
+     * @return the result of the execution
+     * @throws DocumentOperationException
+     *             if the process cannot be started or the current thread is interrupted
+     */
+    public ProcessResult execute(String tool, String[] command, File workingDir, InputStream input,
+            long timeout) throws DocumentOperationException {
+        Tool stats = getTool(tool);
+        if (timeout <= 0) {
+            Long configured = timeouts.get(tool);
+            timeout = configured != null && configured > 0 ? configured : defaultTimeout;
+        }
+
+        stats.waiting.incrementAndGet();
+        try {
+            stats.semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while waiting to execute " + tool, e);
+        } finally {
+            stats.waiting.decrementAndGet();
+        }
+
+        stats.running.incrementAndGet();
+        long timer = System.currentTimeMillis();
+        ProcessResult result = null;
+        try {
+            result = run(tool, command, workingDir, input, timeout);
+            return result;
+        } finally {
+            stats.running.decrementAndGet();
+            stats.semaphore.release();
+            if (result != null) {
+                stats.record(result);
+                if (metrics != null) {
+                    metrics.recordProcess(tool, timer);
+                    metrics.increment(PROCESSES, 1, "tool", tool, "outcome",
+                            result.isTimedOut() ? "timeout"
+                                    : (result.isSuccessful() ? DocumentMetrics.OUTCOME_SUCCESS
+                                            : DocumentMetrics.OUTCOME_FAILURE));
+                }
+            } else if (metrics != null) {
+                metrics.increment(PROCESSES, 1, "tool", tool, "outcome",
+                        DocumentMetrics.OUTCOME_FAILURE);
+            }
+        }
+    }
+
+    private ExecutorService getIoPool() {
+        ExecutorService pool = ioPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = ioPool;
+                if (pool == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    pool = Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "dm-process-io-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    ioPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    public String[] getStatistics() {
+        SortedMap<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, Tool> tool : tools.entrySet()) {
+            values.put(tool.getKey(), tool.getValue().toString());
+        }
+        List<String> result = new ArrayList<String>(values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            result.add(value.getKey() + ": " + value.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private Tool getTool(String name) {
+        Tool tool = tools.get(name);
+        if (tool == null) {
+            Integer limit = concurrency.get(name);
+            Tool existing = tools.putIfAbsent(name,
+                    tool = new Tool(limit != null && limit > 0 ? limit : defaultConcurrency));
+            if (existing != null) {
+                tool = existing;
+            }
+        }
+        return tool;
+    }
+
+    private Future<?> pump(final InputStream in, final OutputStream out, final boolean closeOut) {
+        return getIoPool().submit(new Runnable() {
+            public void run() {
+                try {
+                    IOUtils.copy(in, out);
+                } catch (IOException e) {
+                    // the process has exited or closed the stream, e.g. ffmpeg stops reading once the frame is grabbed
+                    logger.debug("Stream of the external process closed: {}", e.getMessage());
+                } finally {
+                    if (closeOut) {
+                        IOUtils.closeQuietly(out);
+                    }
+                }
+            }
+        });
+    }
+
+    public void resetStatistics() {
+        for (Tool tool : tools.values()) {
+            tool.reset();
+        }
+    }
+
+    private ProcessResult run(String tool, String[] command, File workingDir, InputStream input,
+            long timeout) throws DocumentOperationException {
+        ProcessBuilder pb = new ProcessBuilder(buildCommand(command));
+        if (workingDir != null && (workingDir.exists() || workingDir.mkdirs())) {
+            pb.directory(workingDir);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Executing {} command: {}", tool, StringUtils.join(pb.command(), ' '));
+        }
+
+        long timer = System.currentTimeMillis();
+        Process process = null;
+        try {
+            process = pb.start();
+        } catch (IOException e) {
+            throw new DocumentOperationException("Unable to start " + tool + " process", e);
+        }
+
+        RingBufferOutputStream out = new RingBufferOutputStream(outputLimit);
+        RingBufferOutputStream err = new RingBufferOutputStream(errorLimit);
+        Future<?> outPump = pump(process.getInputStream(), out, false);
+        Future<?> errPump = pump(process.getErrorStream(), err, false);
+        Future<?> inPump = null;
+        if (input != null) {
+            inPump = pump(input, process.getOutputStream(), true);
+        } else {
+            IOUtils.closeQuietly(process.getOutputStream());
+        }
+
+        boolean timedOut = false;
+        int exitValue = -1;
+        try {
+            if (process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                exitValue = process.exitValue();
+            } else {
+                timedOut = true;
+                logger.warn("{} process did not complete within {} ms. Killing it.", tool, timeout);
+                ProcessUtils.killProcessTree(process);
+            }
+        } catch (InterruptedException e) {
+            ProcessUtils.killProcessTree(process);
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while executing " + tool, e);
+        } finally {
+            if (inPump != null) {
+                inPump.cancel(true);
+            }
+            awaitPump(outPump);
+            awaitPump(errPump);
+            IOUtils.closeQuietly(process.getInputStream());
+            IOUtils.closeQuietly(process.getErrorStream());
+            IOUtils.closeQuietly(process.getOutputStream());
+        }
+
+        long duration = System.currentTimeMillis() - timer;
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} process done (exit code: {}) in {} ms", new Object[] { tool,
+                    exitValue, duration });
+        }
+
+        return new ProcessResult(exitValue, timedOut, out.toString(), err.toString(), duration);
+    }
+
+    /**
+     * Sets the maximum number of concurrently running processes per tool.
+     * 
+     * @param concurrency
+     *            the maximum number of concurrently running processes per tool
+     */
+    public void setConcurrency(Map<String, Integer> concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setDefaultConcurrency(int defaultConcurrency) {
+        this.defaultConcurrency = defaultConcurrency;
+    }
+
+    public void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    public void setErrorLimit(int errorLimit) {
+        this.errorLimit = errorLimit;
+    }
+
+    /**
+     * Sets the I/O scheduling class (see <code>ionice</code>) for the external processes on Unix systems; <code>0</code> to keep the
+     * default one.
+     * 
+     * @param ioniceClass
+     *            the I/O scheduling class for the external processes
+     */
+    public void setIoniceClass(int ioniceClass) {
+        this.ioniceClass = ioniceClass;
+    }
+
+    public void setMetrics(DocumentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the niceness (see <code>nice</code>) for the external processes on Unix systems; <code>0</code> to keep the default one.
+     * 
+     * @param niceness
+     *            the niceness for the external processes
+     */
+    public void setNiceness(int niceness) {
+        this.niceness = niceness;
+    }
+
+    public void setOutputLimit(int outputLimit) {
+        this.outputLimit = outputLimit;
+    }
+
+    /**
+     * Sets the timeouts in milliseconds per tool.
+     * 
+     * @param timeouts
+     *            the timeouts in milliseconds per tool
+     */
+    public void setTimeouts(Map<String, Long> timeouts) {
+        this.timeouts = timeouts;
+    }
+}
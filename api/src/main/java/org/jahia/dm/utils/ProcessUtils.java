@@ -44,8 +44,15 @@
 package org.jahia.dm.utils;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang.SystemUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -94,4 +101,59 @@ public final class ProcessUtils {
 
         return present;
     }
+
+    private static boolean destroyDescendants(Process process) {
+        try {
+            // Java 9+: ProcessHandle API, accessed reflectively to stay compatible with Java 8
+            Object handle = Process.class.getMethod("toHandle").invoke(process);
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Method destroy = handleClass.getMethod("destroyForcibly");
+            List<Object> descendants = new ArrayList<Object>();
+            // collect the whole tree first as the children get re-parented once their parent is gone
+            for (Iterator<?> it = ((Stream<?>) handleClass.getMethod("descendants").invoke(handle))
+                    .iterator(); it.hasNext();) {
+                descendants.add(it.next());
+            }
+            for (Object descendant : descendants) {
+                destroy.invoke(descendant);
+            }
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            logger.debug("Unable to destroy descendants of the process", e);
+            return false;
+        }
+    }
+
+    private static Integer getPid(Process process) {
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getInt(process);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forcibly terminates the specified process together with the processes it has spawned. On Java 8 only the direct children are
+     * terminated and only on Unix systems.
+     * 
+     * @param process
+     *            the process to terminate
+     */
+    public static void killProcessTree(Process process) {
+        if (!destroyDescendants(process) && !SystemUtils.IS_OS_WINDOWS) {
+            Integer pid = getPid(process);
+            if (pid != null) {
+                try {
+                    new ProcessBuilder("pkill", "-KILL", "-P", pid.toString()).start().waitFor();
+                } catch (Exception e) {
+                    logger.debug("Unable to kill child processes of the process " + pid, e);
+                }
+            }
+        }
+        process.destroyForcibly();
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Output stream, which keeps only the last written bytes up to a fixed capacity. Used to capture the output of external processes without
+ * letting a chatty tool exhaust the memory.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class RingBufferOutputStream extends OutputStream {
+
+    private final byte[] buffer;
+
+    private long length;
+
+    private int position;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param capacity
+     *            the maximum number of bytes to keep
+     */
+    public RingBufferOutputStream(int capacity) {
+        super();
+        this.buffer = new byte[Math.max(1, capacity)];
+    }
+
+    /**
+     * Returns the kept bytes in the order they were written.
+     * 
+     * @return the kept bytes in the order they were written
+     */
+    public synchronized byte[] getBytes() {
+        if (length < buffer.length) {
+            // not wrapped yet: once exactly the capacity is written, the position is back at 0
+            byte[] bytes = new byte[position];
+            System.arraycopy(buffer, 0, bytes, 0, position);
+            return bytes;
+        }
+        byte[] bytes = new byte[buffer.length];
+        System.arraycopy(buffer, position, bytes, 0, buffer.length - position);
+        System.arraycopy(buffer, 0, bytes, buffer.length - position, position);
+        return bytes;
+    }
+
+    /**
+     * Returns the total number of bytes written, including the discarded ones.
+     * 
+     * @return the total number of bytes written
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns <code>true</code> if some of the written bytes were discarded.
+     * 
+     * @return <code>true</code> if some of the written bytes were discarded
+     */
+    public synchronized boolean isTruncated() {
+        return length > buffer.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(getBytes(), Charset.defaultCharset());
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        length += len;
+        if (len >= buffer.length) {
+            System.arraycopy(b, off + len - buffer.length, buffer, 0, buffer.length);
+            position = 0;
+            return;
+        }
+        int tail = Math.min(len, buffer.length - position);
+        System.arraycopy(b, off, buffer, position, tail);
+        if (tail < len) {
+            System.arraycopy(b, off + tail, buffer, 0, len - tail);
+        }
+        position = (position + len) % buffer.length;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buffer[position] = (byte) b;
+        position = (position + 1) % buffer.length;
+        length++;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Output stream, which keeps the written data in a bounded memory buffer and spills it into a temporary file once the threshold is
+ * exceeded. The written data can be read back using {@link #getInputStream()} without copying the memory buffer. The temporary file, if
+ * any, is deleted on {@link #dispose()}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class SpillOutputStream extends OutputStream {
+
+    private byte[] buffer;
+
+    private int count;
+
+    private File file;
+
+    private OutputStream fileStream;
+
+    private long length;
+
+    private final int threshold;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param initialSize
+     *            the initial size of the memory buffer in bytes
+     * @param threshold
+     *            the maximum number of bytes to keep in memory before spilling the data into a temporary file
+     */
+    public SpillOutputStream(int initialSize, int threshold) {
+        super();
+        this.threshold = threshold;
+        this.buffer = new byte[Math.max(1, Math.min(initialSize, threshold))];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Closes the stream and deletes the temporary file if it was created.
+     */
+    public void dispose() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore
+        }
+        FileUtils.deleteQuietly(file);
+        file = null;
+        fileStream = null;
+        buffer = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    /**
+     * Returns an input stream to read back the written data. The stream is closed before.
+     * 
+     * @return an input stream to read back the written data
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public InputStream getInputStream() throws IOException {
+        close();
+        return file != null ? new BufferedInputStream(new FileInputStream(file))
+                : new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * 
+     * @return the number of bytes written
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns <code>true</code> if the data was spilled into a temporary file.
+     * 
+     * @return <code>true</code> if the data was spilled into a temporary file
+     */
+    public boolean isInFile() {
+        return file != null;
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("dm-spill", null);
+        fileStream = new BufferedOutputStream(new FileOutputStream(file));
+        fileStream.write(buffer, 0, count);
+        buffer = null;
+        count = 0;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileStream == null && count + len > threshold) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+        } else {
+            if (count + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer,
+                        Math.min(threshold, Math.max(buffer.length << 1, count + len)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        length += len;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (fileStream == null && count < buffer.length) {
+            buffer[count++] = (byte) b;
+            length++;
+        } else {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
+}
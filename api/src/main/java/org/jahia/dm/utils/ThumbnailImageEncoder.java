@@ -0,0 +1,206 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.dm.utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes thumbnail and page images into PNG or JPEG format, reusing the {@link ImageWriter} instances and applying the configured compression
+ * settings. As the PNG writer of the JDK ignores the compression settings, PNG images with an explicit deflate level are written by
+ * {@link PNGEncoder}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class ThumbnailImageEncoder {
+
+    private static final int MAX_POOLED_WRITERS = 8;
+
+    private final int compressionLevel;
+
+    private final String format;
+
+    private final Queue<ImageWriter> pool = new ConcurrentLinkedQueue<ImageWriter>();
+
+    private final float quality;
+
+    /**
+     * Initializes an instance of this class for PNG images.
+     * 
+     * @param compressionLevel
+     *            the deflate compression level in the range [0, 9] or a negative value to use the PNG writer of the JDK with its defaults
+     */
+    public ThumbnailImageEncoder(int compressionLevel) {
+        this("png", -1, compressionLevel);
+    }
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param format
+     *            the image format: png or jpeg
+     * @param quality
+     *            the JPEG compression quality in the range [0, 1] or a negative value to use the writer defaults
+     */
+    public ThumbnailImageEncoder(String format, float quality) {
+        this(format, quality, -1);
+    }
+
+    private ThumbnailImageEncoder(String format, float quality, int compressionLevel) {
+        super();
+        this.format = format;
+        this.quality = quality;
+        this.compressionLevel = compressionLevel;
+    }
+
+    private ImageWriter borrowWriter() throws IOException {
+        ImageWriter writer = pool.poll();
+        if (writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+            if (!writers.hasNext()) {
+                throw new IOException("No image writer found for format " + format);
+            }
+            writer = writers.next();
+        }
+        return writer;
+    }
+
+    private ImageWriteParam createWriteParam(ImageWriter writer) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (quality >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                String[] types = param.getCompressionTypes();
+                if (types != null && types.length > 0) {
+                    param.setCompressionType(types[0]);
+                }
+            }
+            param.setCompressionQuality(quality);
+        }
+        return param;
+    }
+
+    /**
+     * Writes the specified image into the provided output stream. The stream is not closed.
+     * 
+     * @param image
+     *            the image to be encoded
+     * @param out
+     *            the target output stream
+     * @throws IOException
+     *             in case of an encoding error
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        if (compressionLevel >= 0 && "png".equals(format)) {
+            PNGEncoder.encode(image, out, compressionLevel);
+            return;
+        }
+
+        BufferedImage source = image;
+        if ("jpeg".equals(format) && image.getColorModel().hasAlpha()) {
+            // JPEG does not support an alpha channel
+            source = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = source.createGraphics();
+            try {
+                g.drawImage(image, 0, 0, Color.WHITE, null);
+            } finally {
+                g.dispose();
+            }
+        }
+
+        ImageWriter writer = borrowWriter();
+        boolean reusable = false;
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(source, null, null), createWriteParam(writer));
+            ios.flush();
+            reusable = true;
+        } finally {
+            writer.setOutput(null);
+            ios.close();
+            if (source != image) {
+                source.flush();
+            }
+            if (reusable && pool.size() < MAX_POOLED_WRITERS) {
+                writer.reset();
+                pool.offer(writer);
+            } else {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the MIME type of the produced images.
+     * 
+     * @return the MIME type of the produced images
+     */
+    public String getMimeType() {
+        return "image/" + format;
+    }
+
+    /**
+     * Disposes all pooled writers.
+     */
+    public void dispose() {
+        ImageWriter writer;
+        while ((writer = pool.poll()) != null) {
+            writer.dispose();
+        }
+    }
+}
@@ -122,7 +122,25 @@ public interface DocumentViewerService extends Serviceable {
             throws DocumentOperationException;
 
     /**
-     * Creates the PDF view for the specified file node.
+     * Creates the page images view for the specified file node: each page of the document is rendered into a raster image, stored
+     * together with a small JSON manifest under the <code>pagesView</code> child node. The pages are rendered in parallel and saved as
+     * soon as they are produced, so that the first pages can be shown before the whole document is done.
+     * 
+     * @param fileNode
+     *            the node to create a view for
+     * @return <code>true</code> if the view was successfully created; returns <code>false</code> if e.g. the service is disabled or the
+     *         document cannot be converted to the required format
+     * @throws RepositoryException
+     *             in case of an error
+     * @throws DocumentOperationException
+     *             in case of a document conversion error
+     */
+    boolean createPagesViewForNode(JCRNodeWrapper fileNode) throws RepositoryException,
+            DocumentOperationException;
+
+    /**
+     * Creates the PDF view for the specified file node. A document, which is already a PDF, is its own PDF view: it is neither converted
+     * nor copied.
      * 
      * @param fileNode
      *            the node to create a view for
@@ -152,4 +170,12 @@ public interface DocumentViewerService extends Serviceable {
      */
     boolean createViewForNode(JCRNodeWrapper fileNode) throws RepositoryException,
             DocumentOperationException;
+
+    /**
+     * Returns <code>true</code> if the page images view can be created, i.e. it is enabled and the document thumbnail service, used for
+     * rendering pages, is available.
+     * 
+     * @return <code>true</code> if the page images view can be created
+     */
+    boolean isPagesViewEnabled();
 }
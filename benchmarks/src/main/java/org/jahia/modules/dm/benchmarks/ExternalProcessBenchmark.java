@@ -0,0 +1,117 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.jahia.modules.dm.viewer.impl.PDF2SWFConverterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of building and executing the external process command in the {@link PDF2SWFConverterService}. A no-op
+ * executable (<code>true</code> by default, can be changed with the <code>benchmark.executable</code> system property) is used, so that
+ * only the process handling itself is measured.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExternalProcessBenchmark {
+
+    private static class BenchmarkPDF2SWFConverterService extends PDF2SWFConverterService {
+        @Override
+        protected CommandLine getConvertCommandLine(File inputFile, File outputFile) {
+            return super.getConvertCommandLine(inputFile, outputFile);
+        }
+    }
+
+    private BenchmarkPDF2SWFConverterService converter;
+
+    private File input;
+
+    private File output;
+
+    @Benchmark
+    public CommandLine buildCommandLine() {
+        return converter.getConvertCommandLine(input, output);
+    }
+
+    @Benchmark
+    public boolean execute() {
+        return converter.convert(input, output);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        converter = new BenchmarkPDF2SWFConverterService();
+        converter.setActivate("true");
+        converter.setExecutablePath(System.getProperty("benchmark.executable", "true"));
+        converter.setWorkingDir(new File(System.getProperty("java.io.tmpdir"), "pdf2swf"));
+        input = SamplePDFs.get("synthetic-A4-1");
+        output = File.createTempFile("benchmark-", ".swf");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SamplePDFs.release("synthetic-A4-1", input);
+        output.delete();
+    }
+}
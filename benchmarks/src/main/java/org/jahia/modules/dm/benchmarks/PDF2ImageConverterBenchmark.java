@@ -0,0 +1,162 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.modules.dm.thumbnails.impl.ICEpdfPDF2ImageConverterService;
+import org.jahia.modules.dm.thumbnails.impl.PDF2ImageConverter;
+import org.jahia.modules.dm.thumbnails.impl.PDFBoxPDF2ImageConverterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the PDF rendering engines on the same documents. Local sample documents can be used instead of the synthetic ones, e.g.:
+ * 
+ * <pre>
+ * mvn -Pbenchmarks -pl benchmarks compile exec:exec -Djmh.args="PDF2ImageConverterBenchmark -p document=/data/plan.pdf,/data/scan.pdf"
+ * </pre>
+ * 
+ * @author Sergiy Shyrkov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PDF2ImageConverterBenchmark {
+
+    private PDF2ImageConverter converter;
+
+    @Param({ "synthetic-A4-1", "synthetic-A4-50", "synthetic-A0-1" })
+    private String document;
+
+    @Param({ "ICEpdf", "PDFBox" })
+    private String engine;
+
+    private File pdfFile;
+
+    @Param({ "350" })
+    private int targetSize;
+
+    @Benchmark
+    public BufferedImage renderFirstPageFullScale() {
+        return flush(converter.getImageOfPage(pdfFile, 0));
+    }
+
+    @Benchmark
+    public BufferedImage renderFirstPageFullScaleFromStream() throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(pdfFile));
+        try {
+            return flush(converter.getImageOfPage(is, 0));
+        } finally {
+            is.close();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage renderFirstPageToTargetSize() {
+        return flush(converter.getImageOfPage(pdfFile, 0, targetSize, targetSize));
+    }
+
+    @Benchmark
+    public BufferedImage renderFirstPageToTargetSizeFromStream() throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(pdfFile));
+        try {
+            return flush(converter.getImageOfPage(is, 0, targetSize, targetSize));
+        } finally {
+            is.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        pdfFile = SamplePDFs.get(document);
+        converter = createConverter(engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (converter instanceof PDFBoxPDF2ImageConverterService) {
+            ((PDFBoxPDF2ImageConverterService) converter).destroy();
+        }
+        SamplePDFs.release(document, pdfFile);
+    }
+
+    static PDF2ImageConverter createConverter(String engine) throws Exception {
+        if ("PDFBox".equalsIgnoreCase(engine)) {
+            PDFBoxPDF2ImageConverterService pdfBox = new PDFBoxPDF2ImageConverterService();
+            pdfBox.afterPropertiesSet();
+            return pdfBox;
+        }
+
+        return new ICEpdfPDF2ImageConverterService();
+    }
+
+    static BufferedImage flush(BufferedImage image) {
+        if (image != null) {
+            image.flush();
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.modules.dm.thumbnails.impl.ICEpdfPDF2ImageConverterService;
+import org.jahia.modules.dm.thumbnails.impl.PDF2ImageConverter;
+import org.jahia.modules.dm.thumbnails.impl.PDFBoxPDF2ImageConverterService;
+import org.jahia.modules.dm.thumbnails.impl.RasterPool;
+import org.jahia.services.image.JahiaImageService;
+import org.jahia.services.image.JahiaImageService.ResizeType;
+import org.jahia.services.image.Java2DProgressiveBilinearImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the allocation of the thumbnail job (render the first page, resize it into the thumbnail, release both images) with and
+ * without the {@link RasterPool}. Time alone does not show the difference: run it with the GC profiler and compare
+ * <code>gc.alloc.rate.norm</code> and the old generation / humongous activity in the GC log, e.g.:
+ * 
+ * <pre>
+ * mvn -Pbenchmarks -pl benchmarks compile exec:exec -Djmh.args="RasterPoolBenchmark -prof gc -jvmArgsAppend -Xlog:gc*:file=raster-pool-gc.log"
+ * </pre>
+ * 
+ * (with Java 8 use <code>-XX:+PrintGCDetails -Xloggc:raster-pool-gc.log</code> instead of <code>-Xlog</code>). The benchmark forks with a
+ * small G1 heap, so that the full scale page rasters are humongous allocations.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-XX:+UseG1GC", "-Xms512m", "-Xmx512m" })
+public class RasterPoolBenchmark {
+
+    private PDF2ImageConverter converter;
+
+    @Param({ "synthetic-A4-1", "synthetic-A0-1" })
+    private String document;
+
+    @Param({ "ICEpdf", "PDFBox" })
+    private String engine;
+
+    private JahiaImageService imageService;
+
+    private File pdfFile;
+
+    @Param({ "false", "true" })
+    private boolean pooled;
+
+    private RasterPool rasterPool;
+
+    /**
+     * The size of the box the page is rendered into; <code>0</code> to render it at full scale.
+     */
+    @Param({ "0", "350" })
+    private int renderSize;
+
+    @Param({ "150" })
+    private int thumbnailSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        pdfFile = SamplePDFs.get(document);
+        imageService = Java2DProgressiveBilinearImageService.getInstance();
+        converter = PDF2ImageConverterBenchmark.createConverter(engine);
+        if (pooled) {
+            rasterPool = new RasterPool();
+            if (converter instanceof PDFBoxPDF2ImageConverterService) {
+                ((PDFBoxPDF2ImageConverterService) converter).setRasterPool(rasterPool);
+            } else {
+                ((ICEpdfPDF2ImageConverterService) converter).setRasterPool(rasterPool);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (converter instanceof PDFBoxPDF2ImageConverterService) {
+            ((PDFBoxPDF2ImageConverterService) converter).destroy();
+        }
+        if (rasterPool != null) {
+            rasterPool.clear();
+        }
+        SamplePDFs.release(document, pdfFile);
+    }
+
+    @Benchmark
+    public int thumbnailJob() {
+        BufferedImage page = renderSize > 0 ? converter.getImageOfPage(pdfFile, 0, renderSize,
+                renderSize) : converter.getImageOfPage(pdfFile, 0);
+        BufferedImage thumbnail = null;
+        try {
+            thumbnail = pooled ? rasterPool.resize(page, thumbnailSize, thumbnailSize)
+                    : imageService.resizeImage(page, thumbnailSize, thumbnailSize,
+                            ResizeType.ADJUST_SIZE);
+            return thumbnail.getRGB(0, 0);
+        } finally {
+            if (pooled) {
+                rasterPool.release(thumbnail);
+                rasterPool.release(page);
+            } else {
+                PDF2ImageConverterBenchmark.flush(thumbnail);
+                PDF2ImageConverterBenchmark.flush(page);
+            }
+        }
+    }
+}
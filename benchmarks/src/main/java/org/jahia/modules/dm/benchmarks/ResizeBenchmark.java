@@ -0,0 +1,129 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.modules.dm.thumbnails.impl.PDF2ImageConverter;
+import org.jahia.services.image.JahiaImageService;
+import org.jahia.services.image.JahiaImageService.ResizeType;
+import org.jahia.services.image.Java2DProgressiveBilinearImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the resizing of a full scale page image into a thumbnail, as done by the document thumbnail service.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResizeBenchmark {
+
+    @Param({ "synthetic-A4-1", "synthetic-A0-1" })
+    private String document;
+
+    private JahiaImageService imageService;
+
+    private BufferedImage pageImage;
+
+    @Param({ "150", "350" })
+    private int thumbnailSize;
+
+    @Benchmark
+    public BufferedImage resize() {
+        return PDF2ImageConverterBenchmark.flush(imageService.resizeImage(pageImage, thumbnailSize,
+                thumbnailSize, ResizeType.ADJUST_SIZE));
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        imageService = Java2DProgressiveBilinearImageService.getInstance();
+        pageImage = renderFirstPage(document, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pageImage.flush();
+    }
+
+    /**
+     * Renders the first page of the specified document using ICEpdf.
+     * 
+     * @param document
+     *            the document reference, see {@link SamplePDFs#get(String)}
+     * @param size
+     *            the target size of the image or <code>0</code> to render the page at full scale
+     * @return the image of the first page
+     * @throws Exception
+     *             in case of a rendering error
+     */
+    static BufferedImage renderFirstPage(String document, int size) throws Exception {
+        File pdfFile = SamplePDFs.get(document);
+        try {
+            PDF2ImageConverter converter = PDF2ImageConverterBenchmark.createConverter("ICEpdf");
+            return size > 0 ? converter.getImageOfPage(pdfFile, 0, size, size) : converter
+                    .getImageOfPage(pdfFile, 0);
+        } finally {
+            SamplePDFs.release(document, pdfFile);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Provides PDF documents for the benchmarks: either a synthetic document, generated on the fly, or a sample document from the local
+ * file system.
+ * <p>
+ * Synthetic documents are referenced as <code>synthetic-&lt;page size&gt;-&lt;number of pages&gt;</code>, e.g.
+ * <code>synthetic-A4-10</code>, with the page size being one of <code>A4</code>, <code>A3</code> or <code>A0</code>. Every page
+ * contains text, vector graphics and an embedded raster image, simulating a scanned area. Any other value is treated as the path of a
+ * PDF file.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class SamplePDFs {
+
+    private static final String SYNTHETIC_PREFIX = "synthetic-";
+
+    private static void addPage(PDDocument document, PDRectangle pageSize, int pageNumber,
+            Random random) throws IOException {
+        PDPage page = new PDPage(pageSize);
+        document.addPage(page);
+
+        float width = pageSize.getWidth();
+        float height = pageSize.getHeight();
+        float margin = width / 20;
+
+        PDPageContentStream content = new PDPageContentStream(document, page);
+        try {
+            // vector graphics
+            for (int i = 0; i < 50; i++) {
+                content.setNonStrokingColor(new Color(random.nextInt(0xFFFFFF)));
+                content.addRect(margin + random.nextFloat() * (width - 2 * margin - 50), margin
+                        + random.nextFloat() * (height / 2 - margin), 50, 30);
+                content.fill();
+            }
+
+            // raster image, simulating a scanned area
+            PDImageXObject image = LosslessFactory.createFromImage(document,
+                    createNoiseImage(600, 400, random));
+            content.drawImage(image, margin, height / 2, width - 2 * margin, height / 4);
+
+            // text
+            float fontSize = width / 60;
+            content.setNonStrokingColor(Color.BLACK);
+            content.beginText();
+            content.setFont(PDType1Font.HELVETICA, fontSize);
+            content.newLineAtOffset(margin, height - margin);
+            content.showText("Page " + (pageNumber + 1));
+            for (int line = 0; line < 20; line++) {
+                content.newLineAtOffset(0, -fontSize * 1.5f);
+                content.showText("Lorem ipsum dolor sit amet, consectetur adipiscing elit, line "
+                        + line);
+            }
+            content.endText();
+        } finally {
+            content.close();
+        }
+    }
+
+    private static BufferedImage createNoiseImage(int width, int height, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 2000; i++) {
+                g.setColor(new Color(random.nextInt(0xFFFFFF)));
+                g.fillOval(random.nextInt(width), random.nextInt(height), 5, 5);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        return image;
+    }
+
+    /**
+     * Creates a synthetic PDF document in a temporary file.
+     * 
+     * @param pageSize
+     *            the size of the pages
+     * @param pages
+     *            the number of pages
+     * @return the created PDF file
+     * @throws IOException
+     *             in case of a generation error
+     */
+    public static File createSynthetic(PDRectangle pageSize, int pages) throws IOException {
+        File file = File.createTempFile("benchmark-", ".pdf");
+        file.deleteOnExit();
+
+        Random random = new Random(pages);
+        PDDocument document = new PDDocument();
+        try {
+            for (int i = 0; i < pages; i++) {
+                addPage(document, pageSize, i, random);
+            }
+            document.save(file);
+        } finally {
+            document.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns the PDF file for the specified document reference.
+     * 
+     * @param document
+     *            either the reference of a synthetic document, e.g. <code>synthetic-A4-10</code>, or the path of a PDF file
+     * @return the PDF file for the specified document reference
+     * @throws IOException
+     *             in case of a generation error or if the file does not exist
+     */
+    public static File get(String document) throws IOException {
+        if (document.startsWith(SYNTHETIC_PREFIX)) {
+            String[] parts = document.substring(SYNTHETIC_PREFIX.length()).split("-");
+            return createSynthetic(getPageSize(parts[0]),
+                    parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+
+        File file = new File(document);
+        if (!file.isFile()) {
+            throw new IOException("Sample PDF document " + file + " does not exist");
+        }
+
+        return file;
+    }
+
+    private static PDRectangle getPageSize(String name) {
+        if ("A0".equalsIgnoreCase(name)) {
+            return PDRectangle.A0;
+        } else if ("A3".equalsIgnoreCase(name)) {
+            return PDRectangle.A3;
+        }
+
+        return PDRectangle.A4;
+    }
+
+    /**
+     * Deletes the specified file if it is a synthetic document.
+     * 
+     * @param document
+     *            the document reference
+     * @param file
+     *            the PDF file
+     */
+    public static void release(String document, File file) {
+        if (file != null && document.startsWith(SYNTHETIC_PREFIX)) {
+            file.delete();
+        }
+    }
+
+    private SamplePDFs() {
+        super();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.jahia.dm.utils.ThumbnailImageEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of a thumbnail image into PNG and JPEG with the {@link ThumbnailImageEncoder}, as done when the thumbnail node is
+ * stored. The PNG encodings are the JDK writer defaults (<code>png</code>) and the explicit deflate levels (<code>png-N</code>).
+ * 
+ * @author Sergiy Shyrkov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThumbnailEncodingBenchmark {
+
+    private ThumbnailImageEncoder encoder;
+
+    @Param({ "png", "png-1", "png-6", "png-9", "jpeg" })
+    private String encoding;
+
+    private BufferedImage thumbnail;
+
+    @Param({ "150", "350" })
+    private int thumbnailSize;
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(16 * 1024);
+        encoder.encode(thumbnail, os);
+        return os.toByteArray();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        thumbnail = ResizeBenchmark.renderFirstPage("synthetic-A4-1", thumbnailSize);
+        if ("jpeg".equals(encoding)) {
+            encoder = new ThumbnailImageEncoder("jpeg", 0.85f);
+        } else {
+            encoder = new ThumbnailImageEncoder(encoding.startsWith("png-") ? Integer.parseInt(encoding
+                    .substring(4)) : -1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encoder.dispose();
+        thumbnail.flush();
+    }
+}
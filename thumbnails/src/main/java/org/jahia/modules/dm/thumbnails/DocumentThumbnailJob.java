@@ -43,6 +43,9 @@
  */
 package org.jahia.modules.dm.thumbnails;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.commons.lang.StringUtils;
 import org.jahia.dm.DocumentManagement;
 import org.jahia.dm.DocumentOperationJob;
@@ -66,6 +69,8 @@ public class DocumentThumbnailJob extends DocumentOperationJob {
 
     public static final String THUMBNAIL_NAME = "thumbnailName";
 
+    public static final String THUMBNAILS = "thumbnails";
+
     public static final String THUMBNAIL_SIZE = "thumbnailSize";
 
     protected void doOperation(JCRNodeWrapper documentNode, JobExecutionContext jobExecutionContext)
@@ -80,12 +85,43 @@ public class DocumentThumbnailJob extends DocumentOperationJob {
 
         JobDataMap jobDataMap = jobExecutionContext.getJobDetail().getJobDataMap();
 
-        int intValue = jobDataMap.getIntValue(THUMBNAIL_SIZE);
+        String thumbnails = jobDataMap.getString(THUMBNAILS);
+        if (StringUtils.isNotBlank(thumbnails)) {
+            service.createThumbnailsForNode(documentNode, parseThumbnails(thumbnails));
+        } else {
+            int intValue = jobDataMap.getIntValue(THUMBNAIL_SIZE);
+
+            service.createThumbnailForNode(documentNode,
+                    StringUtils.defaultIfBlank(jobDataMap.getString(THUMBNAIL_NAME), "thumbnail"),
+                    intValue > 0 ? intValue : 150);
+        }
+    }
 
-        service.createThumbnailForNode(documentNode,
-                StringUtils.defaultIfBlank(jobDataMap.getString(THUMBNAIL_NAME), "thumbnail"),
-                intValue > 0 ? intValue : 150);
+    /**
+     * Parses the thumbnail definitions in the form of <code>name1:size1,name2:size2</code> into a map, preserving the declaration order.
+     * A definition without a name, e.g. <code>150</code>, is created under the <code>thumbnail</code> name.
+     * 
+     * @param thumbnails
+     *            the comma-separated thumbnail definitions
+     * @return a map of thumbnail node names to their sizes
+     */
+    static Map<String, Integer> parseThumbnails(String thumbnails) {
+        Map<String, Integer> parsed = new LinkedHashMap<String, Integer>();
+        for (String definition : StringUtils.split(thumbnails, ',')) {
+            definition = definition.trim();
+            String name = StringUtils.substringBeforeLast(definition, ":").trim();
+            String size = StringUtils.substringAfterLast(definition, ":").trim();
+            if (!definition.contains(":")) {
+                name = "thumbnail";
+                size = definition;
+            }
+            if (name.length() == 0 || size.length() == 0 || !StringUtils.isNumeric(size)) {
+                logger.warn("Skipping invalid thumbnail definition '{}'", definition);
+                continue;
+            }
+            parsed.put(name, Integer.valueOf(size));
+        }
 
-        documentNode.getSession().save();
+        return parsed;
     }
 }
@@ -44,7 +44,11 @@
 package org.jahia.modules.dm.thumbnails;
 
 import org.drools.core.spi.KnowledgeHelper;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperation;
+import org.jahia.dm.DocumentOperationExecutor;
 import org.jahia.dm.DocumentOperationJob;
+import org.jahia.dm.cache.FailureCache;
 import org.jahia.dm.thumbnails.DocumentThumbnailService;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.rules.AddedNodeFact;
@@ -91,7 +95,8 @@ public class DocumentThumbnailRuleService {
                         nodeFact.getPath());
             }
             return;
-        } else if (!thumbnailService.canHandle(nodeFact.getNode())) {
+        } else if (!thumbnailService.canHandle(nodeFact.getNode())
+                || DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(), FailureCache.THUMBNAIL)) {
             return;
         }
 
@@ -106,6 +111,40 @@ public class DocumentThumbnailRuleService {
         }
     }
 
+    /**
+     * Generates several thumbnails for the provided document node, rendering the document only once.
+     *
+     * @param nodeFact   the node to create thumbnails for
+     * @param thumbnails the thumbnail definitions in the form of <code>name1:size1,name2:size2</code>
+     * @param drools     the rule engine helper class
+     * @throws RepositoryException in case of an error
+     */
+    public void createThumbnails(AddedNodeFact nodeFact, String thumbnails, KnowledgeHelper drools)
+            throws RepositoryException {
+        if (thumbnailService == null || !thumbnailService.isEnabled()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(
+                        "Thumbnail generation service is not enabled. Skipping generation for node {}",
+                        nodeFact.getPath());
+            }
+            return;
+        } else if (!thumbnailService.canHandle(nodeFact.getNode())
+                || DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(), FailureCache.THUMBNAIL)) {
+            return;
+        }
+
+        try {
+            if (asBackgroundJob) {
+                scheduleAsJob(nodeFact.getNode(), thumbnails);
+            } else {
+                thumbnailService.createThumbnailsForNode(nodeFact.getNode(),
+                        DocumentThumbnailJob.parseThumbnails(thumbnails));
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
     /**
      * Returns <code>true</code> if the document thumbnails service is enabled.
      *
@@ -116,8 +155,31 @@ public class DocumentThumbnailRuleService {
         return thumbnailService != null && thumbnailService.isEnabled();
     }
 
-    protected void scheduleAsJob(JCRNodeWrapper doc, String thumbnailName, int thumbnailSize)
+    private static DocumentThumbnailService getService(JCRNodeWrapper documentNode)
+            throws RepositoryException {
+        DocumentThumbnailService service = DocumentManagement.getInstance().getDocumentThumbnailService();
+        if (service == null || !service.isEnabled()) {
+            logger.info(
+                    "Thumbnail generation service is not enabled. Skipping generation of a thumbnail for node {}",
+                    documentNode.getPath());
+            return null;
+        }
+        return service;
+    }
+
+    protected void scheduleAsJob(JCRNodeWrapper doc, final String thumbnailName, final int thumbnailSize)
             throws SchedulerException, RepositoryException {
+        if (submit(doc, thumbnailName + ":" + thumbnailSize, new DocumentOperation() {
+            public void execute(JCRNodeWrapper documentNode) throws Exception {
+                DocumentThumbnailService service = getService(documentNode);
+                if (service != null) {
+                    service.createThumbnailForNode(documentNode, thumbnailName, thumbnailSize);
+                }
+            }
+        })) {
+            return;
+        }
+
         // execute as a background job
         JobDetail jobDetail = BackgroundJob.createJahiaJob(
                 "Document thumbnail for " + doc.getName(), DocumentThumbnailJob.class);
@@ -131,6 +193,49 @@ public class DocumentThumbnailRuleService {
         schedulerService.scheduleJobAtEndOfRequest(jobDetail);
     }
 
+    protected void scheduleAsJob(JCRNodeWrapper doc, final String thumbnails)
+            throws SchedulerException, RepositoryException {
+        if (submit(doc, thumbnails, new DocumentOperation() {
+            public void execute(JCRNodeWrapper documentNode) throws Exception {
+                DocumentThumbnailService service = getService(documentNode);
+                if (service != null) {
+                    service.createThumbnailsForNode(documentNode,
+                            DocumentThumbnailJob.parseThumbnails(thumbnails));
+                }
+            }
+        })) {
+            return;
+        }
+
+        // execute as a background job
+        JobDetail jobDetail = BackgroundJob.createJahiaJob(
+                "Document thumbnails for " + doc.getName(), DocumentThumbnailJob.class);
+        JobDataMap jobDataMap = jobDetail.getJobDataMap();
+        jobDataMap.put(DocumentOperationJob.JOB_UUID, doc.getIdentifier());
+        jobDataMap.put(DocumentOperationJob.JOB_WORKSPACE, doc.getSession().getWorkspace()
+                .getName());
+        jobDataMap.put(DocumentThumbnailJob.THUMBNAILS, thumbnails);
+
+        schedulerService.scheduleJobAtEndOfRequest(jobDetail);
+    }
+
+    /**
+     * Submits the operation to the document operation executor, if it is available.
+     *
+     * @param doc           the document node
+     * @param discriminator the operation parameters to coalesce duplicate submissions on
+     * @param operation     the operation to execute
+     * @return <code>true</code> if the operation was accepted by the executor; <code>false</code> if it has to be scheduled as a
+     * background job
+     * @throws RepositoryException in case of an error
+     */
+    protected boolean submit(JCRNodeWrapper doc, String discriminator, DocumentOperation operation)
+            throws RepositoryException {
+        DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+        return executor != null
+                && executor.submit(DocumentOperationExecutor.DOCUMENT_THUMBNAIL, doc, discriminator, operation);
+    }
+
     public void setAsBackgroundJob(boolean asBackgorundJob) {
         this.asBackgroundJob = asBackgorundJob;
     }
@@ -43,20 +43,530 @@
  */
 package org.jahia.modules.dm.thumbnails.impl;
 
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.thumbnails.PageImageConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
 /**
- * Creates images for PDF document pages.
+ * Creates images for PDF document pages. If a {@link RenderMemoryBudget} is configured, the raster memory of each page is reserved from
+ * it before the page is rendered.
  * 
  * @author Sergiy Shyrkov
  */
-abstract class AbstractPDF2ImageConverterService implements PDF2ImageConverter {
+abstract class AbstractPDF2ImageConverterService implements PDF2ImageConverter, DisposableBean {
+
+    /**
+     * Renders the pages of a single loaded document.
+     */
+    protected interface DocumentRenderer {
+
+        /**
+         * Returns the thumbnail image, embedded into the specified page (<code>/Thumb</code>), if present and supported by the engine.
+         * 
+         * @param pageNumber
+         *            the 0-based page number
+         * @return the thumbnail image, embedded into the specified page, or <code>null</code> if it is not present or cannot be read
+         */
+        BufferedImage getEmbeddedThumbnail(int pageNumber);
+
+        /**
+         * Returns the number of pages in the loaded document.
+         * 
+         * @return the number of pages in the loaded document
+         */
+        int getNumberOfPages();
+
+        /**
+         * Returns the size of the specified page in points, with the page rotation applied.
+         * 
+         * @param pageNumber
+         *            the 0-based page number
+         * @return the size of the specified page in points or <code>null</code> if it is not known without rendering the page
+         * @throws Exception
+         *             in case the page cannot be read
+         */
+        Dimension getPageSize(int pageNumber) throws Exception;
+
+        /**
+         * Releases the renderer and the loaded document.
+         * 
+         * @param reusable
+         *            <code>true</code> if the renderer completed its work without errors and can be kept for subsequent renders
+         */
+        void release(boolean reusable);
+
+        /**
+         * Renders the specified page of the loaded document into the provided target box.
+         * 
+         * @param pageNumber
+         *            the 0-based page number
+         * @param maxWidth
+         *            the maximum width of the image in pixels; a value less or equal to <code>0</code> means no constraint
+         * @param maxHeight
+         *            the maximum height of the image in pixels; a value less or equal to <code>0</code> means no constraint
+         * @return the rendered page image
+         * @throws Exception
+         *             in case of a rendering error
+         */
+        BufferedImage renderPage(int pageNumber, int maxWidth, int maxHeight) throws Exception;
+    }
+
+    /**
+     * The state of a single batch rendering call.
+     */
+    private final class RenderBatch {
+
+        private final PageImageConsumer consumer;
+
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private final int maxHeight;
+
+        private final int maxWidth;
+
+        private final File pdfFile;
+
+        private final DocumentRenderer primary;
+
+        private final AtomicBoolean primaryTaken = new AtomicBoolean();
+
+        private final AtomicInteger rendered = new AtomicInteger();
+
+        private final ConcurrentMap<Thread, DocumentRenderer> renderers = new ConcurrentHashMap<Thread, DocumentRenderer>();
+
+        RenderBatch(File pdfFile, DocumentRenderer primary, int maxWidth, int maxHeight,
+                PageImageConsumer consumer) {
+            super();
+            this.pdfFile = pdfFile;
+            this.primary = primary;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.consumer = consumer;
+        }
+
+        DocumentRenderer getRenderer() throws Exception {
+            if (isRendererShareable()) {
+                return primary;
+            }
+            Thread current = Thread.currentThread();
+            DocumentRenderer renderer = renderers.get(current);
+            if (renderer == null) {
+                // the first render thread takes over the already loaded document, the others load their own copy
+                renderer = primaryTaken.compareAndSet(false, true) ? primary : openRenderer(pdfFile);
+                renderers.put(current, renderer);
+            }
+            return renderer;
+        }
+
+        void release() {
+            boolean reusable = !failed.get();
+            for (DocumentRenderer renderer : renderers.values()) {
+                if (renderer != primary) {
+                    renderer.release(reusable);
+                }
+            }
+            primary.release(reusable);
+        }
+    }
+
+    /**
+     * Renders a range of pages, splitting it in halves until a single page is left. Each render thread uses its own renderer, unless the
+     * renderer of the document can be shared.
+     */
+    private final class RenderPagesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2411470366387290612L;
+
+        private final RenderBatch batch;
+
+        private final int first;
+
+        private final int last;
+
+        RenderPagesTask(RenderBatch batch, int first, int last) {
+            super();
+            this.batch = batch;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (batch.failed.get()) {
+                return;
+            }
+            if (first < last) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new RenderPagesTask(batch, first, middle), new RenderPagesTask(batch,
+                        middle + 1, last));
+                return;
+            }
+
+            BufferedImage image = null;
+            RenderMemoryBudget.Reservation reservation = null;
+            try {
+                DocumentRenderer renderer = batch.getRenderer();
+                reservation = reserve(renderer, first, batch.maxWidth, batch.maxHeight);
+                image = reservation != null ? renderer.renderPage(first, reservation.getMaxWidth(),
+                        reservation.getMaxHeight()) : renderer.renderPage(first, batch.maxWidth,
+                        batch.maxHeight);
+                if (image == null) {
+                    throw new DocumentOperationException("Unable to render page " + first
+                            + " of the file " + batch.pdfFile);
+                }
+                batch.consumer.pageRendered(first, image);
+                batch.rendered.incrementAndGet();
+            } catch (Exception e) {
+                batch.failed.set(true);
+                throw e instanceof RuntimeException ? (RuntimeException) e
+                        : new DocumentOperationException("Error occurred trying to generate an image for the page "
+                                + first + " of the file " + batch.pdfFile, e);
+            } finally {
+                // the pixel buffer is reused for the next pages
+                if (image != null) {
+                    if (rasterPool != null) {
+                        rasterPool.release(image);
+                    } else {
+                        image.flush();
+                    }
+                }
+                // the raster is kept until the consumer is done with it
+                if (reservation != null) {
+                    reservation.release();
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractPDF2ImageConverterService.class);
 
     private boolean enabled = true;
 
+    private float maxZoom = 4;
+
+    private RenderMemoryBudget memoryBudget;
+
+    private RasterPool rasterPool;
+
+    private int renderParallelism = Runtime.getRuntime().availableProcessors();
+
+    private volatile ForkJoinPool renderPool;
+
+    public void destroy() throws Exception {
+        ForkJoinPool pool = renderPool;
+        renderPool = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    public PageInfo getFirstPage(File pdfFile, int maxWidth, int maxHeight,
+            boolean useEmbeddedThumbnail) throws DocumentOperationException {
+        long timer = System.currentTimeMillis();
+
+        DocumentRenderer renderer = null;
+        BufferedImage image = null;
+        boolean embedded = false;
+        try {
+            renderer = openRenderer(pdfFile);
+            int pageCount = renderer.getNumberOfPages();
+            if (pageCount == 0) {
+                throw new DocumentOperationException("The file " + pdfFile + " has no pages");
+            }
+            Dimension pageSize = renderer.getPageSize(0);
+
+            if (useEmbeddedThumbnail && (maxWidth > 0 || maxHeight > 0)) {
+                image = renderer.getEmbeddedThumbnail(0);
+                // the thumbnail is used only if it does not need to be upscaled in at least one dimension
+                if (image != null && !(maxWidth > 0 && image.getWidth() >= maxWidth || maxHeight > 0
+                        && image.getHeight() >= maxHeight)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Embedded thumbnail of the file {} is too small ({}x{})", new Object[] {
+                                pdfFile, image.getWidth(), image.getHeight() });
+                    }
+                    image.flush();
+                    image = null;
+                }
+                embedded = image != null;
+            }
+            if (image == null) {
+                image = renderPage(renderer, 0, maxWidth, maxHeight);
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Read page information and {} the first page of the file {} in {} ms",
+                        new Object[] { embedded ? "the embedded thumbnail of" : "generated an image for",
+                                pdfFile, (System.currentTimeMillis() - timer) });
+            }
+
+            return new PageInfo(pageCount, pageSize != null ? pageSize.width : 0,
+                    pageSize != null ? pageSize.height : 0, image, embedded);
+        } catch (Exception e) {
+            if (renderer != null) {
+                renderer.release(false);
+                renderer = null;
+            }
+            throw e instanceof DocumentOperationException ? (DocumentOperationException) e
+                    : new DocumentOperationException("Error occurred trying to generate an image for the first page of the file "
+                            + pdfFile, e);
+        } finally {
+            if (renderer != null) {
+                renderer.release(true);
+            }
+        }
+    }
+
+    public int getImagesOfPages(File pdfFile, int firstPage, int lastPage, int maxWidth,
+            int maxHeight, PageImageConsumer consumer) throws DocumentOperationException {
+        long timer = System.currentTimeMillis();
+
+        DocumentRenderer primary;
+        try {
+            primary = openRenderer(pdfFile);
+        } catch (Exception e) {
+            throw new DocumentOperationException("Error occurred trying to load the file " + pdfFile, e);
+        }
+
+        RenderBatch batch = new RenderBatch(pdfFile, primary, maxWidth, maxHeight, consumer);
+        try {
+            int pageCount = primary.getNumberOfPages();
+            int first = Math.max(0, firstPage);
+            int last = lastPage < 0 ? pageCount - 1 : Math.min(lastPage, pageCount - 1);
+            if (first <= last) {
+                getRenderPool().submit(new RenderPagesTask(batch, first, last)).get();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Generated images for {} pages of the file {} in {} ms", new Object[] {
+                        batch.rendered.get(), pdfFile, (System.currentTimeMillis() - timer) });
+            }
+            return batch.rendered.get();
+        } catch (InterruptedException e) {
+            batch.failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while generating images for the pages of the file "
+                    + pdfFile, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentOperationException) {
+                throw (DocumentOperationException) cause;
+            }
+            throw new DocumentOperationException("Error occurred trying to generate images for the pages of the file "
+                    + pdfFile, cause);
+        } finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * Returns the maximum zoom factor used when rendering small pages into a larger target box.
+     * 
+     * @return the maximum zoom factor used when rendering small pages into a larger target box
+     */
+    protected float getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the pool of pixel buffers to render the page images into or <code>null</code> if the images are allocated by the rendering
+     * library.
+     * 
+     * @return the pool of pixel buffers to render the page images into or <code>null</code>
+     */
+    protected RasterPool getRasterPool() {
+        return rasterPool;
+    }
+
+    private ForkJoinPool getRenderPool() {
+        ForkJoinPool pool = renderPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = renderPool;
+                if (pool == null) {
+                    final ClassLoader classLoader = getClass().getClassLoader();
+                    final AtomicInteger count = new AtomicInteger();
+                    pool = new ForkJoinPool(Math.max(1, renderParallelism),
+                            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                                    ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+                                    };
+                                    t.setName("dm-pdf-render-" + count.incrementAndGet());
+                                    t.setDaemon(true);
+                                    // image readers and font lookups rely on the context class loader of the module
+                                    t.setContextClassLoader(classLoader);
+                                    return t;
+                                }
+                            }, null, false);
+                    renderPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Computes the zoom factor for rendering a page of the specified size, so that it fits into the target box.
+     * 
+     * @param pageWidth
+     *            the page width in points
+     * @param pageHeight
+     *            the page height in points
+     * @param maxWidth
+     *            the maximum width of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @return the zoom factor to render the page with
+     */
+    protected float getZoom(float pageWidth, float pageHeight, int maxWidth, int maxHeight) {
+        float zoom = maxZoom;
+        if (maxWidth > 0 && pageWidth > 0) {
+            zoom = Math.min(zoom, maxWidth / pageWidth);
+        }
+        if (maxHeight > 0 && pageHeight > 0) {
+            zoom = Math.min(zoom, maxHeight / pageHeight);
+        }
+
+        return zoom;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
 
+    /**
+     * Returns <code>true</code> if a single {@link DocumentRenderer} can be used by several render threads at the same time; otherwise
+     * each render thread of a batch loads its own copy of the document.
+     * 
+     * @return <code>true</code> if a single {@link DocumentRenderer} can be used by several render threads at the same time
+     */
+    protected abstract boolean isRendererShareable();
+
+    /**
+     * Loads the specified document for rendering its pages.
+     * 
+     * @param pdfFile
+     *            the PDF file to load
+     * @return the renderer of the loaded document
+     * @throws Exception
+     *             in case the document cannot be loaded
+     */
+    protected abstract DocumentRenderer openRenderer(File pdfFile) throws Exception;
+
+    /**
+     * Renders the specified page with the provided renderer, reserving its raster memory from the render memory budget, if configured.
+     * The reservation is attached to the returned image and is kept until the consumer releases the image using
+     * {@link RenderMemoryBudget#release(BufferedImage)}.
+     * 
+     * @param renderer
+     *            the renderer of the loaded document
+     * @param pageNumber
+     *            the 0-based page number
+     * @param maxWidth
+     *            the maximum width of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @return the rendered page image
+     * @throws Exception
+     *             in case of a rendering error or if the raster memory cannot be reserved
+     */
+    protected BufferedImage renderPage(DocumentRenderer renderer, int pageNumber, int maxWidth,
+            int maxHeight) throws Exception {
+        RenderMemoryBudget.Reservation reservation = reserve(renderer, pageNumber, maxWidth,
+                maxHeight);
+        if (reservation == null) {
+            return renderer.renderPage(pageNumber, maxWidth, maxHeight);
+        }
+        BufferedImage image = null;
+        try {
+            image = renderer.renderPage(pageNumber, reservation.getMaxWidth(),
+                    reservation.getMaxHeight());
+            if (image != null) {
+                memoryBudget.attach(image, reservation);
+            }
+            return image;
+        } finally {
+            if (image == null) {
+                reservation.release();
+            }
+        }
+    }
+
+    /**
+     * Reserves the raster memory for the specified page from the render memory budget. Returns <code>null</code> if no budget is
+     * configured.
+     */
+    private RenderMemoryBudget.Reservation reserve(DocumentRenderer renderer, int pageNumber,
+            int maxWidth, int maxHeight) throws Exception {
+        if (memoryBudget == null) {
+            return null;
+        }
+        Dimension pageSize = renderer.getPageSize(pageNumber);
+        if (pageSize == null) {
+            return memoryBudget.reserve(0, 0, 1, maxWidth, maxHeight);
+        }
+        float zoom = maxWidth <= 0 && maxHeight <= 0 ? 1 : getZoom(pageSize.width,
+                pageSize.height, maxWidth, maxHeight);
+
+        return memoryBudget.reserve(pageSize.width, pageSize.height, zoom, maxWidth, maxHeight);
+    }
+
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    /**
+     * Sets the maximum zoom factor used when rendering small pages into a larger target box.
+     * 
+     * @param maxZoom
+     *            the maximum zoom factor
+     */
+    public void setMaxZoom(float maxZoom) {
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Sets the global budget of heap memory for page rasters. If not set, pages are rendered without admission control.
+     * 
+     * @param memoryBudget
+     *            the global budget of heap memory for page rasters
+     */
+    public void setMemoryBudget(RenderMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the pool of pixel buffers to render the page images into. The images returned by the converter are then backed by pooled
+     * buffers, which the caller may return using {@link RasterPool#release(BufferedImage)} once done.
+     * 
+     * @param rasterPool
+     *            the pool of pixel buffers to render the page images into
+     */
+    public void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    /**
+     * Sets the number of threads, rendering the pages of a document in parallel.
+     * 
+     * @param renderParallelism
+     *            the number of threads, rendering the pages of a document in parallel; <code>0</code> to use the number of available
+     *            processors
+     */
+    public void setRenderParallelism(int renderParallelism) {
+        this.renderParallelism = renderParallelism > 0 ? renderParallelism : Runtime.getRuntime()
+                .availableProcessors();
+    }
 }
@@ -45,23 +45,30 @@ package org.jahia.modules.dm.thumbnails.impl;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.jcr.Binary;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.jackrabbit.value.BinaryImpl;
 import org.jahia.api.Constants;
+import org.jahia.dm.DocumentManagement;
 import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.cache.CachedPDF;
+import org.jahia.dm.cache.ConversionRequest;
+import org.jahia.dm.cache.FailureCache;
+import org.jahia.dm.metrics.DocumentMetrics;
 import org.jahia.dm.thumbnails.DocumentThumbnailService;
+import org.jahia.dm.thumbnails.PageImageConsumer;
+import org.jahia.dm.utils.LocalBinary;
+import org.jahia.dm.utils.PageInfoUtils;
+import org.jahia.dm.utils.SpillOutputStream;
+import org.jahia.dm.utils.ThumbnailImageEncoder;
 import org.jahia.services.content.JCRContentUtils;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.image.JahiaImageService;
@@ -69,24 +76,43 @@ import org.jahia.services.image.JahiaImageService.ResizeType;
 import org.jahia.services.transform.DocumentConverterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
  * The document thumbnail generation service.
  * 
  * @author Sergiy Shyrkov
  */
-public class DocumentThumbnailServiceImpl implements DocumentThumbnailService {
+public class DocumentThumbnailServiceImpl implements DocumentThumbnailService, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentThumbnailServiceImpl.class);
 
+    private int conversionResolution = 150;
+
     private DocumentConverterService documentConverter;
 
+    private boolean embeddedPreviewEnabled = true;
+
     private boolean enabled = true;
 
+    private boolean firstPageConversion = true;
+
+    private volatile ThumbnailImageEncoder encoder;
+
     private JahiaImageService imageService;
 
+    private float jpegQuality = 0.85f;
+
+    private RenderMemoryBudget memoryBudget;
+
     private PDF2ImageConverter pdf2ImageConverter;
 
+    private int pngCompressionLevel = -1;
+
+    private RasterPool rasterPool;
+
+    private int spillThreshold = 256 * 1024;
+
     private String[] supportedDocumentFormats;
     
     private boolean usePNGForThumbnailImage = true;
@@ -107,8 +133,10 @@ public class DocumentThumbnailServiceImpl implements DocumentThumbnailService {
             String mimeType = fileNode.getFileContent().getContentType();
             canHandle = JCRContentUtils.isMimeTypeGroup(mimeType, supportedDocumentFormats);
             if (canHandle && !JCRContentUtils.isMimeTypeGroup(mimeType, "pdf")) {
-                // if the document is not a PDF and the document converter service is not enabled, we cannot handle the file
-                canHandle = documentConverter != null && documentConverter.isEnabled();
+                // if the document is not a PDF and the document converter service is not enabled, we can only handle the file if it
+                // may carry an embedded preview
+                canHandle = documentConverter != null && documentConverter.isEnabled()
+                        || embeddedPreviewEnabled && EmbeddedPreviewReader.isSupported(mimeType);
             }
         }
         return canHandle;
@@ -116,89 +144,227 @@ public class DocumentThumbnailServiceImpl implements DocumentThumbnailService {
 
     public boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName,
             int thumbnailSize) throws RepositoryException, DocumentOperationException {
-        if (!canHandle(fileNode)) {
+        return createThumbnailsForNode(fileNode,
+                Collections.singletonMap(thumbnailName, Integer.valueOf(thumbnailSize)));
+    }
+
+    public boolean createThumbnailsForNode(JCRNodeWrapper fileNode, Map<String, Integer> thumbnails)
+            throws RepositoryException, DocumentOperationException {
+        if (thumbnails == null || thumbnails.isEmpty() || !canHandle(fileNode)) {
+            return false;
+        }
+
+        DocumentManagement dm = DocumentManagement.getInstance();
+        if (dm.isOperationBlocked(fileNode, FailureCache.THUMBNAIL)) {
+            dm.getMetrics().recordOutcome(FailureCache.THUMBNAIL,
+                    DocumentMetrics.getMimeGroup(fileNode.getFileContent().getContentType()),
+                    DocumentMetrics.OUTCOME_BLOCKED);
             return false;
         }
 
         long timer = System.currentTimeMillis();
+        DocumentMetrics metrics = dm.getMetrics();
+        String mimeGroup = DocumentMetrics.getMimeGroup(fileNode.getFileContent().getContentType());
+
+        int created = 0;
 
-        JCRNodeWrapper thumbNode = null;
+        // render the page directly at the largest requested size
+        int maxSize = 0;
+        for (Integer thumbnailSize : thumbnails.values()) {
+            maxSize = Math.max(maxSize, thumbnailSize);
+        }
 
         BufferedImage image = null;
-        BufferedImage thumbnail = null;
         try {
-            image = getImageOfFirstPageForNode(fileNode);
+            image = getImageOfFirstPage(fileNode, maxSize, maxSize, true);
 
             if (image != null) {
-                thumbnail = imageService.resizeImage(image, thumbnailSize, thumbnailSize, ResizeType.ADJUST_SIZE);
-                thumbNode = storeThumbnailNode(fileNode, thumbnail, thumbnailName);
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Generated thumbnail {} for node {} in {} ms", new Object[] {
-                            thumbNode.getPath(), fileNode.getPath(),
-                            (System.currentTimeMillis() - timer) });
+                for (Map.Entry<String, Integer> thumbnailDef : thumbnails.entrySet()) {
+                    int thumbnailSize = thumbnailDef.getValue();
+                    BufferedImage thumbnail = null;
+                    try {
+                        if (image.getWidth() <= thumbnailSize && image.getHeight() <= thumbnailSize) {
+                            thumbnail = image;
+                        } else {
+                            long resizeTimer = System.currentTimeMillis();
+                            thumbnail = rasterPool != null ? rasterPool.resize(image,
+                                    thumbnailSize, thumbnailSize) : imageService.resizeImage(
+                                    image, thumbnailSize, thumbnailSize, ResizeType.ADJUST_SIZE);
+                            metrics.recordStage(DocumentMetrics.STAGE_RESIZE, mimeGroup, resizeTimer);
+                        }
+                        JCRNodeWrapper thumbNode = storeThumbnailNode(fileNode, thumbnail,
+                                thumbnailDef.getKey());
+                        if (thumbNode != null) {
+                            created++;
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Generated thumbnail {} for node {} in {} ms",
+                                        new Object[] { thumbNode.getPath(), fileNode.getPath(),
+                                                (System.currentTimeMillis() - timer) });
+                            }
+                        }
+                    } finally {
+                        if (thumbnail != null && thumbnail != image) {
+                            release(thumbnail);
+                        }
+                    }
                 }
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            dm.recordOperationFailure(fileNode, FailureCache.THUMBNAIL, e);
         } finally {
             if (image != null) {
-                image.flush();
+                release(image);
+            }
+        }
+
+        if (created == thumbnails.size()) {
+            dm.recordOperationSuccess(fileNode, FailureCache.THUMBNAIL);
+            metrics.recordOutcome(FailureCache.THUMBNAIL, mimeGroup, DocumentMetrics.OUTCOME_SUCCESS);
+            return true;
+        }
+
+        metrics.recordOutcome(FailureCache.THUMBNAIL, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+        return false;
+    }
+
+    public void destroy() throws Exception {
+        ThumbnailImageEncoder current = encoder;
+        encoder = null;
+        if (current != null) {
+            current.dispose();
+        }
+    }
+
+    /**
+     * Reads the preview image, embedded into the OOXML or ODF document, if it is large enough for the requested target box, so that the
+     * document does not need to be converted into a PDF.
+     */
+    private BufferedImage getEmbeddedPreview(JCRNodeWrapper fileNode, String contentType,
+            int maxWidth, int maxHeight) throws RepositoryException {
+        if (!embeddedPreviewEnabled || maxWidth <= 0 && maxHeight <= 0
+                || !EmbeddedPreviewReader.isSupported(contentType)) {
+            return null;
+        }
+
+        long timer = System.currentTimeMillis();
+        LocalBinary source = null;
+        BufferedImage image = null;
+        try {
+            source = DocumentManagement.getInstance().getLocalBinary(fileNode);
+            image = EmbeddedPreviewReader.read(source.getFile());
+        } catch (IOException e) {
+            logger.warn("Unable to download the document " + fileNode.getPath()
+                    + " for reading its embedded preview", e);
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+
+        if (image != null && !isLargeEnough(image, maxWidth, maxHeight)) {
+            // too small for the target box: render the page instead of upscaling the preview
+            if (logger.isDebugEnabled()) {
+                logger.debug("Embedded preview of the document {} is too small ({}x{})", new Object[] {
+                        fileNode.getPath(), image.getWidth(), image.getHeight() });
             }
-            if (thumbnail != null) {
-                thumbnail.flush();
+            image.flush();
+            image = null;
+        }
+        if (image != null) {
+            DocumentManagement.getInstance().getMetrics().recordStage(
+                    DocumentMetrics.STAGE_EMBEDDED_PREVIEW,
+                    DocumentMetrics.getMimeGroup(contentType), timer);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Read the embedded preview of the document {} in {} ms",
+                        fileNode.getPath(), System.currentTimeMillis() - timer);
             }
         }
 
-        return thumbNode != null;
+        return image;
     }
 
-    public BufferedImage getImageOfFirstPageForNode(JCRNodeWrapper fileNode)
-            throws RepositoryException, DocumentOperationException {
+    private ThumbnailImageEncoder getEncoder() {
+        ThumbnailImageEncoder current = encoder;
+        if (current == null) {
+            current = usePNGForThumbnailImage ? new ThumbnailImageEncoder(pngCompressionLevel)
+                    : new ThumbnailImageEncoder("jpeg", jpegQuality);
+            encoder = current;
+        }
+        return current;
+    }
+
+    /**
+     * Generates an image for the first page of the document, using the preview image, embedded into the document, if it is large enough.
+     * If requested, the page information of the document is recorded on the node in the same pass.
+     */
+    private BufferedImage getImageOfFirstPage(JCRNodeWrapper fileNode, int maxWidth,
+            int maxHeight, boolean storePageInfo) throws RepositoryException,
+            DocumentOperationException {
         BufferedImage image = null;
 
         long timer = System.currentTimeMillis();
         String sourceContentType = fileNode.getFileContent().getContentType();
-        InputStream pdfInputStream = null;
+        DocumentMetrics metrics = DocumentManagement.getInstance().getMetrics();
+        String mimeGroup = DocumentMetrics.getMimeGroup(sourceContentType);
         File pdfFile = null;
+        LocalBinary source = null;
+        CachedPDF pdf = null;
         try {
             if (JCRContentUtils.isMimeTypeGroup(sourceContentType, "pdf")) {
-                pdfInputStream = fileNode.getFileContent().downloadFile();
+                // the PDF is read with random access from the data store or a temporary copy, never buffered on the heap
+                long downloadTimer = System.currentTimeMillis();
+                source = DocumentManagement.getInstance().getLocalBinary(fileNode);
+                if (source.isTemporary()) {
+                    metrics.recordStage(DocumentMetrics.STAGE_DOWNLOAD, mimeGroup, downloadTimer);
+                }
+                pdfFile = source.getFile();
             } else {
+                image = getEmbeddedPreview(fileNode, sourceContentType, maxWidth, maxHeight);
+                if (image != null) {
+                    return image;
+                }
                 if (documentConverter == null || !documentConverter.isEnabled()) {
                     logger.info("Document conversion service is not enabled."
                             + " Cannot convert node {} into a PDF. Skip generating image.",
                             fileNode.getPath());
                     return null;
+                } else if (firstPageConversion) {
+                    // only the first page is converted; the page count of the document is not known then
+                    pdf = DocumentManagement.getInstance().getPDFCache().getPDF(fileNode,
+                            new ConversionRequest(1, 1, conversionResolution));
                 } else {
-                    long timerPdf = System.currentTimeMillis();
-                    File inFile = null;
-                    try {
-                        inFile = File.createTempFile("doc-thumbnail-source", null);
-                        JCRContentUtils.downloadFileContent(fileNode, inFile);
-                        pdfFile = documentConverter.convert(inFile, sourceContentType,
-                                "application/pdf");
-                        pdfInputStream = new FileInputStream(pdfFile);
-                    } catch (IOException e) {
-                        throw new DocumentOperationException(
-                                "Error occurred trying to generate an image for the first page of the node {}"
-                                        + fileNode.getPath(), e);
-                    } finally {
-                        FileUtils.deleteQuietly(inFile);
-
-                        if (pdfInputStream != null && logger.isDebugEnabled()) {
-                            logger.debug("Converted document {} into a PDF document in {} ms",
-                                    fileNode.getPath(), System.currentTimeMillis() - timerPdf);
-                        }
-                    }
+                    pdf = DocumentManagement.getInstance().getPDFCache().getPDF(fileNode);
+                }
+                if (pdf != null) {
+                    pdfFile = pdf.getFile();
                 }
             }
 
-            if (pdfInputStream != null) {
-                image = pdf2ImageConverter.getImageOfPage(pdfInputStream, 0);
+            if (pdfFile != null) {
+                // the page information and the embedded thumbnail are read from the document, loaded for rendering the page
+                long rasterizeTimer = System.currentTimeMillis();
+                PageInfo info = pdf2ImageConverter.getFirstPage(pdfFile, maxWidth, maxHeight,
+                        embeddedPreviewEnabled && source != null);
+                if (storePageInfo && (source != null || !firstPageConversion)) {
+                    try {
+                        PageInfoUtils.store(fileNode, info.getPageCount(), info.getPageWidth(),
+                                info.getPageHeight());
+                    } catch (RepositoryException e) {
+                        release(info.getImage());
+                        throw e;
+                    }
+                }
+                image = info.getImage();
+                if (image != null) {
+                    metrics.recordStage(info.isEmbeddedThumbnail() ? DocumentMetrics.STAGE_EMBEDDED_PREVIEW
+                            : DocumentMetrics.STAGE_RASTERIZE, mimeGroup, rasterizeTimer);
+                }
             }
+        } catch (IOException e) {
+            throw new DocumentOperationException("Error occurred downloading the document "
+                    + fileNode.getPath() + " into a temporary file", e);
         } finally {
-            IOUtils.closeQuietly(pdfInputStream);
-            FileUtils.deleteQuietly(pdfFile);
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(pdf);
 
             if (image != null && logger.isDebugEnabled()) {
                 logger.debug(
@@ -210,42 +376,179 @@ public class DocumentThumbnailServiceImpl implements DocumentThumbnailService {
         return image;
     }
 
+    public BufferedImage getImageOfFirstPageForNode(JCRNodeWrapper fileNode)
+            throws RepositoryException, DocumentOperationException {
+        return getImageOfFirstPageForNode(fileNode, 0, 0);
+    }
+
+    public BufferedImage getImageOfFirstPageForNode(JCRNodeWrapper fileNode, int maxWidth,
+            int maxHeight) throws RepositoryException, DocumentOperationException {
+        return getImageOfFirstPage(fileNode, maxWidth, maxHeight, false);
+    }
+
     public BufferedImage getImageOfPage(File pdfFile, int pageNumber)
             throws DocumentOperationException {
         return pdf2ImageConverter.getImageOfPage(pdfFile, pageNumber);
     }
 
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException {
+        return pdf2ImageConverter.getImageOfPage(pdfFile, pageNumber, maxWidth, maxHeight);
+    }
+
     public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws DocumentOperationException {
         return pdf2ImageConverter.getImageOfPage(pdfInputStream, pageNumber);
     }
 
+    public int getImagesOfPages(File pdfFile, int firstPage, int lastPage, int maxWidth,
+            int maxHeight, PageImageConsumer consumer) throws DocumentOperationException {
+        return pdf2ImageConverter.getImagesOfPages(pdfFile, firstPage, lastPage, maxWidth,
+                maxHeight, consumer);
+    }
+
+    public int getNumberOfPages(File pdfFile) throws DocumentOperationException {
+        return pdf2ImageConverter.getNumberOfPages(pdfFile);
+    }
+
     public boolean isEnabled() {
         return enabled && pdf2ImageConverter != null && pdf2ImageConverter.isEnabled();
     }
 
+    /**
+     * Checks if the embedded preview image is large enough for the target box, i.e. it does not need to be upscaled in at least one
+     * dimension.
+     */
+    private static boolean isLargeEnough(BufferedImage image, int maxWidth, int maxHeight) {
+        return maxWidth > 0 && image.getWidth() >= maxWidth || maxHeight > 0
+                && image.getHeight() >= maxHeight;
+    }
+
+    /**
+     * Returns the render memory reserved for the image to the budget and the image to the raster pool, if configured, so that its pixel
+     * buffer is reused for the next thumbnail, or flushes it.
+     */
+    private void release(BufferedImage image) {
+        if (memoryBudget != null) {
+            memoryBudget.release(image);
+        }
+        if (rasterPool != null) {
+            rasterPool.release(image);
+        } else {
+            image.flush();
+        }
+    }
+
+    /**
+     * Sets the maximum resolution (DPI) of the images in the PDF, produced for the first page of an office document.
+     * 
+     * @param conversionResolution
+     *            the maximum image resolution in DPI; <code>0</code> to keep the converter defaults
+     */
+    public void setConversionResolution(int conversionResolution) {
+        this.conversionResolution = conversionResolution;
+    }
+
     public void setDocumentConverter(DocumentConverterService documentConverter) {
         this.documentConverter = documentConverter;
     }
 
+    /**
+     * Enables the use of the preview images, embedded into OOXML and ODF documents, for the thumbnails, so that those documents do not
+     * need to be converted into a PDF.
+     * 
+     * @param embeddedPreviewEnabled
+     *            <code>true</code> to use the embedded preview images if they are large enough
+     */
+    public void setEmbeddedPreviewEnabled(boolean embeddedPreviewEnabled) {
+        this.embeddedPreviewEnabled = embeddedPreviewEnabled;
+    }
+
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
 
+    /**
+     * Enables converting only the first page of an office document into a PDF for the thumbnail instead of the whole document. The full
+     * PDF is still used if it is already present in the PDF cache.
+     * 
+     * @param firstPageConversion
+     *            <code>true</code> to convert only the first page of the document for the thumbnail
+     */
+    public void setFirstPageConversion(boolean firstPageConversion) {
+        this.firstPageConversion = firstPageConversion;
+    }
+
     public void setImageService(JahiaImageService imageService) {
         this.imageService = imageService;
     }
 
+    /**
+     * Sets the quality of the JPEG thumbnail images in the range [0, 1].
+     * 
+     * @param jpegQuality
+     *            the quality of the JPEG thumbnail images
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+        this.encoder = null;
+    }
+
+    /**
+     * Sets the render memory budget, whose reservations are attached to the rendered page images, so that they are returned once the
+     * thumbnails are created.
+     * 
+     * @param memoryBudget
+     *            the render memory budget of the PDF to image converters
+     */
+    public void setMemoryBudget(RenderMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
     public void setPDF2ImageConverter(PDF2ImageConverter service) {
         this.pdf2ImageConverter = service;
     }
 
+    /**
+     * Sets the deflate compression level of the PNG thumbnail images in the range [0, 9]. A negative value means the image writer default
+     * is used.
+     * 
+     * @param pngCompressionLevel
+     *            the deflate compression level of the PNG thumbnail images
+     */
+    public void setPngCompressionLevel(int pngCompressionLevel) {
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.encoder = null;
+    }
+
+    /**
+     * Sets the pool of pixel buffers, which the page images are rendered into and the thumbnails are resized into, so that bulk
+     * thumbnail generation reuses the rasters instead of allocating new ones for each document.
+     * 
+     * @param rasterPool
+     *            the pool of pixel buffers
+     */
+    public void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    /**
+     * Sets the maximum size in bytes of an encoded thumbnail to be kept in memory before it is spilled into a temporary file.
+     * 
+     * @param spillThreshold
+     *            the maximum size in bytes of an encoded thumbnail to be kept in memory
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
     public void setSupportedDocumentFormats(String[] supportedDocumentFormats) {
         this.supportedDocumentFormats = supportedDocumentFormats;
     }
 
     public void setUsePNGForThumbnailImage(boolean usePNGForThumbnailImage) {
         this.usePNGForThumbnailImage = usePNGForThumbnailImage;
+        this.encoder = null;
     }
 
     protected JCRNodeWrapper storeThumbnailNode(JCRNodeWrapper fileNode, BufferedImage thumbnail,
@@ -269,23 +572,35 @@ public class DocumentThumbnailServiceImpl implements DocumentThumbnailService {
             node.getProperty(Constants.JCR_DATA).remove();
         }
 
+        DocumentMetrics metrics = DocumentManagement.getInstance().getMetrics();
+        String mimeGroup = DocumentMetrics.getMimeGroup(fileNode.getFileContent().getContentType());
+        ThumbnailImageEncoder imageEncoder = getEncoder();
         Binary b = null;
-        ByteArrayOutputStream os = null;
+        SpillOutputStream os = new SpillOutputStream(16 * 1024, spillThreshold);
+        InputStream is = null;
         try {
-            os = new ByteArrayOutputStream(16 * 1024);
-            ImageIO.write(thumbnail, usePNGForThumbnailImage ? "png" : "jpeg", os);
-            b = new BinaryImpl(os.toByteArray());
+            long timer = System.currentTimeMillis();
+            imageEncoder.encode(thumbnail, os);
+            metrics.recordStage(DocumentMetrics.STAGE_ENCODE, mimeGroup, timer);
+            metrics.recordBytes(DocumentMetrics.STAGE_ENCODE, DocumentMetrics.DIRECTION_OUT,
+                    os.getLength());
+
+            timer = System.currentTimeMillis();
+            is = os.getInputStream();
+            // the value factory of the underlying session streams the data directly into the data store
+            b = node.getRealNode().getSession().getValueFactory().createBinary(is);
             node.setProperty(Constants.JCR_DATA, b);
+            metrics.recordStage(DocumentMetrics.STAGE_STORE, mimeGroup, timer);
         } finally {
-            os = null;
+            IOUtils.closeQuietly(is);
+            os.dispose();
             if (b != null) {
                 b.dispose();
             }
         }
         node.setProperty("j:width", thumbnail.getWidth());
         node.setProperty("j:height", thumbnail.getHeight());
-        node.setProperty(Constants.JCR_MIMETYPE, usePNGForThumbnailImage ? "image/png"
-                : "image/jpeg");
+        node.setProperty(Constants.JCR_MIMETYPE, imageEncoder.getMimeType());
         Calendar lastModified = Calendar.getInstance();
         node.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
         fileNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
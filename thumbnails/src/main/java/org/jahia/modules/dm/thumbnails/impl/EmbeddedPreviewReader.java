@@ -0,0 +1,137 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the preview images, which are embedded by the office suites into the zip containers of OOXML (<code>docProps/thumbnail.*</code>)
+ * and ODF (<code>Thumbnails/thumbnail.png</code>) documents. The container is opened via its central directory, so only the preview entry
+ * is read.
+ * 
+ * @author Sergiy Shyrkov
+ */
+final class EmbeddedPreviewReader {
+
+    private static final String[] ENTRIES = { "docProps/thumbnail.jpeg", "docProps/thumbnail.jpg",
+            "docProps/thumbnail.png", "Thumbnails/thumbnail.png" };
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedPreviewReader.class);
+
+    private static final long MAX_ENTRY_SIZE = 4L * 1024L * 1024L;
+
+    /**
+     * Returns <code>true</code> if documents of the specified content type are zip containers, which may carry an embedded preview.
+     * 
+     * @param contentType
+     *            the content type of the document
+     * @return <code>true</code> if documents of the specified content type may carry an embedded preview
+     */
+    static boolean isSupported(String contentType) {
+        String type = StringUtils.lowerCase(contentType);
+        return type != null
+                && (type.contains("openxmlformats") || type.contains("opendocument") || type
+                        .contains("macroenabled"));
+    }
+
+    /**
+     * Reads the embedded preview image of the specified document.
+     * 
+     * @param documentFile
+     *            the document file
+     * @return the embedded preview image or <code>null</code> if the document carries no readable preview
+     */
+    static BufferedImage read(File documentFile) {
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(documentFile);
+            for (String name : ENTRIES) {
+                ZipEntry entry = zip.getEntry(name);
+                if (entry == null || entry.getSize() > MAX_ENTRY_SIZE) {
+                    continue;
+                }
+                InputStream is = zip.getInputStream(entry);
+                try {
+                    // null if the preview is in a format without an image reader, e.g. a WMF/EMF metafile
+                    BufferedImage image = ImageIO.read(is);
+                    if (image != null) {
+                        return image;
+                    }
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unable to read embedded preview of the file " + documentFile, e);
+            }
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private EmbeddedPreviewReader() {
+        super();
+    }
+}
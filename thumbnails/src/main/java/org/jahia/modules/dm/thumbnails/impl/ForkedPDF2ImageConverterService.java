@@ -0,0 +1,569 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.jahia.dm.DocumentOperationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Creates images for PDF document pages in a small pool of long-lived helper JVMs (see {@link RenderWorker}), so that malformed or huge
+ * documents cannot exhaust the portal heap, leak in static library caches or cause long garbage collection pauses in the portal. The
+ * workers are recycled after a number of jobs or when their heap usage exceeds a threshold, and a worker, which does not complete a job
+ * within the render deadline, is killed.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class ForkedPDF2ImageConverterService extends AbstractPDF2ImageConverterService implements
+        InitializingBean {
+
+    /**
+     * The number of pages of a document and the size of one of its pages, as reported by a worker.
+     */
+    private static final class Pages {
+
+        private final int pageCount;
+
+        private final Dimension pageSize;
+
+        Pages(int pageCount, Dimension pageSize) {
+            super();
+            this.pageCount = pageCount;
+            this.pageSize = pageSize;
+        }
+    }
+
+    /**
+     * A running helper JVM together with its request and response channels.
+     */
+    private static final class Worker {
+
+        private final DataInputStream in;
+
+        private int jobs;
+
+        private final DataOutputStream out;
+
+        private final Process process;
+
+        private volatile boolean timedOut;
+
+        private long usedHeap;
+
+        Worker(Process process) {
+            super();
+            this.process = process;
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream(),
+                    64 * 1024));
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                out.writeByte(RenderWorker.OP_QUIT);
+                out.flush();
+            } catch (IOException e) {
+                // the worker is already gone
+            }
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(in);
+            process.destroy();
+        }
+    }
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(ForkedPDF2ImageConverterService.class);
+
+    private volatile boolean destroyed;
+
+    private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+    private String javaCommand = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+
+    private int maxJobsPerWorker = 200;
+
+    private long maxMainMemory = 16L * 1024L * 1024L;
+
+    private long maxWorkerHeapUsage = 384L * 1024L * 1024L;
+
+    private Semaphore permits;
+
+    private int poolSize = 2;
+
+    private long renderTimeout = 60000L;
+
+    private String targetRenderDestination = "VIEW";
+
+    private ScheduledThreadPoolExecutor watchdog;
+
+    private String workerClasspath;
+
+    private String workerJvmOptions = "-Xmx512m -Djava.awt.headless=true";
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        permits = new Semaphore(Math.max(1, poolSize), true);
+        watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dm-render-worker-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        destroyed = true;
+        synchronized (idleWorkers) {
+            for (Worker worker : idleWorkers) {
+                worker.close();
+            }
+            idleWorkers.clear();
+        }
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Sends a request to a leased worker and reads its response: the rendered image for {@link RenderWorker#OP_RENDER} or the number of
+     * pages together with the size of the requested page for {@link RenderWorker#OP_PAGES}.
+     */
+    private Object execute(byte op, File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException {
+        final Worker worker = lease();
+        boolean reusable = false;
+        ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+            public void run() {
+                worker.timedOut = true;
+                worker.process.destroy();
+            }
+        }, renderTimeout, TimeUnit.MILLISECONDS);
+        try {
+            worker.out.writeByte(op);
+            worker.out.writeUTF(pdfFile.getAbsolutePath());
+            worker.out.writeInt(pageNumber);
+            worker.out.writeInt(maxWidth);
+            worker.out.writeInt(maxHeight);
+            worker.out.flush();
+
+            byte status = worker.in.readByte();
+            worker.usedHeap = worker.in.readLong();
+            worker.jobs++;
+            if (status != RenderWorker.STATUS_OK) {
+                String message = worker.in.readUTF();
+                reusable = status == RenderWorker.STATUS_FAILED;
+                throw new DocumentOperationException("Render worker failed processing the page "
+                        + pageNumber + " of the file " + pdfFile + ": " + message);
+            }
+
+            Object result;
+            if (op == RenderWorker.OP_RENDER) {
+                result = readImage(worker.in);
+            } else {
+                int pageCount = worker.in.readInt();
+                int width = worker.in.readInt();
+                int height = worker.in.readInt();
+                result = new Pages(pageCount, width > 0 && height > 0 ? new Dimension(width, height)
+                        : null);
+            }
+            reusable = true;
+
+            return result;
+        } catch (IOException e) {
+            throw new DocumentOperationException(worker.timedOut ? "Render worker exceeded the deadline of "
+                    + renderTimeout + " ms processing the page " + pageNumber + " of the file " + pdfFile
+                    : "Error communicating with the render worker processing the file " + pdfFile, e);
+        } finally {
+            deadline.cancel(false);
+            release(worker, reusable);
+        }
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber)
+            throws DocumentOperationException {
+        return getImageOfPage(pdfFile, pageNumber, 0, 0);
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException {
+        long timer = System.currentTimeMillis();
+
+        BufferedImage image;
+        try {
+            image = renderPage(newRenderer(pdfFile, new Pages(-1, null)), pageNumber, maxWidth,
+                    maxHeight);
+        } catch (DocumentOperationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DocumentOperationException(
+                    "Error occurred trying to generate an image for the page " + pageNumber
+                            + " of the file " + pdfFile, e);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Generated an image for the page {} of the file {} in {} ms",
+                    new Object[] { pageNumber, pdfFile, (System.currentTimeMillis() - timer) });
+        }
+
+        return image;
+    }
+
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
+            throws DocumentOperationException {
+        return getImageOfPage(pdfInputStream, pageNumber, 0, 0);
+    }
+
+    /**
+     * The workers read documents from the file system only, so the stream is copied into a temporary file first.
+     */
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber, int maxWidth,
+            int maxHeight) throws DocumentOperationException {
+        File pdfFile = null;
+        try {
+            pdfFile = File.createTempFile("doc-pdf-stream", ".pdf");
+            FileUtils.copyInputStreamToFile(pdfInputStream, pdfFile);
+            return getImageOfPage(pdfFile, pageNumber, maxWidth, maxHeight);
+        } catch (IOException e) {
+            throw new DocumentOperationException(
+                    "Error occurred trying to copy the supplied input stream into a temporary file", e);
+        } finally {
+            FileUtils.deleteQuietly(pdfFile);
+        }
+    }
+
+    public int getNumberOfPages(File pdfFile) throws DocumentOperationException {
+        return getPages(pdfFile, 0).pageCount;
+    }
+
+    private Pages getPages(File pdfFile, int pageNumber) throws DocumentOperationException {
+        return (Pages) execute(RenderWorker.OP_PAGES, pdfFile, pageNumber, 0, 0);
+    }
+
+    /**
+     * Returns the configured class path of the workers or, if not configured, the one, built from the locations of the worker and the PDFBox
+     * classes, provided they are loaded from plain JAR files or directories.
+     */
+    private String getWorkerClasspath() throws DocumentOperationException {
+        if (StringUtils.isNotBlank(workerClasspath)) {
+            return workerClasspath;
+        }
+        Set<String> entries = new LinkedHashSet<String>();
+        for (Class<?> clazz : new Class<?>[] { RenderWorker.class, PDDocument.class,
+                TrueTypeFont.class, org.apache.commons.logging.LogFactory.class }) {
+            CodeSource source = clazz.getProtectionDomain().getCodeSource();
+            File location = source != null && source.getLocation() != null ? FileUtils
+                    .toFile(source.getLocation()) : null;
+            if (location == null || !location.exists()) {
+                throw new DocumentOperationException("Unable to determine the class path location of "
+                        + clazz.getName()
+                        + " for the render workers. Please configure jahia.dm.thumbnails.forked.classpath");
+            }
+            entries.add(location.getAbsolutePath());
+        }
+        workerClasspath = StringUtils.join(entries, File.pathSeparator);
+
+        return workerClasspath;
+    }
+
+    /**
+     * Each page is rendered by a leased worker, so the renderer only dispatches the render requests and can be shared.
+     */
+    @Override
+    protected boolean isRendererShareable() {
+        return true;
+    }
+
+    private boolean isWorn(Worker worker) {
+        return worker.jobs >= maxJobsPerWorker || worker.usedHeap > maxWorkerHeapUsage;
+    }
+
+    private Worker lease() throws DocumentOperationException {
+        try {
+            if (!permits.tryAcquire(renderTimeout, TimeUnit.MILLISECONDS)) {
+                throw new DocumentOperationException("No render worker became available within "
+                        + renderTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while waiting for a render worker", e);
+        }
+
+        Worker worker;
+        synchronized (idleWorkers) {
+            worker = idleWorkers.poll();
+        }
+        if (worker == null) {
+            try {
+                worker = start();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        return worker;
+    }
+
+    /**
+     * Creates a renderer, which dispatches each render request to a leased worker. The size of the first page is taken from the provided
+     * pages, if known; the size of other pages is requested from a worker.
+     */
+    private DocumentRenderer newRenderer(final File pdfFile, final Pages pages) {
+        return new DocumentRenderer() {
+            public BufferedImage getEmbeddedThumbnail(int pageNumber) {
+                // the workers return rendered pages only
+                return null;
+            }
+
+            public int getNumberOfPages() {
+                return pages.pageCount;
+            }
+
+            public Dimension getPageSize(int pageNumber) throws Exception {
+                return pageNumber == 0 && pages.pageSize != null ? pages.pageSize : getPages(pdfFile,
+                        pageNumber).pageSize;
+            }
+
+            public void release(boolean reusable) {
+                // the workers are released after each page
+            }
+
+            public BufferedImage renderPage(int pageNumber, int maxWidth, int maxHeight)
+                    throws Exception {
+                return (BufferedImage) execute(RenderWorker.OP_RENDER, pdfFile, pageNumber,
+                        maxWidth, maxHeight);
+            }
+        };
+    }
+
+    @Override
+    protected DocumentRenderer openRenderer(File pdfFile) throws Exception {
+        return newRenderer(pdfFile, getPages(pdfFile, 0));
+    }
+
+    private BufferedImage readImage(DataInputStream in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        RasterPool rasterPool = getRasterPool();
+        BufferedImage image = rasterPool != null ? rasterPool.acquire(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        // a pooled buffer may be larger than the image
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int length = width * height;
+        byte[] chunk = new byte[64 * 1024];
+        for (int offset = 0; offset < length;) {
+            int count = Math.min(chunk.length / 4, length - offset);
+            in.readFully(chunk, 0, count * 4);
+            ByteBuffer.wrap(chunk, 0, count * 4).asIntBuffer().get(pixels, offset, count);
+            offset += count;
+        }
+
+        return image;
+    }
+
+    private void release(Worker worker, boolean reusable) {
+        try {
+            if (reusable && !worker.timedOut && !destroyed && !isWorn(worker)) {
+                synchronized (idleWorkers) {
+                    idleWorkers.addFirst(worker);
+                }
+            } else {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Retiring render worker after {} jobs with {} bytes of used heap",
+                            worker.jobs, worker.usedHeap);
+                }
+                worker.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void setJavaCommand(String javaCommand) {
+        this.javaCommand = javaCommand;
+    }
+
+    /**
+     * Sets the number of jobs after which a worker is replaced by a fresh one.
+     * 
+     * @param maxJobsPerWorker
+     *            the number of jobs after which a worker is replaced by a fresh one
+     */
+    public void setMaxJobsPerWorker(int maxJobsPerWorker) {
+        this.maxJobsPerWorker = maxJobsPerWorker;
+    }
+
+    /**
+     * Sets the maximum amount of main memory in bytes a document, loaded by a worker, may use before its content is buffered in a scratch
+     * file.
+     * 
+     * @param maxMainMemory
+     *            the maximum amount of main memory in bytes a loaded document may use
+     */
+    public void setMaxMainMemory(long maxMainMemory) {
+        this.maxMainMemory = maxMainMemory;
+    }
+
+    /**
+     * Sets the heap usage in bytes, reported by a worker after a job, above which the worker is replaced by a fresh one.
+     * 
+     * @param maxWorkerHeapUsage
+     *            the heap usage in bytes above which a worker is replaced
+     */
+    public void setMaxWorkerHeapUsage(long maxWorkerHeapUsage) {
+        this.maxWorkerHeapUsage = maxWorkerHeapUsage;
+    }
+
+    /**
+     * Sets the maximum number of worker JVMs running at the same time.
+     * 
+     * @param poolSize
+     *            the maximum number of worker JVMs running at the same time
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets the time in milliseconds a worker may spend on a single job before it is killed. The same time is waited at most for a free
+     * worker.
+     * 
+     * @param renderTimeout
+     *            the render deadline in milliseconds
+     */
+    public void setRenderTimeout(long renderTimeout) {
+        this.renderTimeout = renderTimeout;
+    }
+
+    /**
+     * Sets the rendering quality to use when a page is rendered into a target box: <code>screen</code> (default) or <code>print</code>.
+     * 
+     * @param targetRenderingHints
+     *            the rendering quality to use when a page is rendered into a target box
+     */
+    public void setTargetRenderingHints(String targetRenderingHints) {
+        this.targetRenderDestination = "print".equalsIgnoreCase(StringUtils
+                .trim(targetRenderingHints)) ? "PRINT" : "VIEW";
+    }
+
+    /**
+     * Sets the class path of the worker JVMs. If not set, it is built from the locations of the worker and PDFBox classes.
+     * 
+     * @param workerClasspath
+     *            the class path of the worker JVMs
+     */
+    public void setWorkerClasspath(String workerClasspath) {
+        this.workerClasspath = workerClasspath;
+    }
+
+    /**
+     * Sets the options of the worker JVMs, separated by whitespace, e.g. the maximum heap size.
+     * 
+     * @param workerJvmOptions
+     *            the options of the worker JVMs
+     */
+    public void setWorkerJvmOptions(String workerJvmOptions) {
+        this.workerJvmOptions = workerJvmOptions;
+    }
+
+    private Worker start() throws DocumentOperationException {
+        List<String> command = new LinkedList<String>();
+        command.add(javaCommand);
+        for (String option : StringUtils.split(StringUtils.defaultString(workerJvmOptions))) {
+            command.add(option);
+        }
+        command.add("-cp");
+        command.add(getWorkerClasspath());
+        command.add(RenderWorker.class.getName());
+        command.add(String.valueOf(getMaxZoom()));
+        command.add(String.valueOf(maxMainMemory));
+        command.add(targetRenderDestination);
+
+        long timer = System.currentTimeMillis();
+        try {
+            Process process = new ProcessBuilder(command).redirectError(Redirect.INHERIT).start();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Started render worker in {} ms", System.currentTimeMillis() - timer);
+            }
+            return new Worker(process);
+        } catch (IOException e) {
+            throw new DocumentOperationException("Unable to start a render worker using " + command,
+                    e);
+        }
+    }
+}
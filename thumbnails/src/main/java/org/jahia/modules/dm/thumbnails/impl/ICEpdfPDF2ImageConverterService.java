@@ -43,11 +43,17 @@
  */
 package org.jahia.modules.dm.thumbnails.impl;
 
+import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.icepdf.core.pobjects.Document;
+import org.icepdf.core.pobjects.PDimension;
 import org.icepdf.core.pobjects.Page;
 import org.icepdf.core.util.GraphicsRenderingHints;
 import org.jahia.dm.DocumentOperationException;
@@ -64,18 +70,31 @@ public class ICEpdfPDF2ImageConverterService extends AbstractPDF2ImageConverterS
     private static final Logger logger = LoggerFactory
             .getLogger(ICEpdfPDF2ImageConverterService.class);
 
+    private int targetRenderingHints = GraphicsRenderingHints.SCREEN;
+
+    private static void dispose(Document document) {
+        try {
+            document.dispose();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
     public BufferedImage getImageOfPage(File pdfFile, int pageNumber)
             throws DocumentOperationException {
+        return getImageOfPage(pdfFile, pageNumber, 0, 0);
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException {
         BufferedImage image = null;
 
         long timer = System.currentTimeMillis();
 
-        Document document = null;
+        DocumentRenderer renderer = null;
         try {
-            document = new Document();
-            document.setFile(pdfFile.getPath());
-            image = (BufferedImage) document.getPageImage(pageNumber, GraphicsRenderingHints.PRINT,
-                    Page.BOUNDARY_CROPBOX, 0, 1);
+            renderer = openRenderer(pdfFile);
+            image = renderPage(renderer, pageNumber, maxWidth, maxHeight);
             if (image != null && logger.isDebugEnabled()) {
                 logger.debug("Generated an image for the page {} of the file {} in {} ms",
                         new Object[] { pageNumber, pdfFile, (System.currentTimeMillis() - timer) });
@@ -85,12 +104,8 @@ public class ICEpdfPDF2ImageConverterService extends AbstractPDF2ImageConverterS
                     "Error occurred trying to generate an image for the page " + pageNumber
                             + " of the file " + pdfFile, e);
         } finally {
-            if (document != null) {
-                try {
-                    document.dispose();
-                } catch (Exception e) {
-                    // ignore
-                }
+            if (renderer != null) {
+                renderer.release(false);
             }
         }
 
@@ -99,26 +114,37 @@ public class ICEpdfPDF2ImageConverterService extends AbstractPDF2ImageConverterS
 
     public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws DocumentOperationException {
-        BufferedImage image = null;
+        return getImageOfPage(pdfInputStream, pageNumber, 0, 0);
+    }
 
-        long timer = System.currentTimeMillis();
+    /**
+     * ICEpdf buffers a document, supplied as a stream, entirely on the heap, so the stream is copied into a temporary file first, which
+     * is then read with random access.
+     */
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber, int maxWidth,
+            int maxHeight) throws DocumentOperationException {
+        File pdfFile = null;
+        try {
+            pdfFile = File.createTempFile("doc-pdf-stream", ".pdf");
+            FileUtils.copyInputStreamToFile(pdfInputStream, pdfFile);
+            return getImageOfPage(pdfFile, pageNumber, maxWidth, maxHeight);
+        } catch (IOException e) {
+            throw new DocumentOperationException(
+                    "Error occurred trying to copy the supplied input stream into a temporary file", e);
+        } finally {
+            FileUtils.deleteQuietly(pdfFile);
+        }
+    }
 
+    public int getNumberOfPages(File pdfFile) throws DocumentOperationException {
         Document document = null;
         try {
             document = new Document();
-            document.setInputStream(pdfInputStream, null);
-            image = (BufferedImage) document.getPageImage(pageNumber, GraphicsRenderingHints.PRINT,
-                    Page.BOUNDARY_CROPBOX, 0, 1);
-
-            if (image != null && logger.isDebugEnabled()) {
-                logger.debug(
-                        "Generated an image for the page {} of the supplied input stream in {} ms",
-                        pageNumber, (System.currentTimeMillis() - timer));
-            }
+            document.setFile(pdfFile.getPath());
+            return document.getNumberOfPages();
         } catch (Exception e) {
             throw new DocumentOperationException(
-                    "Error occurred trying to generate an image for the page " + pageNumber
-                            + " of the supplied input stream", e);
+                    "Error occurred trying to read the number of pages of the file " + pdfFile, e);
         } finally {
             if (document != null) {
                 try {
@@ -128,8 +154,105 @@ public class ICEpdfPDF2ImageConverterService extends AbstractPDF2ImageConverterS
                 }
             }
         }
+    }
+
+    /**
+     * The ICEpdf document initializes its pages under a lock and keeps no per-render state, so the pages of a single loaded document can
+     * be rendered by several threads.
+     */
+    @Override
+    protected boolean isRendererShareable() {
+        return true;
+    }
+
+    @Override
+    protected DocumentRenderer openRenderer(File pdfFile) throws Exception {
+        final Document document = new Document();
+        try {
+            document.setFile(pdfFile.getPath());
+        } catch (Exception e) {
+            dispose(document);
+            throw e;
+        }
+
+        return new DocumentRenderer() {
+            public BufferedImage getEmbeddedThumbnail(int pageNumber) {
+                // not exposed by the ICEpdf API
+                return null;
+            }
+
+            public int getNumberOfPages() {
+                return document.getNumberOfPages();
+            }
+
+            public Dimension getPageSize(int pageNumber) {
+                PDimension pageSize = document.getPageDimension(pageNumber, 0, 1);
+                return new Dimension((int) Math.ceil(pageSize.getWidth()), (int) Math.ceil(pageSize
+                        .getHeight()));
+            }
+
+            public void release(boolean reusable) {
+                dispose(document);
+            }
+
+            public BufferedImage renderPage(int pageNumber, int maxWidth, int maxHeight)
+                    throws Exception {
+                return ICEpdfPDF2ImageConverterService.this.renderPage(document, pageNumber,
+                        maxWidth, maxHeight);
+            }
+        };
+    }
+
+    /**
+     * Renders the specified page of the document. If no target box is specified the page is rendered at full scale with print quality
+     * hints, otherwise the zoom factor is computed to fit the page into the target box and the configured target rendering hints are used.
+     * If a raster pool is configured, the page is painted into a pooled image instead of a freshly allocated one.
+     */
+    private BufferedImage renderPage(Document document, int pageNumber, int maxWidth, int maxHeight)
+            throws InterruptedException {
+        float zoom = 1;
+        int renderingHints = GraphicsRenderingHints.PRINT;
+        if (maxWidth > 0 || maxHeight > 0) {
+            PDimension pageSize = document.getPageDimension(pageNumber, 0, 1);
+            zoom = getZoom(pageSize.getWidth(), pageSize.getHeight(), maxWidth, maxHeight);
+            renderingHints = targetRenderingHints;
+        }
+
+        RasterPool rasterPool = getRasterPool();
+        if (rasterPool == null) {
+            return (BufferedImage) document.getPageImage(pageNumber, renderingHints,
+                    Page.BOUNDARY_CROPBOX, 0, zoom);
+        }
+
+        // the same raster size as Document.getPageImage() would allocate
+        PDimension imageSize = document.getPageDimension(pageNumber, 0, zoom);
+        BufferedImage image = rasterPool.acquireBlank(Math.max(1, (int) imageSize.getWidth()),
+                Math.max(1, (int) imageSize.getHeight()));
+        boolean rendered = false;
+        Graphics2D g = image.createGraphics();
+        try {
+            document.paintPage(pageNumber, g, renderingHints, Page.BOUNDARY_CROPBOX, 0, zoom);
+            rendered = true;
+        } finally {
+            g.dispose();
+            if (!rendered) {
+                rasterPool.release(image);
+            }
+        }
 
         return image;
     }
 
+    /**
+     * Sets the rendering hints to use when a page is rendered into a target box: <code>screen</code> (default) or <code>print</code>.
+     * 
+     * @param targetRenderingHints
+     *            the rendering hints to use when a page is rendered into a target box
+     */
+    public void setTargetRenderingHints(String targetRenderingHints) {
+        this.targetRenderingHints = "print".equalsIgnoreCase(StringUtils
+                .trim(targetRenderingHints)) ? GraphicsRenderingHints.PRINT
+                : GraphicsRenderingHints.SCREEN;
+    }
+
 }
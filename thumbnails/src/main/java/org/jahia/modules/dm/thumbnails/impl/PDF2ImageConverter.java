@@ -48,6 +48,7 @@ import java.io.File;
 import java.io.InputStream;
 
 import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.thumbnails.PageImageConsumer;
 import org.jahia.services.Serviceable;
 
 /**
@@ -57,6 +58,26 @@ import org.jahia.services.Serviceable;
  */
 public interface PDF2ImageConverter extends Serviceable {
 
+    /**
+     * Reads the page information of the specified document and generates an image for its first page, which fits into the provided target
+     * box, loading the document only once. If requested, the thumbnail image, embedded into the first page (<code>/Thumb</code>), is used
+     * instead of rendering the page, if the engine supports it and the thumbnail is large enough for the target box.
+     * 
+     * @param pdfFile
+     *            the PDF file to generate image for
+     * @param maxWidth
+     *            the maximum width of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param useEmbeddedThumbnail
+     *            <code>true</code> if the thumbnail image, embedded into the first page, should be used, if large enough
+     * @return the page information of the document together with the image of its first page
+     * @throws DocumentOperationException
+     *             if the document cannot be read or has no pages
+     */
+    PageInfo getFirstPage(File pdfFile, int maxWidth, int maxHeight, boolean useEmbeddedThumbnail)
+            throws DocumentOperationException;
+
     /**
      * Generates an image for the first page of the specified document.
      * 
@@ -83,4 +104,77 @@ public interface PDF2ImageConverter extends Serviceable {
      */
     BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
             throws DocumentOperationException;
+
+    /**
+     * Generates an image for the specified page of the document, which fits into the provided target box. The zoom factor is computed from
+     * the page dimensions, so that the page is rendered directly at the target size without the need to resize the image afterwards.
+     * 
+     * @param pdfFile
+     *            the PDF file to generate image for
+     * @param pageNumber
+     *            the page number to generate the image for
+     * @param maxWidth
+     *            the maximum width of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @return the generated image for the specified page
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs
+     */
+    BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException;
+
+    /**
+     * Generates an image for the specified page of the document, which fits into the provided target box. The zoom factor is computed from
+     * the page dimensions, so that the page is rendered directly at the target size without the need to resize the image afterwards.
+     * 
+     * @param pdfInputStream
+     *            the input stream of the PDF document to generate image for
+     * @param pageNumber
+     *            the page number to generate the image for
+     * @param maxWidth
+     *            the maximum width of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the generated image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @return the generated image for the specified page
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs
+     */
+    BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber, int maxWidth,
+            int maxHeight) throws DocumentOperationException;
+
+    /**
+     * Renders the pages of the specified range of the document, each fitting into the provided target box, and passes them to the
+     * consumer as soon as they are rendered. The document is parsed once and the pages are rendered concurrently on a bounded pool of
+     * render threads, without collecting the images.
+     * 
+     * @param pdfFile
+     *            the PDF file to generate images for
+     * @param firstPage
+     *            the 0-based number of the first page to render
+     * @param lastPage
+     *            the 0-based number of the last page to render (inclusive); a negative value means the last page of the document
+     * @param maxWidth
+     *            the maximum width of the generated images in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the maximum height of the generated images in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param consumer
+     *            the consumer of the rendered page images
+     * @return the number of rendered pages
+     * @throws DocumentOperationException
+     *             if the document conversion exception occurs or the consumer fails
+     */
+    int getImagesOfPages(File pdfFile, int firstPage, int lastPage, int maxWidth, int maxHeight,
+            PageImageConsumer consumer) throws DocumentOperationException;
+
+    /**
+     * Returns the number of pages in the specified document.
+     * 
+     * @param pdfFile
+     *            the PDF file to get the number of pages for
+     * @return the number of pages in the specified document
+     * @throws DocumentOperationException
+     *             if the document cannot be read
+     */
+    int getNumberOfPages(File pdfFile) throws DocumentOperationException;
 }
\ No newline at end of file
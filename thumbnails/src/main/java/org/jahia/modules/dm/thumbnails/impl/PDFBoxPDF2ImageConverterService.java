@@ -0,0 +1,453 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.RenderDestination;
+import org.jahia.dm.DocumentOperationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Creates images for PDF document pages using Apache PDFBox library. Documents are loaded using a mixed main memory / scratch file
+ * buffer, so that large documents do not need to be held on the heap. Loaded file documents together with their renderers (and the
+ * fonts, cached by the document resource cache) are kept in a small pool, so that subsequent renders of the same file do not need to
+ * parse the document again.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class PDFBoxPDF2ImageConverterService extends AbstractPDF2ImageConverterService implements
+        InitializingBean, DisposableBean {
+
+    /**
+     * A loaded document together with its renderer.
+     */
+    private static final class PooledRenderer {
+
+        private final PDDocument document;
+
+        private final String key;
+
+        private long lastUsed;
+
+        private final PDFRenderer renderer;
+
+        PooledRenderer(String key, PDDocument document) {
+            super();
+            this.key = key;
+            this.document = document;
+            this.renderer = new PDFRenderer(document);
+        }
+
+        void close() {
+            IOUtils.closeQuietly(document);
+        }
+    }
+
+    private static final COSName THUMB = COSName.getPDFName("Thumb");
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(PDFBoxPDF2ImageConverterService.class);
+
+    private final LinkedList<PooledRenderer> idleRenderers = new LinkedList<PooledRenderer>();
+
+    private long maxMainMemory = 16L * 1024L * 1024L;
+
+    private long maxRendererIdleTime = 60000L;
+
+    private int rendererPoolSize = 4;
+
+    private File scratchDirectory;
+
+    private RenderDestination targetRenderDestination = RenderDestination.VIEW;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (scratchDirectory != null && !scratchDirectory.isDirectory()
+                && !scratchDirectory.mkdirs()) {
+            logger.warn("Unable to create scratch directory {}. Using default temp directory.",
+                    scratchDirectory);
+            scratchDirectory = null;
+        }
+
+        // the system font cache is built on first use, which takes a while: warm it up in the background
+        Thread warmUp = new Thread(new Runnable() {
+            public void run() {
+                long timer = System.currentTimeMillis();
+                FontMappers.instance();
+                logger.info("Initialized PDFBox font cache in {} ms", System.currentTimeMillis()
+                        - timer);
+            }
+        }, "PDFBox font cache initializer");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    private synchronized PooledRenderer borrow(String key) {
+        evictIdle();
+        for (Iterator<PooledRenderer> iterator = idleRenderers.iterator(); iterator.hasNext();) {
+            PooledRenderer pooled = iterator.next();
+            if (pooled.key.equals(key)) {
+                iterator.remove();
+                return pooled;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        for (PooledRenderer pooled : idleRenderers) {
+            pooled.close();
+        }
+        idleRenderers.clear();
+        super.destroy();
+    }
+
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<PooledRenderer> iterator = idleRenderers.iterator(); iterator.hasNext();) {
+            PooledRenderer pooled = iterator.next();
+            if (now - pooled.lastUsed > maxRendererIdleTime) {
+                iterator.remove();
+                pooled.close();
+            }
+        }
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber)
+            throws DocumentOperationException {
+        return getImageOfPage(pdfFile, pageNumber, 0, 0);
+    }
+
+    public BufferedImage getImageOfPage(File pdfFile, int pageNumber, int maxWidth, int maxHeight)
+            throws DocumentOperationException {
+        BufferedImage image = null;
+
+        long timer = System.currentTimeMillis();
+
+        DocumentRenderer renderer = null;
+        try {
+            renderer = openRenderer(pdfFile);
+            image = renderPage(renderer, pageNumber, maxWidth, maxHeight);
+            if (image != null && logger.isDebugEnabled()) {
+                logger.debug("Generated an image for the page {} of the file {} in {} ms",
+                        new Object[] { pageNumber, pdfFile, (System.currentTimeMillis() - timer) });
+            }
+        } catch (Exception e) {
+            if (renderer != null) {
+                renderer.release(false);
+                renderer = null;
+            }
+            throw new DocumentOperationException(
+                    "Error occurred trying to generate an image for the page " + pageNumber
+                            + " of the file " + pdfFile, e);
+        } finally {
+            if (renderer != null) {
+                renderer.release(true);
+            }
+        }
+
+        return image;
+    }
+
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber)
+            throws DocumentOperationException {
+        return getImageOfPage(pdfInputStream, pageNumber, 0, 0);
+    }
+
+    public BufferedImage getImageOfPage(InputStream pdfInputStream, int pageNumber, int maxWidth,
+            int maxHeight) throws DocumentOperationException {
+        BufferedImage image = null;
+
+        long timer = System.currentTimeMillis();
+
+        PDDocument document = null;
+        try {
+            document = PDDocument.load(pdfInputStream, getMemoryUsageSetting());
+            image = renderPage(document, new PDFRenderer(document), pageNumber, maxWidth,
+                    maxHeight);
+
+            if (image != null && logger.isDebugEnabled()) {
+                logger.debug(
+                        "Generated an image for the page {} of the supplied input stream in {} ms",
+                        pageNumber, (System.currentTimeMillis() - timer));
+            }
+        } catch (Exception e) {
+            throw new DocumentOperationException(
+                    "Error occurred trying to generate an image for the page " + pageNumber
+                            + " of the supplied input stream", e);
+        } finally {
+            IOUtils.closeQuietly(document);
+        }
+
+        return image;
+    }
+
+    private static String getKey(File pdfFile) {
+        return pdfFile.getAbsolutePath() + "/" + pdfFile.lastModified() + "/" + pdfFile.length();
+    }
+
+    private MemoryUsageSetting getMemoryUsageSetting() {
+        return MemoryUsageSetting.setupMixed(maxMainMemory).setTempDir(scratchDirectory);
+    }
+
+    public int getNumberOfPages(File pdfFile) throws DocumentOperationException {
+        String key = getKey(pdfFile);
+        PooledRenderer pooled = borrow(key);
+        try {
+            if (pooled == null) {
+                pooled = new PooledRenderer(key, PDDocument.load(pdfFile, getMemoryUsageSetting()));
+            }
+            return pooled.document.getNumberOfPages();
+        } catch (Exception e) {
+            if (pooled != null) {
+                pooled.close();
+                pooled = null;
+            }
+            throw new DocumentOperationException(
+                    "Error occurred trying to read the number of pages of the file " + pdfFile, e);
+        } finally {
+            if (pooled != null) {
+                // keep the loaded document for rendering its pages
+                release(pooled);
+            }
+        }
+    }
+
+    /**
+     * Neither the loaded document nor its renderer are safe for concurrent use, so each render thread needs its own copy.
+     */
+    @Override
+    protected boolean isRendererShareable() {
+        return false;
+    }
+
+    @Override
+    protected DocumentRenderer openRenderer(File pdfFile) throws Exception {
+        String key = getKey(pdfFile);
+        PooledRenderer borrowed = borrow(key);
+        final PooledRenderer pooled = borrowed != null ? borrowed : new PooledRenderer(key,
+                PDDocument.load(pdfFile, getMemoryUsageSetting()));
+
+        return new DocumentRenderer() {
+            public BufferedImage getEmbeddedThumbnail(int pageNumber) {
+                return readThumbnail(pooled.document.getPage(pageNumber));
+            }
+
+            public int getNumberOfPages() {
+                return pooled.document.getNumberOfPages();
+            }
+
+            public Dimension getPageSize(int pageNumber) {
+                PDPage page = pooled.document.getPage(pageNumber);
+                PDRectangle cropBox = page.getCropBox();
+                boolean rotated = page.getRotation() % 180 != 0;
+                int width = (int) Math.ceil(cropBox.getWidth());
+                int height = (int) Math.ceil(cropBox.getHeight());
+                return rotated ? new Dimension(height, width) : new Dimension(width, height);
+            }
+
+            public void release(boolean reusable) {
+                if (reusable) {
+                    PDFBoxPDF2ImageConverterService.this.release(pooled);
+                } else {
+                    pooled.close();
+                }
+            }
+
+            public BufferedImage renderPage(int pageNumber, int maxWidth, int maxHeight)
+                    throws Exception {
+                return PDFBoxPDF2ImageConverterService.this.renderPage(pooled.document,
+                        pooled.renderer, pageNumber, maxWidth, maxHeight);
+            }
+        };
+    }
+
+    /**
+     * Reads the thumbnail image, embedded into the page dictionary by many scanners and publishing tools.
+     */
+    private static BufferedImage readThumbnail(PDPage page) {
+        COSBase thumb = page.getCOSObject().getDictionaryObject(THUMB);
+        if (!(thumb instanceof COSStream)) {
+            return null;
+        }
+        try {
+            return new PDImageXObject(new PDStream((COSStream) thumb), null).getImage();
+        } catch (Exception e) {
+            // unsupported image encoding: the page is rendered instead
+            logger.debug("Unable to read the embedded thumbnail of the page", e);
+            return null;
+        }
+    }
+
+    private synchronized void release(PooledRenderer pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idleRenderers.addFirst(pooled);
+        while (idleRenderers.size() > rendererPoolSize) {
+            idleRenderers.removeLast().close();
+        }
+    }
+
+    /**
+     * Renders the specified page of the document. If no target box is specified the page is rendered at full scale for printing,
+     * otherwise the zoom factor is computed to fit the page into the target box and the configured target render destination is used.
+     * If a raster pool is configured, the page is drawn into a pooled image instead of a freshly allocated one.
+     */
+    private BufferedImage renderPage(PDDocument document, PDFRenderer renderer, int pageNumber,
+            int maxWidth, int maxHeight) throws IOException {
+        PDPage page = document.getPage(pageNumber);
+        PDRectangle cropBox = page.getCropBox();
+        boolean rotated = page.getRotation() % 180 != 0;
+
+        float zoom = 1;
+        RenderDestination destination = RenderDestination.PRINT;
+        if (maxWidth > 0 || maxHeight > 0) {
+            zoom = getZoom(rotated ? cropBox.getHeight() : cropBox.getWidth(),
+                    rotated ? cropBox.getWidth() : cropBox.getHeight(), maxWidth, maxHeight);
+            destination = targetRenderDestination;
+        }
+        // the renderer is pooled and reused for other requests, so the flag is set for each render
+        renderer.setSubsamplingAllowed(destination == RenderDestination.VIEW);
+
+        RasterPool rasterPool = getRasterPool();
+        if (rasterPool == null) {
+            return renderer.renderImage(pageNumber, zoom, ImageType.RGB, destination);
+        }
+
+        // the same raster size as PDFRenderer.renderImage() would allocate
+        int width = (int) Math.max(Math.floor(cropBox.getWidth() * zoom), 1);
+        int height = (int) Math.max(Math.floor(cropBox.getHeight() * zoom), 1);
+        // the renderer clears the crop box in page units only, which leaves a strip at the right and bottom edges of a zoomed page
+        // untouched, so the whole pooled raster is cleared
+        BufferedImage image = rotated ? rasterPool.acquireBlank(height, width) : rasterPool.acquireBlank(
+                width, height);
+        boolean rendered = false;
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setBackground(Color.WHITE);
+            renderer.renderPageToGraphics(pageNumber, g, zoom, zoom, destination);
+            rendered = true;
+        } finally {
+            g.dispose();
+            if (!rendered) {
+                rasterPool.release(image);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Sets the maximum amount of main memory in bytes a loaded document may use before its content is buffered in a scratch file.
+     * 
+     * @param maxMainMemory
+     *            the maximum amount of main memory in bytes a loaded document may use
+     */
+    public void setMaxMainMemory(long maxMainMemory) {
+        this.maxMainMemory = maxMainMemory;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an idle pooled document is closed.
+     * 
+     * @param maxRendererIdleTime
+     *            the time in milliseconds after which an idle pooled document is closed
+     */
+    public void setMaxRendererIdleTime(long maxRendererIdleTime) {
+        this.maxRendererIdleTime = maxRendererIdleTime;
+    }
+
+    /**
+     * Sets the maximum number of loaded documents kept for subsequent renders.
+     * 
+     * @param rendererPoolSize
+     *            the maximum number of loaded documents kept for subsequent renders
+     */
+    public void setRendererPoolSize(int rendererPoolSize) {
+        this.rendererPoolSize = rendererPoolSize;
+    }
+
+    public void setScratchDirectory(File scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * Sets the rendering quality to use when a page is rendered into a target box: <code>screen</code> (default) or <code>print</code>.
+     * 
+     * @param targetRenderingHints
+     *            the rendering quality to use when a page is rendered into a target box
+     */
+    public void setTargetRenderingHints(String targetRenderingHints) {
+        this.targetRenderDestination = "print".equalsIgnoreCase(StringUtils
+                .trim(targetRenderingHints)) ? RenderDestination.PRINT : RenderDestination.VIEW;
+    }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.bin.Action;
+import org.jahia.bin.ActionResult;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.cache.CachedPDF;
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.jahia.dm.thumbnails.DocumentThumbnailService;
+import org.jahia.dm.utils.LocalBinary;
+import org.jahia.dm.utils.PageInfoUtils;
+import org.jahia.dm.utils.ThumbnailImageEncoder;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.render.RenderContext;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.URLResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Action, which renders the requested page of a document at the requested width on demand, e.g.
+ * <code>/cms/render/live/en/sites/mySite/files/manual.pdf.pageImage.do?page=12&amp;width=800</code>. The page number is 1-based. The
+ * encoded images are served from the {@link PageImageCache}, so that only the pages, people actually look at, are rendered, and only
+ * once.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class PageImageAction extends Action implements DisposableBean {
+
+    /**
+     * Thrown by the render task if no render slot becomes free within the render timeout.
+     */
+    private static final class RenderSlotTimeoutException extends DocumentOperationException {
+
+        private static final long serialVersionUID = -6023915582371266512L;
+
+        RenderSlotTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PageImageAction.class);
+
+    private PageImageCache cache;
+
+    private int defaultWidth = 1240;
+
+    private volatile ThumbnailImageEncoder encoder;
+
+    private String imageFormat = "png";
+
+    private float jpegQuality = 0.85f;
+
+    private int maxAge = 86400;
+
+    private int maxWidth = 2480;
+
+    private RenderMemoryBudget memoryBudget;
+
+    private int minWidth = 16;
+
+    private RasterPool rasterPool;
+
+    private Semaphore renderPermits = new Semaphore(4, true);
+
+    private long renderTimeout = 30000;
+
+    private DocumentThumbnailService thumbnailService;
+
+    public void destroy() throws Exception {
+        ThumbnailImageEncoder current = encoder;
+        encoder = null;
+        if (current != null) {
+            current.dispose();
+        }
+    }
+
+    @Override
+    public ActionResult doExecute(HttpServletRequest req, RenderContext renderContext,
+            Resource resource, JCRSessionWrapper session, Map<String, List<String>> parameters,
+            URLResolver urlResolver) throws Exception {
+        HttpServletResponse response = renderContext.getResponse();
+        final JCRNodeWrapper fileNode = resource.getNode();
+        if (!fileNode.isNodeType(Constants.NT_FILE) || !thumbnailService.isEnabled()
+                || !thumbnailService.canHandle(fileNode)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        final int page = getIntParameter(parameters, "page", 1);
+        int width = getIntParameter(parameters, "width", defaultWidth);
+        if (page < 1 || width <= 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        final int targetWidth = Math.max(minWidth, Math.min(width, maxWidth));
+
+        String key = getKey(fileNode, page, targetWidth);
+        String etag = "\"" + key + "\"";
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        byte[] data;
+        try {
+            // concurrent requests for the same page wait for a single render, which alone takes a render slot
+            data = cache.get(key, new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    if (!renderPermits.tryAcquire(renderTimeout, TimeUnit.MILLISECONDS)) {
+                        throw new RenderSlotTimeoutException("Timed out waiting for a free slot to render page "
+                                + page + " of the document " + fileNode.getPath());
+                    }
+                    try {
+                        return render(fileNode, page, targetWidth);
+                    } finally {
+                        renderPermits.release();
+                    }
+                }
+            });
+        } catch (RenderSlotTimeoutException e) {
+            logger.warn(e.getMessage());
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        if (data == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        response.setContentType(getEncoder().getMimeType());
+        response.setContentLength(data.length);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, max-age=" + maxAge);
+        response.getOutputStream().write(data);
+        response.getOutputStream().flush();
+
+        return null;
+    }
+
+    private ThumbnailImageEncoder getEncoder() {
+        ThumbnailImageEncoder current = encoder;
+        if (current == null) {
+            current = "jpeg".equals(imageFormat) ? new ThumbnailImageEncoder("jpeg", jpegQuality)
+                    : new ThumbnailImageEncoder(-1);
+            encoder = current;
+        }
+        return current;
+    }
+
+    private static int getIntParameter(Map<String, List<String>> parameters, String name,
+            int defaultValue) {
+        List<String> values = parameters.get(name);
+        String value = values != null && !values.isEmpty() ? values.get(0) : null;
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the cache key for the image of the specified page of the document at the specified width. It is composed of the node
+     * identifier, the last modification date of the content, the page number and the width.
+     * 
+     * @param fileNode
+     *            the document node
+     * @param page
+     *            the 1-based page number
+     * @param width
+     *            the image width in pixels
+     * @return the cache key for the image of the specified page of the document at the specified width
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    protected String getKey(JCRNodeWrapper fileNode, int page, int width) throws RepositoryException {
+        Date lastModified = fileNode.getNode(Constants.JCR_CONTENT).getLastModifiedAsDate();
+        return fileNode.getIdentifier() + "-" + (lastModified != null ? lastModified.getTime() : 0)
+                + "-" + page + "-" + width + "." + imageFormat;
+    }
+
+    private byte[] render(JCRNodeWrapper fileNode, int page, int width) throws RepositoryException,
+            IOException, DocumentOperationException {
+        long timer = System.currentTimeMillis();
+        DocumentManagement dm = DocumentManagement.getInstance();
+        DocumentMetrics metrics = dm.getMetrics();
+        String contentType = fileNode.getFileContent().getContentType();
+        String mimeGroup = DocumentMetrics.getMimeGroup(contentType);
+
+        File pdfFile = null;
+        LocalBinary source = null;
+        CachedPDF pdf = null;
+        BufferedImage image = null;
+        try {
+            int pageCount = PageInfoUtils.getPageCount(fileNode);
+            if (pageCount >= 0 && page > pageCount) {
+                return null;
+            }
+
+            if (JCRContentUtils.isMimeTypeGroup(contentType, "pdf")) {
+                long downloadTimer = System.currentTimeMillis();
+                source = dm.getLocalBinary(fileNode);
+                if (source.isTemporary()) {
+                    metrics.recordStage(DocumentMetrics.STAGE_DOWNLOAD, mimeGroup, downloadTimer);
+                }
+                pdfFile = source.getFile();
+            } else {
+                pdf = dm.getPDFCache().getPDF(fileNode);
+                if (pdf == null) {
+                    return null;
+                }
+                pdfFile = pdf.getFile();
+            }
+
+            if (pageCount < 0 && page > thumbnailService.getNumberOfPages(pdfFile)) {
+                return null;
+            }
+
+            long rasterizeTimer = System.currentTimeMillis();
+            image = thumbnailService.getImageOfPage(pdfFile, page - 1, width, 0);
+            if (image == null) {
+                return null;
+            }
+            metrics.recordStage(DocumentMetrics.STAGE_RASTERIZE, mimeGroup, rasterizeTimer);
+
+            long encodeTimer = System.currentTimeMillis();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            getEncoder().encode(image, out);
+            metrics.recordStage(DocumentMetrics.STAGE_ENCODE, mimeGroup, encodeTimer);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Rendered page {} of the document {} at width {} in {} ms", new Object[] {
+                        page, fileNode.getPath(), width, System.currentTimeMillis() - timer });
+            }
+
+            return out.toByteArray();
+        } finally {
+            if (image != null) {
+                if (memoryBudget != null) {
+                    memoryBudget.release(image);
+                }
+                if (rasterPool != null) {
+                    rasterPool.release(image);
+                } else {
+                    image.flush();
+                }
+            }
+            IOUtils.closeQuietly(pdf);
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    public void setCache(PageImageCache cache) {
+        this.cache = cache;
+    }
+
+    public void setDefaultWidth(int defaultWidth) {
+        this.defaultWidth = defaultWidth;
+    }
+
+    /**
+     * Sets the format of the page images: png or jpeg.
+     * 
+     * @param imageFormat
+     *            the format of the page images
+     */
+    public void setImageFormat(String imageFormat) {
+        this.imageFormat = "jpg".equalsIgnoreCase(imageFormat) ? "jpeg" : imageFormat.toLowerCase();
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Sets the time in seconds the clients are allowed to cache the page images for.
+     * 
+     * @param maxAge
+     *            the time in seconds the clients are allowed to cache the page images for
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Sets the maximum concurrent page renderings. Requests, which cannot start rendering within the render timeout, are answered with
+     * HTTP 503.
+     * 
+     * @param maxConcurrentRenders
+     *            the maximum concurrent page renderings
+     */
+    public void setMaxConcurrentRenders(int maxConcurrentRenders) {
+        this.renderPermits = new Semaphore(Math.max(1, maxConcurrentRenders), true);
+    }
+
+    public void setMaxWidth(int maxWidth) {
+        this.maxWidth = maxWidth;
+    }
+
+    /**
+     * Sets the render memory budget, whose reservation for a rendered page is returned once the page image is encoded.
+     * 
+     * @param memoryBudget
+     *            the render memory budget of the PDF to image converters
+     */
+    public void setMemoryBudget(RenderMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setMinWidth(int minWidth) {
+        this.minWidth = minWidth;
+    }
+
+    /**
+     * Sets the pool of pixel buffers, which the rendered page images are returned to once encoded.
+     * 
+     * @param rasterPool
+     *            the pool of pixel buffers of the PDF to image converters
+     */
+    public void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    public void setRenderTimeout(long renderTimeout) {
+        this.renderTimeout = renderTimeout;
+    }
+
+    public void setThumbnailService(DocumentThumbnailService thumbnailService) {
+        this.thumbnailService = thumbnailService;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Two-tier cache of the encoded images of document pages: a least recently used in-memory map of the image bytes, bounded by their total
+ * size, backed by a directory on disk, which is bounded by its total size as well. The keys are built by the caller and must be usable as
+ * file names. Concurrent requests for the same missing entry share a single rendering.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class PageImageCache implements InitializingBean {
+
+    private static final String EXTENSION = ".img";
+
+    private static final Logger logger = LoggerFactory.getLogger(PageImageCache.class);
+
+    /**
+     * Name of the counter for the page image cache lookups, tagged with the tier, which served the image.
+     */
+    public static final String LOOKUPS = "dm.pageImages.lookups";
+
+    private File directory;
+
+    private long diskSize;
+
+    private final Map<String, Long> files = new LinkedHashMap<String, Long>(256, 0.75f, true);
+
+    private final ConcurrentMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    private long maxDiskSize = 256L * 1024L * 1024L;
+
+    private long maxMemorySize = 32L * 1024L * 1024L;
+
+    private final Map<String, byte[]> memory = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+
+    private long memorySize;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            logger.info("Page image disk cache is disabled. Only the in-memory cache of {} bytes is used.",
+                    maxMemorySize);
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Unable to create page image cache directory {}. Only the in-memory cache is used.",
+                    directory);
+            directory = null;
+            return;
+        }
+
+        // register the files, left from a previous run, in the order of their last usage
+        File[] existing = directory.listFiles();
+        if (existing != null) {
+            Arrays.sort(existing, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+                }
+            });
+            synchronized (files) {
+                for (File file : existing) {
+                    if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+                        String key = file.getName().substring(0,
+                                file.getName().length() - EXTENSION.length());
+                        files.put(key, file.length());
+                        diskSize += file.length();
+                    } else {
+                        FileUtils.deleteQuietly(file);
+                    }
+                }
+                evictFromDisk();
+            }
+        }
+
+        logger.info("Page image cache initialized in {} with {} entries ({} bytes of max. {})",
+                new Object[] { directory, files.size(), diskSize, maxDiskSize });
+    }
+
+    /**
+     * Removes all the entries from both tiers of the cache.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memorySize = 0;
+        }
+        if (directory != null) {
+            synchronized (files) {
+                for (String key : files.keySet()) {
+                    FileUtils.deleteQuietly(getFile(key));
+                }
+                files.clear();
+                diskSize = 0;
+            }
+        }
+    }
+
+    private void evictFromDisk() {
+        for (Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator(); diskSize > maxDiskSize
+                && iterator.hasNext();) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            diskSize -= entry.getValue();
+            FileUtils.deleteQuietly(getFile(entry.getKey()));
+        }
+    }
+
+    private void evictFromMemory() {
+        for (Iterator<byte[]> iterator = memory.values().iterator(); memorySize > maxMemorySize
+                && iterator.hasNext();) {
+            memorySize -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the cached image bytes for the specified key or <code>null</code> if the entry is present in none of the tiers. An entry,
+     * found on disk, is promoted into the memory tier.
+     * 
+     * @param key
+     *            the cache key
+     * @return the cached image bytes for the specified key or <code>null</code> if the entry is not cached
+     */
+    public byte[] get(String key) {
+        byte[] data;
+        synchronized (memory) {
+            data = memory.get(key);
+        }
+        if (data != null) {
+            recordLookup("memory");
+            return data;
+        }
+
+        data = readFromDisk(key);
+        if (data != null) {
+            putInMemory(key, data);
+            recordLookup("disk");
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns the cached image bytes for the specified key, calling the provided loader to render them if the entry is not cached yet.
+     * Concurrent requests for the same key wait for the single loader call. The <code>null</code> result of the loader is not cached.
+     * 
+     * @param key
+     *            the cache key
+     * @param loader
+     *            the loader, which renders the image bytes
+     * @return the image bytes for the specified key or <code>null</code> if the loader did not produce them
+     * @throws DocumentOperationException
+     *             in case of a rendering error
+     */
+    public byte[] get(final String key, final Callable<byte[]> loader) throws DocumentOperationException {
+        byte[] data = get(key);
+        if (data != null) {
+            return data;
+        }
+
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                byte[] loaded = get(key);
+                if (loaded == null) {
+                    loaded = loader.call();
+                    if (loaded != null) {
+                        recordLookup("render");
+                        put(key, loaded);
+                    }
+                }
+                return loaded;
+            }
+        });
+        FutureTask<byte[]> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            existing = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Waiting for the rendering of the page image {}", key);
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while waiting for the rendering of the page image "
+                    + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentOperationException) {
+                throw (DocumentOperationException) cause;
+            }
+            throw new DocumentOperationException("Error rendering page image " + key, cause);
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    /**
+     * Stores the image bytes for the specified key in both tiers of the cache.
+     * 
+     * @param key
+     *            the cache key
+     * @param data
+     *            the encoded image bytes
+     */
+    public void put(String key, byte[] data) {
+        putInMemory(key, data);
+        if (directory != null && data.length <= maxDiskSize) {
+            writeToDisk(key, data);
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        if (data.length > maxMemorySize) {
+            return;
+        }
+        synchronized (memory) {
+            byte[] previous = memory.put(key, data);
+            if (previous != null) {
+                memorySize -= previous.length;
+            }
+            memorySize += data.length;
+            evictFromMemory();
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        synchronized (files) {
+            if (files.get(key) == null) {
+                return null;
+            }
+        }
+        File file = getFile(key);
+        try {
+            byte[] data = FileUtils.readFileToByteArray(file);
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            // the file was evicted or removed from outside in the meantime
+            synchronized (files) {
+                Long length = files.remove(key);
+                if (length != null) {
+                    diskSize -= length;
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unable to read cached page image " + file, e);
+            }
+            return null;
+        }
+    }
+
+    private void recordLookup(String tier) {
+        DocumentManagement.getInstance().getMetrics().increment(LOOKUPS, 1, "tier", tier);
+    }
+
+    /**
+     * Sets the directory of the disk tier. If not set, only the in-memory tier is used.
+     * 
+     * @param directory
+     *            the directory of the disk tier
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the maximum total size of the image files in the disk tier in bytes.
+     * 
+     * @param maxDiskSize
+     *            the maximum total size of the image files in the disk tier in bytes
+     */
+    public void setMaxDiskSize(long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * Sets the maximum total size of the image bytes, kept in memory.
+     * 
+     * @param maxMemorySize
+     *            the maximum total size of the image bytes, kept in memory
+     */
+    public void setMaxMemorySize(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    private void writeToDisk(String key, byte[] data) {
+        File target = getFile(key);
+        File tmp = new File(directory, key + ".tmp");
+        try {
+            FileUtils.writeByteArrayToFile(tmp, data);
+            synchronized (files) {
+                FileUtils.deleteQuietly(target);
+                if (!tmp.renameTo(target)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + target);
+                }
+                Long previous = files.put(key, Long.valueOf(data.length));
+                if (previous != null) {
+                    diskSize -= previous;
+                }
+                diskSize += data.length;
+                evictFromDisk();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to store page image " + key + " in the disk cache", e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The page information of a PDF document (the number of pages and the dimensions of the first page) together with the image of its first
+ * page, read from the document in a single pass by {@link PDF2ImageConverter#getFirstPage(java.io.File, int, int, boolean)}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+final class PageInfo {
+
+    private final boolean embeddedThumbnail;
+
+    private final BufferedImage image;
+
+    private final int pageCount;
+
+    private final float pageHeight;
+
+    private final float pageWidth;
+
+    PageInfo(int pageCount, float pageWidth, float pageHeight, BufferedImage image,
+            boolean embeddedThumbnail) {
+        super();
+        this.pageCount = pageCount;
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        this.image = image;
+        this.embeddedThumbnail = embeddedThumbnail;
+    }
+
+    /**
+     * Returns the image of the first page: either the thumbnail, embedded into the page, or the rendered page.
+     * 
+     * @return the image of the first page
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Returns the height of the first page in points or <code>0</code> if it is not known.
+     * 
+     * @return the height of the first page in points or <code>0</code> if it is not known
+     */
+    float getPageHeight() {
+        return pageHeight;
+    }
+
+    /**
+     * Returns the width of the first page in points or <code>0</code> if it is not known.
+     * 
+     * @return the width of the first page in points or <code>0</code> if it is not known
+     */
+    float getPageWidth() {
+        return pageWidth;
+    }
+
+    /**
+     * Returns <code>true</code> if the image is the thumbnail, embedded into the first page, rather than the rendered page.
+     * 
+     * @return <code>true</code> if the image is the thumbnail, embedded into the first page
+     */
+    boolean isEmbeddedThumbnail() {
+        return embeddedThumbnail;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of <code>int[]</code> pixel buffers for the RGB page and thumbnail images, so that bulk thumbnail generation reuses the large
+ * rasters instead of allocating fresh ones for every document, which would mostly be allocated directly in the old generation (humongous
+ * regions with G1). Buffers are bucketed by size classes, which are at most a quarter larger than the requested raster, and the pool is
+ * bounded by the total size of the idle buffers. Only images, acquired from the pool, are taken back; the others are ignored.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class RasterPool {
+
+    private static final DirectColorModel COLOR_MODEL = new DirectColorModel(24, 0x00ff0000,
+            0x0000ff00, 0x000000ff);
+
+    private static final int MIN_SIZE_CLASS = 4096;
+
+    private static final String POOLED_PROPERTY = RasterPool.class.getName();
+
+    private final ConcurrentMap<Integer, ConcurrentLinkedQueue<int[]>> buckets = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>>();
+
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    private long maxIdleBytes = 64L * 1024L * 1024L;
+
+    /**
+     * Returns the size class for the specified number of pixels: powers of two, each divided into four steps.
+     */
+    static int getSizeClass(int pixels) {
+        if (pixels <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+        int power = Integer.highestOneBit(pixels);
+        int step = Math.max(1, power / 4);
+        long sizeClass = ((long) pixels + step - 1) / step * step;
+        return (int) Math.min(Integer.MAX_VALUE, sizeClass);
+    }
+
+    /**
+     * Returns an RGB image of the specified size, backed by a pooled pixel buffer, if one is available. The content of the image is
+     * undefined: the caller has to paint the whole area.
+     * 
+     * @param width
+     *            the width of the image in pixels
+     * @param height
+     *            the height of the image in pixels
+     * @return an RGB image of the specified size
+     */
+    public BufferedImage acquire(int width, int height) {
+        int pixels = width * height;
+        int sizeClass = getSizeClass(pixels);
+        int[] data = null;
+        ConcurrentLinkedQueue<int[]> bucket = buckets.get(sizeClass);
+        if (bucket != null) {
+            data = bucket.poll();
+        }
+        if (data != null) {
+            idleBytes.addAndGet(-4L * data.length);
+        } else {
+            data = new int[sizeClass];
+        }
+
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, data.length),
+                width, height, width, COLOR_MODEL.getMasks(), null);
+        Hashtable<String, Object> properties = new Hashtable<String, Object>(1);
+        properties.put(POOLED_PROPERTY, Boolean.TRUE);
+
+        return new BufferedImage(COLOR_MODEL, raster, false, properties);
+    }
+
+    /**
+     * Returns an RGB image of the specified size with a white background, backed by a pooled pixel buffer, if one is available.
+     * 
+     * @param width
+     *            the width of the image in pixels
+     * @param height
+     *            the height of the image in pixels
+     * @return an RGB image of the specified size with a white background
+     */
+    public BufferedImage acquireBlank(int width, int height) {
+        BufferedImage image = acquire(width, height);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setBackground(Color.WHITE);
+            g.clearRect(0, 0, width, height);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Removes all idle buffers from the pool.
+     */
+    public void clear() {
+        for (ConcurrentLinkedQueue<int[]> bucket : buckets.values()) {
+            for (int[] data = bucket.poll(); data != null; data = bucket.poll()) {
+                idleBytes.addAndGet(-4L * data.length);
+            }
+        }
+    }
+
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * Returns <code>true</code> if the specified image was acquired from this pool.
+     * 
+     * @param image
+     *            the image to check
+     * @return <code>true</code> if the specified image was acquired from this pool
+     */
+    public static boolean isPooled(BufferedImage image) {
+        return image != null && Boolean.TRUE.equals(image.getProperty(POOLED_PROPERTY));
+    }
+
+    /**
+     * Returns the pixel buffer of the image, acquired from the pool, back to the pool for reuse, unless the pool is full. The image must
+     * not be used afterwards. Images, not acquired from a pool, are flushed only.
+     * 
+     * @param image
+     *            the image to release; <code>null</code> is ignored
+     */
+    public void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        image.flush();
+        if (!isPooled(image)) {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        int[] data = ((DataBufferInt) buffer).getData();
+        if (getSizeClass(data.length) != data.length
+                || idleBytes.addAndGet(4L * data.length) > maxIdleBytes) {
+            // the pool is full: leave the buffer to the garbage collector
+            idleBytes.addAndGet(-4L * data.length);
+            return;
+        }
+        ConcurrentLinkedQueue<int[]> bucket = buckets.get(data.length);
+        if (bucket == null) {
+            ConcurrentLinkedQueue<int[]> existing = buckets.putIfAbsent(data.length,
+                    bucket = new ConcurrentLinkedQueue<int[]>());
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        bucket.offer(data);
+    }
+
+    /**
+     * Resizes the image to fit into the target box, keeping its aspect ratio, by halving it progressively with bilinear interpolation,
+     * which gives the same quality as the progressive bilinear image service of Jahia. All the intermediate and the resulting images are
+     * acquired from the pool; the source image is left untouched.
+     * 
+     * @param source
+     *            the image to resize
+     * @param maxWidth
+     *            the maximum width of the resized image in pixels
+     * @param maxHeight
+     *            the maximum height of the resized image in pixels
+     * @return the resized image, acquired from the pool
+     */
+    public BufferedImage resize(BufferedImage source, int maxWidth, int maxHeight) {
+        double scale = Math.min((double) maxWidth / source.getWidth(), (double) maxHeight
+                / source.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            if (width > targetWidth) {
+                width = Math.max(targetWidth, width / 2);
+            } else {
+                width = targetWidth;
+            }
+            if (height > targetHeight) {
+                height = Math.max(targetHeight, height / 2);
+            } else {
+                height = targetHeight;
+            }
+
+            // a translucent source is composed onto a white background
+            BufferedImage step = current.getColorModel().hasAlpha() ? acquireBlank(width, height)
+                    : acquire(width, height);
+            Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            if (current != source) {
+                release(current);
+            }
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of the idle buffers kept in the pool.
+     * 
+     * @param maxIdleBytes
+     *            the maximum total size in bytes of the idle buffers kept in the pool
+     */
+    public void setMaxIdleBytes(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+}
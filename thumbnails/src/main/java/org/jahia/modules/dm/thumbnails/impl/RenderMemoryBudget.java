@@ -0,0 +1,322 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.dm.DocumentOperationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A global budget of heap memory for page rasters, shared by the PDF to image converters. Before a page is rendered, the size of its
+ * raster is estimated from the page box and reserved from the budget; if the budget is exhausted, the render waits until other renders
+ * release their reservations. A single page may not reserve more than the configured maximum page size; larger pages are rendered at a
+ * reduced zoom instead. This way the number of concurrent renders adapts to the size of the pages.
+ * <p>
+ * The reservation of a rendered page is attached to its image ({@link #attach(BufferedImage, Reservation)}) and is kept until the image
+ * is released by its consumer ({@link #release(BufferedImage)}). Reservations of images, which are garbage collected without being
+ * released, are returned to the budget on the next reservation.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class RenderMemoryBudget implements InitializingBean {
+
+    /**
+     * A weak reference to a page image, which returns the reservation of the image if the image is garbage collected without being
+     * released.
+     */
+    private static final class Attachment extends WeakReference<BufferedImage> {
+
+        private final Reservation reservation;
+
+        Attachment(BufferedImage image, Reservation reservation, ReferenceQueue<BufferedImage> queue) {
+            super(image, queue);
+            this.reservation = reservation;
+        }
+    }
+
+    /**
+     * A reservation of raster memory for a single page render, which has to be released once the page image is no longer used.
+     */
+    public static final class Reservation {
+
+        private final RenderMemoryBudget budget;
+
+        private final int maxHeight;
+
+        private final int maxWidth;
+
+        private int units;
+
+        private Reservation(RenderMemoryBudget budget, int units, int maxWidth, int maxHeight) {
+            super();
+            this.budget = budget;
+            this.units = units;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        /**
+         * Returns the maximum height of the page image in pixels, which may be lower than the requested one if the zoom was reduced.
+         * 
+         * @return the maximum height of the page image in pixels; a value less or equal to <code>0</code> means no constraint
+         */
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        /**
+         * Returns the maximum width of the page image in pixels, which may be lower than the requested one if the zoom was reduced.
+         * 
+         * @return the maximum width of the page image in pixels; a value less or equal to <code>0</code> means no constraint
+         */
+        public int getMaxWidth() {
+            return maxWidth;
+        }
+
+        /**
+         * Returns the reserved memory to the budget. Subsequent calls have no effect.
+         */
+        public synchronized void release() {
+            if (units > 0) {
+                budget.permits.release(units);
+                units = 0;
+            }
+        }
+    }
+
+    /**
+     * The bytes per pixel of the RGB rasters, created by the converters.
+     */
+    static final int BYTES_PER_PIXEL = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderMemoryBudget.class);
+
+    private static final int UNIT = 1024;
+
+    private final Map<BufferedImage, Attachment> attachments = new WeakHashMap<BufferedImage, Attachment>();
+
+    private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<BufferedImage>();
+
+    private float heapFraction = 0.25f;
+
+    private long maxPageSize;
+
+    private long maxSize;
+
+    private Semaphore permits;
+
+    private long timeout = 60000L;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        long heap = Runtime.getRuntime().maxMemory();
+        if (maxSize <= 0) {
+            maxSize = (long) (heap * heapFraction);
+        }
+        maxSize = Math.min(maxSize, heap / 2);
+        if (maxPageSize <= 0 || maxPageSize > maxSize) {
+            maxPageSize = maxSize / 4;
+        }
+        permits = new Semaphore((int) Math.min(Integer.MAX_VALUE, maxSize / UNIT), true);
+
+        logger.info("Render memory budget initialized with {} bytes, at most {} bytes per page",
+                maxSize, maxPageSize);
+    }
+
+    /**
+     * Attaches the reservation to the rendered page image, so that it is kept until the image is released using
+     * {@link #release(BufferedImage)} or garbage collected.
+     * 
+     * @param image
+     *            the rendered page image
+     * @param reservation
+     *            the reservation the page was rendered with
+     */
+    public void attach(BufferedImage image, Reservation reservation) {
+        synchronized (attachments) {
+            attachments.put(image, new Attachment(image, reservation, collected));
+        }
+    }
+
+    /**
+     * Releases the reservation, attached to the specified page image. Images without a reservation are ignored.
+     * 
+     * @param image
+     *            the page image, which is no longer used; <code>null</code> is ignored
+     */
+    public void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        Attachment attachment;
+        synchronized (attachments) {
+            attachment = attachments.remove(image);
+        }
+        if (attachment != null) {
+            attachment.clear();
+            attachment.reservation.release();
+        }
+    }
+
+    private void releaseCollected() {
+        Attachment attachment;
+        while ((attachment = (Attachment) collected.poll()) != null) {
+            // the image was garbage collected without being released by its consumer
+            attachment.reservation.release();
+        }
+    }
+
+    /**
+     * Reserves the raster memory for rendering a page of the specified size into the target box. If the raster exceeds the maximum page
+     * size, the target box is reduced accordingly. If not enough memory is available, waits until it is released by other renders.
+     * 
+     * @param pageWidth
+     *            the page width in points; a value less or equal to <code>0</code> if it is not known
+     * @param pageHeight
+     *            the page height in points; a value less or equal to <code>0</code> if it is not known
+     * @param zoom
+     *            the zoom factor the page would be rendered with
+     * @param maxWidth
+     *            the requested maximum width of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @param maxHeight
+     *            the requested maximum height of the image in pixels; a value less or equal to <code>0</code> means no constraint
+     * @return the reservation, which has to be released once the page image is no longer used
+     * @throws DocumentOperationException
+     *             if the memory could not be reserved within the configured timeout
+     */
+    public Reservation reserve(float pageWidth, float pageHeight, float zoom, int maxWidth,
+            int maxHeight) throws DocumentOperationException {
+        long bytes;
+        if (pageWidth > 0 && pageHeight > 0) {
+            long width = (long) Math.ceil(pageWidth * zoom);
+            long height = (long) Math.ceil(pageHeight * zoom);
+            bytes = width * height * BYTES_PER_PIXEL;
+            if (bytes > maxPageSize) {
+                // fit the raster into the maximum page size, keeping the aspect ratio
+                double factor = Math.sqrt((double) maxPageSize / bytes);
+                maxWidth = Math.max(1, (int) (width * factor));
+                maxHeight = Math.max(1, (int) (height * factor));
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Reducing the page image of {}x{} pixels to fit {}x{} pixels",
+                            new Object[] { width, height, maxWidth, maxHeight });
+                }
+                bytes = (long) maxWidth * maxHeight * BYTES_PER_PIXEL;
+            }
+        } else if (maxWidth > 0 && maxHeight > 0) {
+            bytes = Math.min((long) maxWidth * maxHeight * BYTES_PER_PIXEL, maxPageSize);
+        } else {
+            // nothing is known about the raster size: assume the worst
+            bytes = maxPageSize;
+        }
+
+        releaseCollected();
+        int units = (int) Math.max(1, (bytes + UNIT - 1) / UNIT);
+        try {
+            if (!permits.tryAcquire(units)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Render memory budget exhausted. Waiting for {} bytes to be released.",
+                            bytes);
+                }
+                if (!permits.tryAcquire(units, timeout, TimeUnit.MILLISECONDS)) {
+                    throw new DocumentOperationException("Unable to reserve " + bytes
+                            + " bytes of the render memory budget within " + timeout + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while waiting for the render memory budget", e);
+        }
+
+        return new Reservation(this, units, maxWidth, maxHeight);
+    }
+
+    /**
+     * Sets the fraction of the maximum heap size to use as the budget if the budget size is not configured explicitly.
+     * 
+     * @param heapFraction
+     *            the fraction of the maximum heap size to use as the budget
+     */
+    public void setHeapFraction(float heapFraction) {
+        this.heapFraction = heapFraction;
+    }
+
+    /**
+     * Sets the maximum raster size in bytes of a single page; larger pages are rendered at a reduced zoom.
+     * 
+     * @param maxPageSize
+     *            the maximum raster size in bytes of a single page; <code>0</code> for a quarter of the budget
+     */
+    public void setMaxPageSize(long maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Sets the size of the budget in bytes. It is capped at half of the maximum heap size.
+     * 
+     * @param maxSize
+     *            the size of the budget in bytes; <code>0</code> to derive it from the maximum heap size
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the time in milliseconds a render waits at most for the budget to become available.
+     * 
+     * @param timeout
+     *            the time in milliseconds a render waits at most for the budget
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * ==========================================================================================
+ * =                   JAHIA'S DUAL LICENSING - IMPORTANT INFORMATION                       =
+ * ==========================================================================================
+ *
+ *                                 http://www.jahia.com
+ *
+ *     Copyright (C) 2002-2020 Jahia Solutions Group SA. All rights reserved.
+ *
+ *     THIS FILE IS AVAILABLE UNDER TWO DIFFERENT LICENSES:
+ *     1/GPL OR 2/JSEL
+ *
+ *     1/ GPL
+ *     ==================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE GPL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *     2/ JSEL - Commercial and Supported Versions of the program
+ *     ===================================================================================
+ *
+ *     IF YOU DECIDE TO CHOOSE THE JSEL LICENSE, YOU MUST COMPLY WITH THE FOLLOWING TERMS:
+ *
+ *     Alternatively, commercial and supported versions of the program - also known as
+ *     Enterprise Distributions - must be used in accordance with the terms and conditions
+ *     contained in a separate written agreement between you and Jahia Solutions Group SA.
+ *
+ *     If you are unsure which license is appropriate for your use,
+ *     please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.dm.thumbnails.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.RenderDestination;
+
+/**
+ * The entry point of a helper JVM, started by the {@link ForkedPDF2ImageConverterService}, which renders PDF pages using Apache PDFBox
+ * outside of the portal heap. Requests are read from the standard input and responses are written to the standard output; anything the
+ * libraries print is redirected to the standard error. The last loaded document is kept open for subsequent requests on the same file.
+ * <p>
+ * Request: operation (byte), file path (UTF), page number (int), max. width (int), max. height (int).<br>
+ * Response: status (byte), used heap in bytes (long), followed by the error message (UTF) on failure, the number of pages, the width and
+ * the height in points of the requested page with its rotation applied (int each, the size is <code>0</code> if the page does not exist)
+ * for {@link #OP_PAGES} or the width, height (int) and the RGB pixels (4 bytes each) of the image for {@link #OP_RENDER}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class RenderWorker {
+
+    static final byte OP_PAGES = 1;
+
+    static final byte OP_QUIT = 0;
+
+    static final byte OP_RENDER = 2;
+
+    static final byte STATUS_FAILED = 1;
+
+    static final byte STATUS_FAILED_EXITING = 2;
+
+    static final byte STATUS_OK = 0;
+
+    /**
+     * Starts the worker loop.
+     * 
+     * @param args
+     *            the maximum zoom factor, the maximum main memory for a loaded document in bytes and the render destination
+     *            (<code>VIEW</code> or <code>PRINT</code>)
+     */
+    public static void main(String[] args) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                FileDescriptor.out), 64 * 1024));
+        // the standard output is the response channel: keep it clean
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                FileDescriptor.in)));
+
+        RenderWorker worker = new RenderWorker(args.length > 0 ? Float.parseFloat(args[0]) : 4,
+                args.length > 1 ? Long.parseLong(args[1]) : 16L * 1024L * 1024L,
+                args.length > 2 ? RenderDestination.valueOf(args[2]) : RenderDestination.VIEW);
+        try {
+            worker.run(in, out);
+        } catch (EOFException e) {
+            // the portal closed the channel
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            worker.close();
+        }
+        System.exit(0);
+    }
+
+    private PDDocument document;
+
+    private String documentKey;
+
+    private final float maxZoom;
+
+    private final long maxMainMemory;
+
+    private PDFRenderer renderer;
+
+    private final RenderDestination renderDestination;
+
+    private RenderWorker(float maxZoom, long maxMainMemory, RenderDestination renderDestination) {
+        super();
+        this.maxZoom = maxZoom;
+        this.maxMainMemory = maxMainMemory;
+        this.renderDestination = renderDestination;
+    }
+
+    private void close() {
+        if (document != null) {
+            try {
+                document.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            document = null;
+            documentKey = null;
+            renderer = null;
+        }
+    }
+
+    private PDDocument load(String path) throws IOException {
+        File pdfFile = new File(path);
+        String key = pdfFile.getAbsolutePath() + "/" + pdfFile.lastModified() + "/"
+                + pdfFile.length();
+        if (!key.equals(documentKey)) {
+            close();
+            document = PDDocument.load(pdfFile, MemoryUsageSetting.setupMixed(maxMainMemory));
+            documentKey = key;
+            renderer = new PDFRenderer(document);
+        }
+        return document;
+    }
+
+    private int[] getPageSize(int pageNumber) {
+        if (pageNumber < 0 || pageNumber >= document.getNumberOfPages()) {
+            return new int[] { 0, 0 };
+        }
+        PDPage page = document.getPage(pageNumber);
+        PDRectangle cropBox = page.getCropBox();
+        int width = (int) Math.ceil(cropBox.getWidth());
+        int height = (int) Math.ceil(cropBox.getHeight());
+        return page.getRotation() % 180 != 0 ? new int[] { height, width } : new int[] { width,
+                height };
+    }
+
+    private BufferedImage renderPage(int pageNumber, int maxWidth, int maxHeight)
+            throws IOException {
+        if (maxWidth <= 0 && maxHeight <= 0) {
+            return renderer.renderImage(pageNumber, 1, ImageType.RGB, RenderDestination.PRINT);
+        }
+
+        PDPage page = document.getPage(pageNumber);
+        PDRectangle cropBox = page.getCropBox();
+        boolean rotated = page.getRotation() % 180 != 0;
+        float pageWidth = rotated ? cropBox.getHeight() : cropBox.getWidth();
+        float pageHeight = rotated ? cropBox.getWidth() : cropBox.getHeight();
+        float zoom = maxZoom;
+        if (maxWidth > 0 && pageWidth > 0) {
+            zoom = Math.min(zoom, maxWidth / pageWidth);
+        }
+        if (maxHeight > 0 && pageHeight > 0) {
+            zoom = Math.min(zoom, maxHeight / pageHeight);
+        }
+
+        renderer.setSubsamplingAllowed(renderDestination == RenderDestination.VIEW);
+
+        return renderer.renderImage(pageNumber, zoom, ImageType.RGB, renderDestination);
+    }
+
+    private void run(DataInputStream in, DataOutputStream out) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        byte[] buffer = new byte[0];
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_QUIT) {
+                return;
+            }
+            String path = in.readUTF();
+            int pageNumber = in.readInt();
+            int maxWidth = in.readInt();
+            int maxHeight = in.readInt();
+
+            int pageCount = 0;
+            int[] pageSize = null;
+            BufferedImage image = null;
+            Throwable failure = null;
+            try {
+                pageCount = load(path).getNumberOfPages();
+                if (op == OP_RENDER) {
+                    image = renderPage(pageNumber, maxWidth, maxHeight);
+                } else {
+                    pageSize = getPageSize(pageNumber);
+                }
+            } catch (Throwable e) {
+                failure = e;
+                // the document may be in an inconsistent state after a failure
+                close();
+            }
+
+            if (failure != null) {
+                boolean exiting = failure instanceof Error;
+                out.writeByte(exiting ? STATUS_FAILED_EXITING : STATUS_FAILED);
+                out.writeLong(runtime.totalMemory() - runtime.freeMemory());
+                out.writeUTF(String.valueOf(failure));
+                out.flush();
+                if (exiting) {
+                    // do not keep running with a possibly damaged heap
+                    failure.printStackTrace();
+                    return;
+                }
+                continue;
+            }
+
+            out.writeByte(STATUS_OK);
+            out.writeLong(runtime.totalMemory() - runtime.freeMemory());
+            if (op == OP_RENDER) {
+                int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                if (buffer.length < pixels.length * 4) {
+                    buffer = new byte[pixels.length * 4];
+                }
+                ByteBuffer.wrap(buffer).asIntBuffer().put(pixels);
+                out.writeInt(image.getWidth());
+                out.writeInt(image.getHeight());
+                out.write(buffer, 0, pixels.length * 4);
+                image.flush();
+            } else {
+                out.writeInt(pageCount);
+                out.writeInt(pageSize[0]);
+                out.writeInt(pageSize[1]);
+            }
+            out.flush();
+        }
+    }
+}
@@ -69,6 +69,8 @@ public class VideoThumbnailJob extends DocumentOperationJob {
 
     public static final String THUMBNAIL_OFFSET = "offset";
 
+    public static final String THUMBNAIL_POSITION = "position";
+
     public static final String THUMBNAIL_SIZE = "thumbnailSize";
 
     protected void doOperation(JCRNodeWrapper documentNode, JobExecutionContext jobExecutionContext)
@@ -83,10 +85,14 @@ public class VideoThumbnailJob extends DocumentOperationJob {
 
         JobDataMap jobDataMap = jobExecutionContext.getJobDetail().getJobDataMap();
 
-        service.createThumbnailForNode(documentNode,
-                StringUtils.defaultIfBlank(jobDataMap.getString(THUMBNAIL_NAME), "thumbnail"),
-                jobDataMap.getIntValue(THUMBNAIL_OFFSET), jobDataMap.getString(THUMBNAIL_SIZE));
-
-        documentNode.getSession().save();
+        String thumbnailName = StringUtils.defaultIfBlank(jobDataMap.getString(THUMBNAIL_NAME), "thumbnail");
+        String position = jobDataMap.getString(THUMBNAIL_POSITION);
+        if (StringUtils.isNotBlank(position)) {
+            service.createThumbnailForNode(documentNode, thumbnailName, position,
+                    jobDataMap.getString(THUMBNAIL_SIZE));
+        } else {
+            service.createThumbnailForNode(documentNode, thumbnailName,
+                    jobDataMap.getIntValue(THUMBNAIL_OFFSET), jobDataMap.getString(THUMBNAIL_SIZE));
+        }
     }
 }
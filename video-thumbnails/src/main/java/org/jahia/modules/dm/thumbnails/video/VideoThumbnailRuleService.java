@@ -44,7 +44,11 @@
 package org.jahia.modules.dm.thumbnails.video;
 
 import org.drools.core.spi.KnowledgeHelper;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperation;
+import org.jahia.dm.DocumentOperationExecutor;
 import org.jahia.dm.DocumentOperationJob;
+import org.jahia.dm.cache.FailureCache;
 import org.jahia.dm.thumbnails.VideoThumbnailService;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.rules.AddedNodeFact;
@@ -94,7 +98,9 @@ public class VideoThumbnailRuleService {
                         + " Skipping generation for node {}", nodeFact.getPath());
             }
             return;
-        } else if (!thumbnailService.canHandle(nodeFact.getNode())) {
+        } else if (!thumbnailService.canHandle(nodeFact.getNode())
+                || DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(),
+                FailureCache.VIDEO_THUMBNAIL)) {
             return;
         }
 
@@ -110,6 +116,43 @@ public class VideoThumbnailRuleService {
         }
     }
 
+    /**
+     * Generates thumbnail of the specified size for the provided video node, taking the frame at the specified position.
+     *
+     * @param nodeFact      the node to create a view for
+     * @param thumbnailName the name of the thumbnail node
+     * @param position      the position of the frame either in seconds (e.g. <code>12.5</code>) or as a percentage of the video duration
+     *                      (e.g. <code>10%</code>)
+     * @param thumbnailSize the size of the generated thumbnail
+     * @param drools        the rule engine helper class
+     * @throws RepositoryException in case of an error
+     */
+    public void createThumbnail(AddedNodeFact nodeFact, String thumbnailName, String position,
+                                String thumbnailSize, KnowledgeHelper drools) throws RepositoryException {
+        if (thumbnailService == null || !thumbnailService.isEnabled()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Thumbnail generation service is not enabled."
+                        + " Skipping generation for node {}", nodeFact.getPath());
+            }
+            return;
+        } else if (!thumbnailService.canHandle(nodeFact.getNode())
+                || DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(),
+                FailureCache.VIDEO_THUMBNAIL)) {
+            return;
+        }
+
+        try {
+            if (asBackgroundJob) {
+                scheduleAsJob(nodeFact.getNode(), thumbnailName, 0, position, thumbnailSize);
+            } else {
+                thumbnailService.createThumbnailForNode(nodeFact.getNode(), thumbnailName, position,
+                        thumbnailSize);
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
     /**
      * Returns <code>true</code> if the document thumbnails service is enabled.
      *
@@ -121,6 +164,33 @@ public class VideoThumbnailRuleService {
 
     protected void scheduleAsJob(JCRNodeWrapper doc, String thumbnailName, int thumbnailOffset,
                                  String thumbnailSize) throws SchedulerException, RepositoryException {
+        scheduleAsJob(doc, thumbnailName, thumbnailOffset, null, thumbnailSize);
+    }
+
+    protected void scheduleAsJob(JCRNodeWrapper doc, final String thumbnailName, final int thumbnailOffset,
+                                 final String position, final String thumbnailSize)
+            throws SchedulerException, RepositoryException {
+        DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+        if (executor != null
+                && executor.submit(DocumentOperationExecutor.VIDEO_THUMBNAIL, doc, thumbnailName + ":"
+                + (position != null ? position : thumbnailOffset) + ":" + thumbnailSize, new DocumentOperation() {
+            public void execute(JCRNodeWrapper documentNode) throws Exception {
+                VideoThumbnailService service = DocumentManagement.getInstance().getVideoThumbnailService();
+                if (service == null || !service.isEnabled()) {
+                    logger.info("Thumbnail generation service is not enabled."
+                            + " Skipping generation of a thumbnail for node {}", documentNode.getPath());
+                    return;
+                }
+                if (position != null) {
+                    service.createThumbnailForNode(documentNode, thumbnailName, position, thumbnailSize);
+                } else {
+                    service.createThumbnailForNode(documentNode, thumbnailName, thumbnailOffset, thumbnailSize);
+                }
+            }
+        })) {
+            return;
+        }
+
         // execute as a background job
         JobDetail jobDetail = BackgroundJob.createJahiaJob("Video thumbnail for " + doc.getName(),
                 VideoThumbnailJob.class);
@@ -130,6 +200,9 @@ public class VideoThumbnailRuleService {
                 .getName());
         jobDataMap.put(VideoThumbnailJob.THUMBNAIL_NAME, thumbnailName);
         jobDataMap.put(VideoThumbnailJob.THUMBNAIL_OFFSET, thumbnailOffset);
+        if (position != null) {
+            jobDataMap.put(VideoThumbnailJob.THUMBNAIL_POSITION, position);
+        }
         jobDataMap.put(VideoThumbnailJob.THUMBNAIL_SIZE, thumbnailSize);
 
         schedulerService.scheduleJobAtEndOfRequest(jobDetail);
@@ -50,6 +50,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.jcr.Binary;
@@ -57,19 +58,21 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.value.BinaryImpl;
 import org.jahia.api.Constants;
+import org.jahia.dm.DocumentManagement;
 import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.cache.FailureCache;
+import org.jahia.dm.metrics.DocumentMetrics;
 import org.jahia.dm.thumbnails.VideoThumbnailService;
+import org.jahia.dm.utils.BinaryUtils;
+import org.jahia.dm.utils.ProcessResult;
 import org.jahia.dm.utils.ProcessUtils;
 import org.jahia.services.content.JCRContentUtils;
 import org.jahia.services.content.JCRNodeWrapper;
-import org.jahia.utils.StringOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -82,6 +85,37 @@ import org.springframework.beans.factory.InitializingBean;
  */
 public class VideoThumbnailServiceImpl implements VideoThumbnailService, InitializingBean {
 
+    /**
+     * Seeks with the input-side <code>-ss</code> option to the nearest keyframe before the requested position and trims the rest
+     * decode-accurately.
+     */
+    public static final String SEEK_MODE_FAST = "fast";
+
+    /**
+     * Legacy mode: shifts the input timestamps with the <code>-itsoffset</code> option, decoding the stream from its start.
+     */
+    public static final String SEEK_MODE_OFFSET = "offset";
+
+    /**
+     * Reads the video file directly from the <code>FileDataStore</code> if possible, otherwise copies it into a temporary file.
+     */
+    public static final String SOURCE_DATASTORE = "datastore";
+
+    /**
+     * Copies the video into a temporary file.
+     */
+    public static final String SOURCE_DOWNLOAD = "download";
+
+    /**
+     * Reads the video file directly from the <code>FileDataStore</code> if possible, otherwise feeds it to ffmpeg over a pipe and, if
+     * this fails (e.g. the index of the video is at its end), copies it into a temporary file.
+     */
+    public static final String SOURCE_PIPE = "pipe";
+
+    private static final String MIME_GROUP = "video";
+
+    private static final String PIPE_INPUT = "pipe:0";
+
     private static final Logger logger = LoggerFactory.getLogger(VideoThumbnailServiceImpl.class);
 
     private boolean autodetect;
@@ -90,8 +124,20 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
 
     private String executablePath = "ffmpeg";
 
+    private String fastSeekParameters = "-y -ss ${seek} -i ${input} -ss ${trim} -vcodec mjpeg -vframes 1 -an -f rawvideo -s ${size} ${output}";
+
     private String parameters = "-y -itsoffset ${offset} -i ${input} -vcodec mjpeg -vframes 1 -an -f rawvideo -s ${size} ${output}";
 
+    private String probeExecutablePath;
+
+    private long probeTimeout = 30000;
+
+    private String seekMode = SEEK_MODE_FAST;
+
+    private double seekPreroll = 2;
+
+    private String videoSource = SOURCE_DATASTORE;
+
     private File workingDir;
 
     public void afterPropertiesSet() throws Exception {
@@ -113,10 +159,30 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
     public boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName,
             int offsetSeconds, String thumbnailSize) throws RepositoryException,
             DocumentOperationException {
+        return createThumbnailForNode(fileNode, thumbnailName, offsetSeconds, null, thumbnailSize);
+    }
+
+    public boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName,
+            String position, String thumbnailSize) throws RepositoryException,
+            DocumentOperationException {
+        return createThumbnailForNode(fileNode, thumbnailName, 0, position, thumbnailSize);
+    }
+
+    private boolean createThumbnailForNode(JCRNodeWrapper fileNode, String thumbnailName,
+            int offsetSeconds, String position, String thumbnailSize) throws RepositoryException,
+            DocumentOperationException {
         if (!canHandle(fileNode)) {
             return false;
         }
 
+        DocumentManagement dm = DocumentManagement.getInstance();
+        DocumentMetrics metrics = dm.getMetrics();
+        if (dm.isOperationBlocked(fileNode, FailureCache.VIDEO_THUMBNAIL)) {
+            metrics.recordOutcome(FailureCache.VIDEO_THUMBNAIL, MIME_GROUP,
+                    DocumentMetrics.OUTCOME_BLOCKED);
+            return false;
+        }
+
         long timer = System.currentTimeMillis();
 
         JCRNodeWrapper thumbNode = null;
@@ -124,12 +190,44 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
         File source = null;
         File thumbnail = null;
         try {
-            source = File.createTempFile("video-source", null);
-            JCRContentUtils.downloadFileContent(fileNode, source);
-            thumbnail = generateThumbnail(source, offsetSeconds, thumbnailSize);
+            thumbnail = File.createTempFile("video-thumbnail", null);
+            boolean generated = false;
+            boolean attempted = false;
+            if (!SOURCE_DOWNLOAD.equals(videoSource)) {
+                File dataStoreFile = BinaryUtils.getDataStoreFile(fileNode,
+                        DocumentManagement.getInstance().getDataStorePath());
+                if (dataStoreFile != null) {
+                    attempted = true;
+                    generated = generateThumbnail(dataStoreFile, null, Double.NaN, thumbnail,
+                            offsetSeconds, position, thumbnailSize);
+                } else if (SOURCE_PIPE.equals(videoSource)) {
+                    generated = generateThumbnailFromPipe(fileNode, thumbnail, offsetSeconds,
+                            position, thumbnailSize);
+                }
+            }
+            if (!attempted && (!generated || thumbnail.length() == 0)) {
+                source = File.createTempFile("video-source", null);
+                long downloadTimer = System.currentTimeMillis();
+                JCRContentUtils.downloadFileContent(fileNode, source);
+                metrics.recordStage(DocumentMetrics.STAGE_DOWNLOAD, MIME_GROUP, downloadTimer);
+                metrics.recordBytes(DocumentMetrics.STAGE_DOWNLOAD, DocumentMetrics.DIRECTION_IN,
+                        source.length());
+                generated = generateThumbnail(source, null, Double.NaN, thumbnail, offsetSeconds,
+                        position, thumbnailSize);
+            }
+            if (!generated || thumbnail.length() == 0) {
+                FileUtils.deleteQuietly(thumbnail);
+                thumbnail = null;
+                dm.recordOperationFailure(fileNode, FailureCache.VIDEO_THUMBNAIL, null);
+            }
 
-            if (thumbnail != null && thumbnail.isFile()) {
+            if (thumbnail != null && thumbnail.isFile() && thumbnail.length() > 0) {
+                long storeTimer = System.currentTimeMillis();
                 thumbNode = storeThumbnailNode(fileNode, thumbnail, thumbnailName);
+                metrics.recordStage(DocumentMetrics.STAGE_STORE, MIME_GROUP, storeTimer);
+                metrics.recordBytes(DocumentMetrics.STAGE_STORE, DocumentMetrics.DIRECTION_OUT,
+                        thumbnail.length());
+                dm.recordOperationSuccess(fileNode, FailureCache.VIDEO_THUMBNAIL);
                 if (logger.isDebugEnabled()) {
                     logger.debug("Generated thumbnail {} for node {} in {} ms", new Object[] {
                             thumbNode.getPath(), fileNode.getPath(),
@@ -138,11 +236,15 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            dm.recordOperationFailure(fileNode, FailureCache.VIDEO_THUMBNAIL, e);
         } finally {
             FileUtils.deleteQuietly(thumbnail);
             FileUtils.deleteQuietly(source);
         }
 
+        metrics.recordOutcome(FailureCache.VIDEO_THUMBNAIL, MIME_GROUP,
+                thumbNode != null ? DocumentMetrics.OUTCOME_SUCCESS : DocumentMetrics.OUTCOME_FAILURE);
+
         return thumbNode != null;
     }
 
@@ -162,51 +264,118 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
 
     public boolean generateThumbnail(File videoFile, File outputFile, int offsetSeconds, String size)
             throws DocumentOperationException {
+        return generateThumbnail(videoFile, null, Double.NaN, outputFile, offsetSeconds, null, size);
+    }
+
+    public boolean generateThumbnail(File videoFile, File outputFile, String position, String size)
+            throws DocumentOperationException {
+        return generateThumbnail(videoFile, null, Double.NaN, outputFile, 0, position, size);
+    }
+
+    /**
+     * Generates the thumbnail image.
+     * 
+     * @param videoFile
+     *            the video file or <code>pipe:0</code> to read the video from the provided input stream
+     * @param input
+     *            the stream to feed the video to ffmpeg or <code>null</code> if the file is used
+     * @param duration
+     *            the duration of the video, a negative value if it is unknown or {@link Double#NaN} to probe it from the file if needed
+     * @param outputFile
+     *            the target thumbnail file
+     * @param offsetSeconds
+     *            the legacy input time offset in seconds
+     * @param position
+     *            the frame position or <code>null</code> to use the offset
+     * @param size
+     *            the target thumbnail size
+     * @return <code>true</code> if the thumbnail was successfully generated
+     * @throws DocumentOperationException
+     *             in case of a conversion error
+     */
+    private boolean generateThumbnail(Object videoFile, InputStream input, double duration,
+            File outputFile, int offsetSeconds, String position, String size)
+            throws DocumentOperationException {
         if (!isEnabled()) {
             logger.info("FFmpeg service is not enabled." + " Skip converting file {}", videoFile);
 
             return false;
         }
 
+        if (Double.isNaN(duration)) {
+            duration = isPercentage(position) || SEEK_MODE_FAST.equals(seekMode) ? probeDuration(
+                    videoFile, null) : -1;
+        }
+
         long timer = System.currentTimeMillis();
 
-        CommandLine cmd = getConvertCommandLine(videoFile, outputFile,
-                String.valueOf(offsetSeconds), StringUtils.defaultIfEmpty(size, "320x240"));
+        size = StringUtils.defaultIfEmpty(size, "320x240");
+        CommandLine cmd = null;
+        if (SEEK_MODE_OFFSET.equals(seekMode)) {
+            String offset = String.valueOf(offsetSeconds);
+            if (position != null) {
+                double seconds = resolvePosition(position, duration);
+                offset = formatSeconds(-seconds);
+            }
+            cmd = getConvertCommandLine(videoFile, outputFile, offset, size);
+        } else {
+            // legacy offsets are negative (time shift), so take the absolute value as the position
+            double seconds = resolvePosition(
+                    position != null ? position : String.valueOf(Math.abs(offsetSeconds)), duration);
+            cmd = getFastSeekCommandLine(videoFile, outputFile, seconds, size);
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Execuiting thumbnail generation command: {}", cmd.toString());
         }
 
-        int exitValue = 0;
+        ProcessResult result = DocumentManagement.getInstance().getProcessSupervisor()
+                .execute("ffmpeg", cmd.toStrings(), workingDir, input, 0);
 
-        StringOutputStream err = new StringOutputStream();
-        try {
-            DefaultExecutor executor = new DefaultExecutor();
-            executor.setStreamHandler(new PumpStreamHandler(null, err));
-            if (workingDir != null) {
-                if (workingDir.exists() || workingDir.mkdirs()) {
-                    executor.setWorkingDirectory(workingDir);
-                }
-            }
-            exitValue = executor.execute(cmd, System.getenv());
-        } catch (Exception e) {
-            throw new DocumentOperationException(e);
-        } finally {
-            if (exitValue > 0 && err.getLength() > 0) {
-                logger.error("External process finished with error. Cause: {}", err.toString());
-            }
-            if (logger.isDebugEnabled() && err.getLength() > 0) {
-                logger.debug(err.toString());
-            }
+        if (!result.isSuccessful() && result.getError().length() > 0) {
+            logger.error("External process finished with error. Cause: {}", result.getError());
+        }
+        if (logger.isDebugEnabled() && result.getError().length() > 0) {
+            logger.debug(result.getError());
         }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Generating thumbnail {} from {} done (exit code: {}) in {} ms",
-                    new Object[] { outputFile, videoFile, exitValue,
+                    new Object[] { outputFile, videoFile, result.getExitValue(),
                             (System.currentTimeMillis() - timer) });
         }
 
-        return exitValue == 0;
+        return result.isSuccessful();
+    }
+
+    private boolean generateThumbnailFromPipe(JCRNodeWrapper fileNode, File outputFile,
+            int offsetSeconds, String position, String size) throws RepositoryException {
+        InputStream is = null;
+        try {
+            double duration = -1;
+            if (isPercentage(position)) {
+                is = fileNode.getFileContent().downloadFile();
+                duration = probeDuration(PIPE_INPUT, is);
+                IOUtils.closeQuietly(is);
+            }
+            is = fileNode.getFileContent().downloadFile();
+            return generateThumbnail(PIPE_INPUT, is, duration, outputFile, offsetSeconds, position,
+                    size) && outputFile.length() > 0;
+        } catch (DocumentOperationException e) {
+            logger.info("Unable to generate thumbnail for node {} reading the video over a pipe."
+                    + " Falling back to a full copy. Cause: {}", fileNode.getPath(), e.getMessage());
+            return false;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static boolean isPercentage(String position) {
+        return position != null && position.trim().endsWith("%");
+    }
+
+    private static String formatSeconds(double seconds) {
+        return String.format(Locale.ENGLISH, "%.3f", seconds);
     }
 
     public File generateThumbnail(File videoFile, int offsetSeconds, String size)
@@ -234,7 +403,7 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
         return out;
     }
 
-    protected CommandLine getConvertCommandLine(File inputFile, File outputFile, String offset,
+    protected CommandLine getConvertCommandLine(Object inputFile, File outputFile, String offset,
             String size) {
         CommandLine cmd = new CommandLine(executablePath);
         cmd.addArguments(parameters);
@@ -250,6 +419,103 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
         return cmd;
     }
 
+    protected CommandLine getFastSeekCommandLine(Object inputFile, File outputFile, double position,
+            String size) {
+        CommandLine cmd = new CommandLine(executablePath);
+        cmd.addArguments(fastSeekParameters);
+
+        // jump to the keyframe before the pre-roll window and decode only the remaining part
+        double seek = Math.max(0, position - seekPreroll);
+
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("seek", formatSeconds(seek));
+        params.put("trim", formatSeconds(position - seek));
+        params.put("input", inputFile);
+        params.put("output", outputFile);
+        params.put("size", size);
+
+        cmd.setSubstitutionMap(params);
+
+        return cmd;
+    }
+
+    protected String getProbeExecutablePath() {
+        if (probeExecutablePath != null) {
+            return probeExecutablePath;
+        }
+        int pos = executablePath.lastIndexOf("ffmpeg");
+        return pos != -1 ? executablePath.substring(0, pos) + "ffprobe"
+                + executablePath.substring(pos + "ffmpeg".length()) : "ffprobe";
+    }
+
+    /**
+     * Determines the duration of the specified video file using ffprobe.
+     * 
+     * @param videoFile
+     *            the video file or <code>pipe:0</code> to read the video from the provided input stream
+     * @param input
+     *            the stream to feed the video to ffprobe or <code>null</code> if the file is used
+     * @return the duration of the video in seconds or <code>-1</code> if it cannot be determined
+     */
+    protected double probeDuration(Object videoFile, InputStream input) {
+        long timer = System.currentTimeMillis();
+        CommandLine cmd = new CommandLine(getProbeExecutablePath());
+        cmd.addArguments(new String[] { "-v", "error", "-show_entries", "format=duration", "-of",
+                "default=noprint_wrappers=1:nokey=1" }, false);
+        cmd.addArgument(videoFile instanceof File ? ((File) videoFile).getAbsolutePath() : videoFile
+                .toString(), false);
+
+        double duration = -1;
+        ProcessResult result = null;
+        try {
+            result = DocumentManagement.getInstance().getProcessSupervisor()
+                    .execute("ffprobe", cmd.toStrings(), workingDir, input, probeTimeout);
+            duration = Double.parseDouble(result.getOutput().trim());
+        } catch (Exception e) {
+            logger.warn("Unable to determine the duration of the video file {}. Cause: {} {}",
+                    new Object[] { videoFile, e.getMessage(),
+                            result != null ? result.getError() : StringUtils.EMPTY });
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Probed duration {} s of the video file {} in {} ms", new Object[] {
+                    duration, videoFile, (System.currentTimeMillis() - timer) });
+        }
+
+        return duration;
+    }
+
+    /**
+     * Resolves the frame position in seconds, clamping it to the video duration.
+     * 
+     * @param position
+     *            the position either in seconds or as a percentage of the duration (e.g. <code>10%</code>)
+     * @param duration
+     *            the video duration in seconds or a negative value if it is unknown
+     * @return the frame position in seconds
+     */
+    static double resolvePosition(String position, double duration) {
+        String value = StringUtils.defaultIfBlank(position, "0").trim();
+        double seconds = 0;
+        try {
+            if (value.endsWith("%")) {
+                double percent = Double.parseDouble(value.substring(0, value.length() - 1).trim());
+                seconds = duration > 0 ? duration * percent / 100 : 0;
+            } else {
+                seconds = Double.parseDouble(value);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid video thumbnail position '{}'. Using the first frame.", position);
+        }
+        seconds = Math.max(0, seconds);
+        if (duration > 0 && seconds > duration - Math.min(1, duration / 2)) {
+            // keep at least a few frames before the end of the stream
+            seconds = Math.max(0, duration - Math.min(1, duration / 2));
+        }
+
+        return seconds;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -274,10 +540,55 @@ public class VideoThumbnailServiceImpl implements VideoThumbnailService, Initial
         this.executablePath = executablePath;
     }
 
+    public void setFastSeekParameters(String fastSeekParameters) {
+        this.fastSeekParameters = fastSeekParameters;
+    }
+
     public void setParameters(String parameters) {
         this.parameters = parameters;
     }
 
+    public void setProbeExecutablePath(String probeExecutablePath) {
+        this.probeExecutablePath = StringUtils.defaultIfBlank(probeExecutablePath, null);
+    }
+
+    public void setProbeTimeout(long probeTimeout) {
+        this.probeTimeout = probeTimeout;
+    }
+
+    /**
+     * Sets the frame seeking mode: {@link #SEEK_MODE_FAST} or {@link #SEEK_MODE_OFFSET}.
+     * 
+     * @param seekMode
+     *            the frame seeking mode
+     */
+    public void setSeekMode(String seekMode) {
+        this.seekMode = SEEK_MODE_OFFSET.equalsIgnoreCase(StringUtils.trim(seekMode)) ? SEEK_MODE_OFFSET
+                : SEEK_MODE_FAST;
+    }
+
+    /**
+     * Sets the time in seconds before the requested position, which is decoded after seeking to the nearest keyframe.
+     * 
+     * @param seekPreroll
+     *            the time in seconds to decode before the requested position
+     */
+    public void setSeekPreroll(double seekPreroll) {
+        this.seekPreroll = seekPreroll;
+    }
+
+    /**
+     * Sets the way the video is provided to ffmpeg: {@link #SOURCE_DATASTORE}, {@link #SOURCE_PIPE} or {@link #SOURCE_DOWNLOAD}.
+     * 
+     * @param videoSource
+     *            the way the video is provided to ffmpeg
+     */
+    public void setVideoSource(String videoSource) {
+        videoSource = StringUtils.defaultIfBlank(videoSource, SOURCE_DATASTORE).trim().toLowerCase();
+        this.videoSource = SOURCE_PIPE.equals(videoSource) || SOURCE_DOWNLOAD.equals(videoSource) ? videoSource
+                : SOURCE_DATASTORE;
+    }
+
     public void setWorkingDir(File workingDir) {
         this.workingDir = workingDir;
     }
@@ -44,7 +44,12 @@
 package org.jahia.modules.dm.viewer;
 
 import org.drools.core.spi.KnowledgeHelper;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperation;
+import org.jahia.dm.DocumentOperationExecutor;
+import org.jahia.dm.cache.FailureCache;
 import org.jahia.dm.viewer.DocumentViewerService;
+import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.rules.AddedNodeFact;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,7 +68,49 @@ public class DocumentViewerRuleService {
     private DocumentViewerService viewerService;
 
     /**
-     * Creates the SWF view for the specified file node.
+     * Creates the page images view for the specified file node. The view is created asynchronously by the document operation executor if
+     * it is available, otherwise synchronously.
+     *
+     * @param nodeFact the node to create a view for
+     * @param drools   the rule engine helper class
+     * @throws RepositoryException in case of an error
+     */
+    public void createPagesView(AddedNodeFact nodeFact, KnowledgeHelper drools)
+            throws RepositoryException {
+        if (viewerService == null || !viewerService.isPagesViewEnabled()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(
+                        "Document page images view generation is not enabled. Skipping generation for node {}",
+                        nodeFact.getPath());
+            }
+            return;
+        }
+        if (DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(), FailureCache.PAGES_VIEW)) {
+            return;
+        }
+        try {
+            DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+            if (executor == null
+                    || !executor.submit(DocumentOperationExecutor.VIEWER, nodeFact.getNode(),
+                    FailureCache.PAGES_VIEW, new DocumentOperation() {
+                        public void execute(JCRNodeWrapper documentNode) throws Exception {
+                            DocumentViewerService service = DocumentManagement.getInstance()
+                                    .getDocumentViewerService();
+                            if (service != null && service.isPagesViewEnabled()) {
+                                service.createPagesViewForNode(documentNode);
+                            }
+                        }
+                    })) {
+                viewerService.createPagesViewForNode(nodeFact.getNode());
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates the SWF view for the specified file node. The view is created asynchronously by the document operation executor if it is
+     * available, otherwise synchronously.
      *
      * @param nodeFact the node to create a view for
      * @param drools   the rule engine helper class
@@ -79,8 +126,24 @@ public class DocumentViewerRuleService {
             }
             return;
         }
+        if (DocumentManagement.getInstance().isOperationBlocked(nodeFact.getNode(), FailureCache.SWF_VIEW)) {
+            return;
+        }
         try {
-            viewerService.createViewForNode(nodeFact.getNode());
+            DocumentOperationExecutor executor = DocumentManagement.getInstance().getOperationExecutor();
+            if (executor == null
+                    || !executor.submit(DocumentOperationExecutor.VIEWER, nodeFact.getNode(), null,
+                    new DocumentOperation() {
+                        public void execute(JCRNodeWrapper documentNode) throws Exception {
+                            DocumentViewerService service = DocumentManagement.getInstance()
+                                    .getDocumentViewerService();
+                            if (service != null && service.isEnabled()) {
+                                service.createViewForNode(documentNode);
+                            }
+                        }
+                    })) {
+                viewerService.createViewForNode(nodeFact.getNode());
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
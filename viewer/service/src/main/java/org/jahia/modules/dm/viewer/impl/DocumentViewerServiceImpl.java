@@ -43,14 +43,31 @@
  */
 package org.jahia.modules.dm.viewer.impl;
 
+import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
-
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Binary;
 import javax.jcr.lock.LockException;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
@@ -63,27 +80,85 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.value.BinaryImpl;
 import org.jahia.api.Constants;
+import org.jahia.dm.DocumentManagement;
+import org.jahia.dm.DocumentOperation;
+import org.jahia.dm.DocumentOperationBatch;
 import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.cache.CachedPDF;
+import org.jahia.dm.cache.FailureCache;
+import org.jahia.dm.metrics.DocumentMetrics;
+import org.jahia.dm.thumbnails.DocumentThumbnailService;
+import org.jahia.dm.thumbnails.PageImageConsumer;
+import org.jahia.dm.utils.LocalBinary;
+import org.jahia.dm.utils.PageInfoUtils;
+import org.jahia.dm.utils.SpillOutputStream;
+import org.jahia.dm.utils.ThumbnailImageEncoder;
 import org.jahia.dm.viewer.DocumentViewerService;
 import org.jahia.services.content.JCRContentUtils;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.transform.DocumentConverterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
- * The document SWF view generation service that uses SWFTools.
+ * The document view generation service: the SWF view is produced using SWFTools, the page images view is rendered in-process using the
+ * PDF-to-image converter of the document thumbnail service.
  *
  * @author Sergiy Shyrkov
  */
-public class DocumentViewerServiceImpl implements DocumentViewerService {
+public class DocumentViewerServiceImpl implements DocumentViewerService, DisposableBean {
+
+    /**
+     * A rendered and encoded page image.
+     */
+    private static final class PageImage {
+
+        private final SpillOutputStream data;
+
+        private final int height;
+
+        private final int number;
+
+        private final int width;
+
+        PageImage(int number, int width, int height, SpillOutputStream data) {
+            super();
+            this.number = number;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+    }
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentViewerServiceImpl.class);
 
+    private static final int PAGE_QUEUE_CAPACITY = 16;
+
+    private static final String PAGES_VIEW = "pagesView";
+
+    private static final String PAGES_VIEW_MIXIN = "jmix:pagesDocumentView";
+
+    private static final String PAGES_VIEW_TYPE = "jnt:documentPagesView";
+
     private DocumentConverterService documentConverter;
 
+    private volatile ThumbnailImageEncoder encoder;
+
+    private float jpegQuality = 0.85f;
+
+    private String pageImageFormat = "png";
+
+    private boolean pagesViewEnabled = true;
+
+    private int pageWidth = 1240;
+
     private PDF2SWFConverterService pdf2SWFConverter;
 
+    private int pngCompressionLevel = -1;
+
+    private volatile ExecutorService renderPool;
+
     private String[] supportedDocumentFormats;
 
     @Override
@@ -103,6 +178,23 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                         supportedDocumentFormats);
     }
 
+    /**
+     * Rethrows the failure of the completed page rendering batch, if any.
+     */
+    private void checkRendered(Future<Integer> batch, JCRNodeWrapper fileNode)
+            throws DocumentOperationException, InterruptedException {
+        try {
+            batch.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentOperationException) {
+                throw (DocumentOperationException) cause;
+            }
+            throw new DocumentOperationException("Error rendering the pages of the document "
+                    + fileNode.getPath(), cause);
+        }
+    }
+
     @Override
     public File convert(File inputPdfFile) throws DocumentOperationException {
         return pdf2SWFConverter.convert(inputPdfFile);
@@ -124,21 +216,168 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
         return pdf2SWFConverter.convert(inputPdfStream, outputSwfStream);
     }
 
+    @Override
+    public boolean createPagesViewForNode(JCRNodeWrapper fileNode) throws RepositoryException,
+            DocumentOperationException {
+        if (!isPagesViewEnabled() || !canHandle(fileNode)) {
+            logger.info("Page images view is disabled. Skip converting node {}", fileNode.getPath());
+            return false;
+        }
+
+        DocumentManagement dm = DocumentManagement.getInstance();
+        DocumentMetrics metrics = dm.getMetrics();
+        String sourceContentType = fileNode.getFileContent().getContentType();
+        final String mimeGroup = DocumentMetrics.getMimeGroup(sourceContentType);
+        if (dm.isOperationBlocked(fileNode, FailureCache.PAGES_VIEW)) {
+            metrics.recordOutcome(FailureCache.PAGES_VIEW, mimeGroup, DocumentMetrics.OUTCOME_BLOCKED);
+            return false;
+        }
+
+        long timer = System.currentTimeMillis();
+
+        final DocumentThumbnailService renderer = dm.getDocumentThumbnailService();
+        LocalBinary source = null;
+        CachedPDF pdf = null;
+        Future<Integer> batch = null;
+        final BlockingQueue<PageImage> rendered = new ArrayBlockingQueue<PageImage>(PAGE_QUEUE_CAPACITY);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        boolean done = false;
+        try {
+            if (JCRContentUtils.isMimeTypeGroup(sourceContentType, "pdf")) {
+                source = getLocalBinary(fileNode, mimeGroup);
+            } else {
+                pdf = getAsPDF(fileNode);
+                if (pdf == null) {
+                    return false;
+                }
+            }
+            final File pdfFile = source != null ? source.getFile() : pdf.getFile();
+            int pageCount = PageInfoUtils.getPageCount(fileNode);
+            if (pageCount < 0) {
+                pageCount = renderer.getNumberOfPages(pdfFile);
+            }
+
+            JCRNodeWrapper viewNode = preparePagesView(fileNode, pageCount);
+            // the pages become visible as soon as they are stored, also when the view is created by a batch
+            DocumentOperationBatch.flush(fileNode);
+
+            // the document is parsed once and its pages are rendered in parallel by the thumbnail service; the pages are encoded on the
+            // render threads and handed over through a bounded queue, so that encoded images do not pile up
+            batch = getRenderPool().submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return renderer.getImagesOfPages(pdfFile, 0, -1, pageWidth, 0,
+                            new PageImageConsumer() {
+                                public void pageRendered(int pageNumber, BufferedImage image)
+                                        throws Exception {
+                                    PageImage page = encodePage(pageNumber, image, mimeGroup);
+                                    while (!aborted.get()) {
+                                        if (rendered.offer(page, 1, TimeUnit.SECONDS)) {
+                                            if (aborted.get() && rendered.remove(page)) {
+                                                // the storing thread gave up in the meantime
+                                                page.data.dispose();
+                                            }
+                                            return;
+                                        }
+                                    }
+                                    page.data.dispose();
+                                    throw new DocumentOperationException(
+                                            "Rendering of the page images view for the file "
+                                                    + pdfFile + " was aborted");
+                                }
+                            });
+                }
+            });
+            List<PageImage> pages = new ArrayList<PageImage>(pageCount);
+            while (pages.size() < pageCount) {
+                PageImage page = rendered.poll(1, TimeUnit.SECONDS);
+                if (page == null) {
+                    if (batch.isDone()) {
+                        checkRendered(batch, fileNode);
+                        if (rendered.isEmpty()) {
+                            throw new DocumentOperationException("Only " + pages.size() + " of "
+                                    + pageCount + " pages of the document " + fileNode.getPath()
+                                    + " were rendered");
+                        }
+                    }
+                    continue;
+                }
+                long storeTimer = System.currentTimeMillis();
+                // store the completed page together with the ones completed meanwhile and make them visible at once
+                do {
+                    try {
+                        storePage(viewNode, page);
+                    } finally {
+                        page.data.dispose();
+                    }
+                    pages.add(page);
+                } while ((page = rendered.poll()) != null);
+                storeManifest(viewNode, pageCount, pages);
+                DocumentOperationBatch.flush(fileNode);
+                metrics.recordStage(DocumentMetrics.STAGE_STORE, mimeGroup, storeTimer);
+            }
+            done = true;
+
+            dm.recordOperationSuccess(fileNode, FailureCache.PAGES_VIEW);
+            metrics.recordOutcome(FailureCache.PAGES_VIEW, mimeGroup, DocumentMetrics.OUTCOME_SUCCESS);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Created page images view ({} pages) for node {} in {} ms",
+                        new Object[] { pageCount, fileNode.getPath(),
+                                (System.currentTimeMillis() - timer) });
+            }
+        } catch (LockException e) {
+            logger.warn("Document page images view cannot be generated because this node is locked (or archived): "
+                    + fileNode.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentOperationException("Interrupted while rendering pages of the document "
+                    + fileNode.getPath(), e);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            metrics.recordOutcome(FailureCache.PAGES_VIEW, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+            dm.recordOperationFailure(fileNode, FailureCache.PAGES_VIEW, e);
+        } finally {
+            aborted.set(true);
+            if (batch != null) {
+                batch.cancel(true);
+            }
+            PageImage page;
+            while ((page = rendered.poll()) != null) {
+                page.data.dispose();
+            }
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(pdf);
+        }
+
+        return done;
+    }
+
     @Override
     public boolean createPdfViewForNode(JCRNodeWrapper fileNode) throws RepositoryException,
             DocumentOperationException {
+        if (fileNode.isNodeType("nt:file")
+                && JCRContentUtils.isMimeTypeGroup(fileNode.getFileContent().getContentType(), "pdf")) {
+            return passThroughPdfView(fileNode);
+        }
         if (!isEnabled() || !documentConverter.isEnabled()) {
             logger.info("Viewer service is disabled. Skip converting node {}", fileNode.getPath());
             return false;
         }
 
+        DocumentManagement dm = DocumentManagement.getInstance();
+        DocumentMetrics metrics = dm.getMetrics();
+        String mimeGroup = DocumentMetrics.getMimeGroup(fileNode.getFileContent().getContentType());
+        if (dm.isOperationBlocked(fileNode, FailureCache.PDF_VIEW)) {
+            metrics.recordOutcome(FailureCache.PDF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_BLOCKED);
+            return false;
+        }
+
         long timer = System.currentTimeMillis();
 
         if (fileNode.isNodeType("nt:file")) {
-            File outFile = null;
+            CachedPDF pdf = null;
             try {
-                outFile = getAsPDF(fileNode);
-                if (outFile != null) {
+                pdf = getAsPDF(fileNode);
+                if (pdf != null) {
                     fileNode.getSession().checkout(fileNode);
                     JCRNodeWrapper pdfNode = null;
                     try {
@@ -150,8 +389,9 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                         pdfNode = fileNode.addNode("pdfView", "nt:resource");
                     }
 
+                    long storeTimer = System.currentTimeMillis();
                     BufferedInputStream convertedStream = new BufferedInputStream(
-                            new FileInputStream(outFile));
+                            new FileInputStream(pdf.getFile()));
                     try {
                         if (pdfNode.hasProperty(Constants.JCR_DATA)) {
                             pdfNode.getProperty(Constants.JCR_DATA).remove();
@@ -160,19 +400,28 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                         pdfNode.setProperty(Constants.JCR_MIMETYPE, "application/pdf");
                         Calendar lastModified = Calendar.getInstance();
                         pdfNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
-                        fileNode.getSession().save();
+                        DocumentOperationBatch.save(fileNode);
                     } finally {
                         IOUtils.closeQuietly(convertedStream);
                     }
+                    metrics.recordStage(DocumentMetrics.STAGE_STORE, mimeGroup, storeTimer);
+                    metrics.recordBytes(DocumentMetrics.STAGE_STORE, DocumentMetrics.DIRECTION_OUT,
+                            pdf.getFile().length());
+                    metrics.recordOutcome(FailureCache.PDF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_SUCCESS);
+                    dm.recordOperationSuccess(fileNode, FailureCache.PDF_VIEW);
                     if (logger.isDebugEnabled()) {
                         logger.debug("Created PDF view for node {} in {} ms", fileNode.getPath(),
                                 System.currentTimeMillis() - timer);
                     }
                 }
+            } catch (LockException e)  {
+                logger.warn("Document PDF view cannot be generated because this node is locked (or archived): " + fileNode.toString());
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
+                metrics.recordOutcome(FailureCache.PDF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+                dm.recordOperationFailure(fileNode, FailureCache.PDF_VIEW, e);
             } finally {
-                FileUtils.deleteQuietly(outFile);
+                IOUtils.closeQuietly(pdf);
             }
         } else {
             logger.warn("Path should correspond to a file node. Skipping node {}",
@@ -199,38 +448,45 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                 && JCRContentUtils.isMimeTypeGroup(fileNode.getFileContent().getContentType(),
                         supportedDocumentFormats)) {
 
-            if (StringUtils.isEmpty(pdf2SWFConverter.getExecutablePath())) {
+            if (!pdf2SWFConverter.isEnabled()
+                    || StringUtils.isEmpty(pdf2SWFConverter.getExecutablePath())) {
                 // PDF-to-SWF conversion disabled by configuration.
                 return false;
             }
 
+            DocumentManagement dm = DocumentManagement.getInstance();
             String sourceContentType = fileNode.getFileContent().getContentType();
-            File inFile = null;
-            boolean sourceAvailable = true;
+            DocumentMetrics metrics = dm.getMetrics();
+            String mimeGroup = DocumentMetrics.getMimeGroup(sourceContentType);
+            if (dm.isOperationBlocked(fileNode, FailureCache.SWF_VIEW)) {
+                metrics.recordOutcome(FailureCache.SWF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_BLOCKED);
+                return false;
+            }
+
+            LocalBinary source = null;
+            CachedPDF pdf = null;
             try {
                 if (JCRContentUtils.isMimeTypeGroup(sourceContentType, "pdf")) {
-                    inFile = File.createTempFile("doc-viewer-source", null);
-                    JCRContentUtils.downloadFileContent(fileNode, inFile);
+                    source = getLocalBinary(fileNode, mimeGroup);
                 } else {
-                    inFile = getAsPDF(fileNode);
+                    pdf = getAsPDF(fileNode);
                 }
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
-                sourceAvailable = false;
-            } finally {
-                if (!sourceAvailable) {
-                    FileUtils.deleteQuietly(inFile);
-                }
             }
 
-            if (inFile == null) {
+            if (source == null && pdf == null) {
                 return false;
             }
 
             File outFile = null;
             try {
-                outFile = pdf2SWFConverter.convert(inFile);
-                if (outFile != null) {
+                outFile = pdf2SWFConverter.convert(source != null ? source.getFile() : pdf.getFile());
+                if (outFile == null || outFile.length() == 0) {
+                    metrics.recordOutcome(FailureCache.SWF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+                    dm.recordOperationFailure(fileNode, FailureCache.SWF_VIEW, null);
+                } else {
+                    long storeTimer = System.currentTimeMillis();
                     fileNode.getSession().checkout(fileNode);
                     JCRNodeWrapper swfNode = null;
                     try {
@@ -253,31 +509,38 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                         swfNode.setProperty(Constants.JCR_MIMETYPE, "application/x-shockwave-flash");
                         Calendar lastModified = Calendar.getInstance();
                         swfNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
-                        fileNode.getSession().save();
-                        // Handle version after thumbnail creation
-                        VersionManager vm = fileNode.getSession().getWorkspace().getVersionManager();
-                        VersionIterator vi = vm.getVersionHistory(fileNode.getPath()).getAllLinearVersions();
-                        Version current = null;
-                        while (vi.hasNext()) {
-                            current = (Version) vi.next();
-                        }
-                        if (current != null ) {
-                            String label = null;
-                            for (String l :vm.getVersionHistory(fileNode.getPath()).getVersionLabels(current)) {
-                                if (l.startsWith(fileNode.getSession().getWorkspace().getName() + "_uploaded_at_")) {
-                                    label = l;
-                                    break;
+                        // Handle version after thumbnail creation, which requires the changes to be saved
+                        DocumentOperationBatch.save(fileNode, new DocumentOperation() {
+                            public void execute(JCRNodeWrapper node) throws Exception {
+                                VersionManager vm = node.getSession().getWorkspace().getVersionManager();
+                                VersionIterator vi = vm.getVersionHistory(node.getPath()).getAllLinearVersions();
+                                Version current = null;
+                                while (vi.hasNext()) {
+                                    current = (Version) vi.next();
+                                }
+                                if (current != null ) {
+                                    String label = null;
+                                    for (String l :vm.getVersionHistory(node.getPath()).getVersionLabels(current)) {
+                                        if (l.startsWith(node.getSession().getWorkspace().getName() + "_uploaded_at_")) {
+                                            label = l;
+                                            break;
+                                        }
+                                    }
+                                    if (label != null) {
+                                        Version v = vm.checkpoint(node.getPath());
+                                        vm.getVersionHistory(node.getPath()).addVersionLabel(v.getName(),label,true);
+                                    }
                                 }
                             }
-                            if (label != null) {
-                                Version v = vm.checkpoint(fileNode.getPath());
-                                vm.getVersionHistory(fileNode.getPath()).addVersionLabel(v.getName(),label,true);
-                            }
-                        }
-
+                        });
                     } finally {
                         IOUtils.closeQuietly(convertedStream);
                     }
+                    metrics.recordStage(DocumentMetrics.STAGE_STORE, mimeGroup, storeTimer);
+                    metrics.recordBytes(DocumentMetrics.STAGE_STORE, DocumentMetrics.DIRECTION_OUT,
+                            outFile.length());
+                    metrics.recordOutcome(FailureCache.SWF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_SUCCESS);
+                    dm.recordOperationSuccess(fileNode, FailureCache.SWF_VIEW);
                     if (logger.isDebugEnabled()) {
                         logger.debug("Created SWF view for node {} in {} ms", fileNode.getPath(),
                                 System.currentTimeMillis() - timer);
@@ -287,8 +550,11 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
                 logger.warn("Document preview cannot be generated because this node is locked (or archived): " + fileNode.toString());
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
+                metrics.recordOutcome(FailureCache.SWF_VIEW, mimeGroup, DocumentMetrics.OUTCOME_FAILURE);
+                dm.recordOperationFailure(fileNode, FailureCache.SWF_VIEW, e);
             } finally {
-                FileUtils.deleteQuietly(inFile);
+                IOUtils.closeQuietly(source);
+                IOUtils.closeQuietly(pdf);
                 FileUtils.deleteQuietly(outFile);
             }
         } else {
@@ -300,7 +566,42 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
         return true;
     }
 
-    protected File getAsPDF(JCRNodeWrapper fileNode) {
+    @Override
+    public void destroy() throws Exception {
+        ExecutorService pool = renderPool;
+        renderPool = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        ThumbnailImageEncoder current = encoder;
+        encoder = null;
+        if (current != null) {
+            current.dispose();
+        }
+    }
+
+    /**
+     * Encodes the rendered page image. Called from the render threads of the thumbnail service.
+     */
+    private PageImage encodePage(int pageIndex, BufferedImage image, String mimeGroup)
+            throws Exception {
+        DocumentMetrics metrics = DocumentManagement.getInstance().getMetrics();
+        SpillOutputStream data = new SpillOutputStream(64 * 1024, 1024 * 1024);
+        try {
+            long timer = System.currentTimeMillis();
+            getEncoder().encode(image, data);
+            data.close();
+            metrics.recordStage(DocumentMetrics.STAGE_ENCODE, mimeGroup, timer);
+            metrics.recordBytes(DocumentMetrics.STAGE_ENCODE, DocumentMetrics.DIRECTION_OUT,
+                    data.getLength());
+            return new PageImage(pageIndex + 1, image.getWidth(), image.getHeight(), data);
+        } catch (Exception e) {
+            data.dispose();
+            throw e;
+        }
+    }
+
+    protected CachedPDF getAsPDF(JCRNodeWrapper fileNode) throws RepositoryException {
         if (documentConverter == null || !documentConverter.isEnabled()) {
             logger.info(
                     "Document converter service is not enabled. Cannot convert document {} into a PDF. Skip creating SWF view.",
@@ -308,45 +609,236 @@ public class DocumentViewerServiceImpl implements DocumentViewerService {
             return null;
         }
 
-        File pdf = null;
+        return DocumentManagement.getInstance().getPDFCache().getPDF(fileNode);
+    }
+
+    /**
+     * Returns the local file of the PDF document: the file of the data store, read in place, or a temporary copy.
+     */
+    private LocalBinary getLocalBinary(JCRNodeWrapper fileNode, String mimeGroup)
+            throws RepositoryException, IOException {
+        DocumentMetrics metrics = DocumentManagement.getInstance().getMetrics();
         long timer = System.currentTimeMillis();
-        File inFile = null;
-        try {
-            inFile = File.createTempFile("doc-viewer-source", null);
-            JCRContentUtils.downloadFileContent(fileNode, inFile);
-            pdf = documentConverter.convert(inFile, fileNode.getFileContent().getContentType(),
-                    "application/pdf");
-        } catch (IOException e) {
-            throw new DocumentOperationException("Error occurred downloading the source document "
-                    + fileNode.getPath() + " into a temporary file " + inFile
-                    + " for generating an SWF view", e);
-        } finally {
-            FileUtils.deleteQuietly(inFile);
+        LocalBinary source = DocumentManagement.getInstance().getLocalBinary(fileNode);
+        if (source.isTemporary()) {
+            metrics.recordStage(DocumentMetrics.STAGE_DOWNLOAD, mimeGroup, timer);
+            metrics.recordBytes(DocumentMetrics.STAGE_DOWNLOAD, DocumentMetrics.DIRECTION_IN,
+                    source.getFile().length());
+        }
+        return source;
+    }
 
-            if (pdf != null && logger.isDebugEnabled()) {
-                logger.debug("Converted document {} into a PDF file in {} ms", fileNode.getPath(),
-                        System.currentTimeMillis() - timer);
-            }
+    private ThumbnailImageEncoder getEncoder() {
+        ThumbnailImageEncoder current = encoder;
+        if (current == null) {
+            current = "png".equals(pageImageFormat) ? new ThumbnailImageEncoder(pngCompressionLevel)
+                    : new ThumbnailImageEncoder(pageImageFormat, "jpeg".equals(pageImageFormat) ? jpegQuality
+                            : -1);
+            encoder = current;
         }
+        return current;
+    }
 
-        return pdf;
+    private String getPageImageMimeType() {
+        return "jpeg".equals(pageImageFormat) ? "image/jpeg" : "image/" + pageImageFormat;
+    }
+
+    private ExecutorService getRenderPool() {
+        ExecutorService pool = renderPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = renderPool;
+                if (pool == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    // runs the page rendering batches, which wait for the render threads of the thumbnail service
+                    pool = Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "dm-pages-view-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    renderPool = pool;
+                }
+            }
+        }
+        return pool;
     }
 
     @Override
     public boolean isEnabled() {
-        return pdf2SWFConverter != null && pdf2SWFConverter.isEnabled();
+        return pdf2SWFConverter != null && pdf2SWFConverter.isEnabled() || isPagesViewEnabled();
+    }
+
+    @Override
+    public boolean isPagesViewEnabled() {
+        return pagesViewEnabled
+                && DocumentManagement.getInstance().isDocumentThumbnailServiceEnabled();
+    }
+
+    /**
+     * A PDF document is its own PDF view, so it is neither converted nor copied. A PDF view, stored for the node before, is removed to
+     * free the duplicate binary.
+     */
+    private boolean passThroughPdfView(JCRNodeWrapper fileNode) throws RepositoryException {
+        if (fileNode.hasNode("pdfView")) {
+            fileNode.getSession().checkout(fileNode);
+            fileNode.getNode("pdfView").remove();
+            if (fileNode.isNodeType("jmix:pdfDocumentView")) {
+                fileNode.removeMixin("jmix:pdfDocumentView");
+            }
+            DocumentOperationBatch.save(fileNode);
+            logger.info("Removed the stored PDF view of the PDF document {}", fileNode.getPath());
+        }
+        DocumentManagement.getInstance().getMetrics().recordOutcome(FailureCache.PDF_VIEW, "pdf",
+                DocumentMetrics.OUTCOME_PASS_THROUGH);
+
+        return true;
+    }
+
+    private JCRNodeWrapper preparePagesView(JCRNodeWrapper fileNode, int pageCount)
+            throws RepositoryException, IOException {
+        fileNode.getSession().checkout(fileNode);
+        if (fileNode.hasNode(PAGES_VIEW)) {
+            fileNode.getNode(PAGES_VIEW).remove();
+        }
+        if (!fileNode.isNodeType(PAGES_VIEW_MIXIN)) {
+            fileNode.addMixin(PAGES_VIEW_MIXIN);
+        }
+        JCRNodeWrapper viewNode = fileNode.addNode(PAGES_VIEW, PAGES_VIEW_TYPE);
+        storeManifest(viewNode, pageCount, Collections.<PageImage> emptyList());
+
+        return viewNode;
     }
 
     public void setDocumentConverter(DocumentConverterService documentConverter) {
         this.documentConverter = documentConverter;
     }
 
+    /**
+     * Sets the quality of the JPEG page images in the range [0, 1].
+     * 
+     * @param jpegQuality
+     *            the quality of the JPEG page images
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+        this.encoder = null;
+    }
+
+    /**
+     * Sets the image format of the page images view: <code>png</code> (default) or <code>jpeg</code>.
+     * 
+     * @param pageImageFormat
+     *            the image format of the page images view
+     */
+    public void setPageImageFormat(String pageImageFormat) {
+        this.pageImageFormat = StringUtils.defaultIfEmpty(StringUtils.lowerCase(pageImageFormat),
+                "png");
+        this.encoder = null;
+    }
+
+    public void setPagesViewEnabled(boolean pagesViewEnabled) {
+        this.pagesViewEnabled = pagesViewEnabled;
+    }
+
+    /**
+     * Sets the width in pixels, the pages are rendered at for the page images view.
+     * 
+     * @param pageWidth
+     *            the width in pixels, the pages are rendered at
+     */
+    public void setPageWidth(int pageWidth) {
+        this.pageWidth = pageWidth;
+    }
+
     public void setPDF2SWFConverter(PDF2SWFConverterService service) {
         pdf2SWFConverter = service;
     }
 
+    /**
+     * Sets the deflate compression level of the PNG page images in the range [0, 9]. A negative value means the image writer default is
+     * used.
+     * 
+     * @param pngCompressionLevel
+     *            the deflate compression level of the PNG page images
+     */
+    public void setPngCompressionLevel(int pngCompressionLevel) {
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.encoder = null;
+    }
+
     public void setSupportedDocumentFormats(String[] supportedDocumentFormats) {
         this.supportedDocumentFormats = supportedDocumentFormats;
     }
 
+    /**
+     * Stores the manifest of the page images view: the total number of pages and the dimensions of the pages, rendered so far.
+     */
+    private void storeManifest(JCRNodeWrapper viewNode, int pageCount, List<PageImage> pages)
+            throws RepositoryException, IOException {
+        List<PageImage> sorted = new ArrayList<PageImage>(pages);
+        Collections.sort(sorted, new Comparator<PageImage>() {
+            public int compare(PageImage p1, PageImage p2) {
+                return p1.number < p2.number ? -1 : (p1.number == p2.number ? 0 : 1);
+            }
+        });
+        boolean complete = pages.size() == pageCount;
+        StringBuilder json = new StringBuilder(64 + sorted.size() * 64);
+        json.append("{\"pageCount\":").append(pageCount).append(",\"renderedPages\":")
+                .append(sorted.size()).append(",\"complete\":").append(complete)
+                .append(",\"mimeType\":\"").append(getPageImageMimeType()).append("\",\"pages\":[");
+        for (int i = 0; i < sorted.size(); i++) {
+            PageImage page = sorted.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"number\":").append(page.number).append(",\"name\":\"page-")
+                    .append(page.number).append("\",\"width\":").append(page.width)
+                    .append(",\"height\":").append(page.height).append('}');
+        }
+        json.append("]}");
+
+        JCRNodeWrapper manifest = null;
+        try {
+            manifest = viewNode.getNode("manifest");
+            manifest.getProperty(Constants.JCR_DATA).remove();
+        } catch (PathNotFoundException e) {
+            manifest = viewNode.addNode("manifest", "nt:resource");
+        }
+        manifest.setProperty(Constants.JCR_DATA,
+                new BinaryImpl(json.toString().getBytes("UTF-8")));
+        manifest.setProperty(Constants.JCR_MIMETYPE, "application/json");
+        Calendar lastModified = Calendar.getInstance();
+        manifest.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
+
+        viewNode.setProperty("j:pageCount", pageCount);
+        viewNode.setProperty("j:renderedPages", sorted.size());
+        viewNode.setProperty("j:complete", complete);
+        viewNode.setProperty(Constants.JCR_LASTMODIFIED, lastModified);
+    }
+
+    private void storePage(JCRNodeWrapper viewNode, PageImage page) throws RepositoryException,
+            IOException {
+        JCRNodeWrapper node = viewNode.addNode("page-" + page.number, Constants.JAHIANT_RESOURCE);
+        node.addMixin("jmix:size");
+        Binary b = null;
+        InputStream is = null;
+        try {
+            is = page.data.getInputStream();
+            // the value factory of the underlying session streams the data directly into the data store
+            b = node.getRealNode().getSession().getValueFactory().createBinary(is);
+            node.setProperty(Constants.JCR_DATA, b);
+        } finally {
+            IOUtils.closeQuietly(is);
+            if (b != null) {
+                b.dispose();
+            }
+        }
+        node.setProperty("j:width", page.width);
+        node.setProperty("j:height", page.height);
+        node.setProperty(Constants.JCR_MIMETYPE, getPageImageMimeType());
+        node.setProperty(Constants.JCR_LASTMODIFIED, Calendar.getInstance());
+    }
+
 }
@@ -56,13 +56,12 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.jahia.dm.DocumentManagement;
 import org.jahia.dm.DocumentOperationException;
+import org.jahia.dm.utils.ProcessResult;
 import org.jahia.dm.utils.ProcessUtils;
-import org.jahia.utils.StringOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -76,6 +75,8 @@ public class PDF2SWFConverterService implements InitializingBean {
 
     private static Logger logger = LoggerFactory.getLogger(PDF2SWFConverterService.class);
 
+    private static final String TOOL = "pdf2swf";
+
     private boolean autodetect;
 
     private boolean enabled;
@@ -132,36 +133,23 @@ public class PDF2SWFConverterService implements InitializingBean {
             logger.debug("Execuiting conversion command: {}", cmd.toString());
         }
 
-        int exitValue = 0;
+        ProcessResult result = DocumentManagement.getInstance().getProcessSupervisor()
+                .execute(TOOL, cmd.toStrings(), workingDir, null, 0);
 
-        StringOutputStream out = new StringOutputStream();
-        StringOutputStream err = new StringOutputStream();
-        try {
-            DefaultExecutor executor = new DefaultExecutor();
-            executor.setStreamHandler(new PumpStreamHandler(out, err));
-            if (workingDir != null) {
-                if (workingDir.exists() || workingDir.mkdirs()) {
-                    executor.setWorkingDirectory(workingDir);
-                }
-            }
-            exitValue = executor.execute(cmd, System.getenv());
-        } catch (Exception e) {
-            throw new DocumentOperationException(e);
-        } finally {
-            if (err.getLength() > 0) {
-                logger.error("Conversion process finished with error. Cause: {}", err.toString());
-            }
-            if (logger.isDebugEnabled() && out.getLength() > 0) {
-                logger.debug(out.toString());
-            }
+        if (result.getError().length() > 0) {
+            logger.error("Conversion process finished with error. Cause: {}", result.getError());
+        }
+        if (logger.isDebugEnabled() && result.getOutput().length() > 0) {
+            logger.debug(result.getOutput());
         }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Conversion from {} to {} done (exit code: {}) in {} ms", new Object[] {
-                    inputPdfFile, outputSwfFile, exitValue, (System.currentTimeMillis() - timer) });
+                    inputPdfFile, outputSwfFile, result.getExitValue(),
+                    (System.currentTimeMillis() - timer) });
         }
 
-        return exitValue == 0;
+        return result.isSuccessful();
     }
 
     public OutputStream convert(InputStream inputPdfStream) throws DocumentOperationException {